@@ -1,6 +1,9 @@
 package sofia.app.internal;
 
+import java.util.Collections;
 import java.util.HashMap;
+import java.util.Map;
+import java.util.WeakHashMap;
 
 import sofia.internal.events.EventDispatcher;
 import sofia.internal.events.OptionalEventDispatcher;
@@ -13,6 +16,7 @@ import android.view.inputmethod.EditorInfo;
 import android.view.inputmethod.InputMethodManager;
 import android.widget.AbsListView;
 import android.widget.AbsSpinner;
+import android.widget.Adapter;
 import android.widget.AdapterView;
 import android.widget.EditText;
 import android.widget.RatingBar;
@@ -35,6 +39,12 @@ public class EventBinder
     private static HashMap<
         Class<? extends View>, Binder<? extends View>> binders;
 
+    // Views whose layout XML declared an android:onClick handler, which the
+    // view binder leaves alone. The warm-up runs after inflation, when the
+    // attributes are gone, so it checks here instead. Views are held weakly.
+    private static final Map<View, Boolean> declaredOnClickViews =
+            Collections.synchronizedMap(new WeakHashMap<View, Boolean>());
+
     private Object receiver;
 
 
@@ -63,8 +73,46 @@ public class EventBinder
      * @param attrs the attribute set that was used during inflation (may be
      *     null if this is called outside of the inflater)
      */
-    @SuppressWarnings("unchecked")
     public void bindEvents(View view, AttributeSet attrs)
+    {
+        Binder<View> binder = findBinder(view);
+
+        if (binder != null)
+        {
+            binder.bind(receiver, view, attrs);
+        }
+    }
+
+
+    // ----------------------------------------------------------
+    /**
+     * Adds the event handlers that {@link #bindEvents(View, AttributeSet)}
+     * would dispatch to for the specified view to a warm-up, so that they
+     * can be resolved before the user interacts with the view.
+     *
+     * @param view the view whose events should be collected
+     * @param warmUp the warm-up to add the handlers to
+     */
+    public void collectHandlers(View view, HandlerWarmUp warmUp)
+    {
+        Binder<View> binder = findBinder(view);
+
+        if (binder != null)
+        {
+            binder.collect(view, warmUp);
+        }
+    }
+
+
+    // ----------------------------------------------------------
+    /**
+     * Finds the binder for the most specific class of the view that has one.
+     *
+     * @param view the view
+     * @return the binder, or null if none applies to the view
+     */
+    @SuppressWarnings("unchecked")
+    private static Binder<View> findBinder(View view)
     {
         Class<?> viewClass = view.getClass();
         Binder<? extends View> binder = null;
@@ -75,10 +123,7 @@ public class EventBinder
             viewClass = viewClass.getSuperclass();
         }
 
-        if (binder != null)
-        {
-            ((Binder<View>) binder).bind(receiver, view, attrs);
-        }
+        return (Binder<View>) binder;
     }
 
 
@@ -103,6 +148,33 @@ public class EventBinder
     }
 
 
+    // ----------------------------------------------------------
+    /**
+     * Gets the class of the first item in an adapter view's adapter, which
+     * is used as a representative of the items that events will carry.
+     *
+     * @param view the adapter view
+     * @return the class of the first item, or null if the adapter is missing
+     *     or empty
+     */
+    private static Class<?> firstItemClass(AdapterView<?> view)
+    {
+        Adapter adapter = view.getAdapter();
+
+        if (adapter != null && adapter.getCount() > 0)
+        {
+            Object item = adapter.getItem(0);
+
+            if (item != null)
+            {
+                return item.getClass();
+            }
+        }
+
+        return null;
+    }
+
+
     //~ Nested classes and interfaces .........................................
 
     // ----------------------------------------------------------
@@ -128,6 +200,17 @@ public class EventBinder
          * @param attrs the attributes set in the layout XML (if any)
          */
         public void bind(Object receiver, ViewType view, AttributeSet attrs);
+
+
+        // ----------------------------------------------------------
+        /**
+         * Adds the handlers that {@link #bind} would dispatch to for the
+         * view to a warm-up.
+         *
+         * @param view the view sending the event
+         * @param warmUp the warm-up to add the handlers to
+         */
+        public void collect(ViewType view, HandlerWarmUp warmUp);
     }
 
 
@@ -142,6 +225,12 @@ public class EventBinder
         @Override
         public void bind(final Object receiver, View view, AttributeSet attrs)
         {
+            if (attrs != null
+                    && attrs.getAttributeValue(ANDROID_NS, "onClick") != null)
+            {
+                declaredOnClickViews.put(view, Boolean.TRUE);
+            }
+
             if (!AdapterView.class.isAssignableFrom(view.getClass())
                     && view.isClickable()
                     && (attrs == null ||
@@ -179,6 +268,23 @@ public class EventBinder
                 }
             }
         }
+
+        @Override
+        public void collect(View view, HandlerWarmUp warmUp)
+        {
+            if (!AdapterView.class.isAssignableFrom(view.getClass())
+                    && view.isClickable()
+                    && !declaredOnClickViews.containsKey(view))
+            {
+                String id = getIdName(view.getContext(), view.getId());
+
+                if (id != null)
+                {
+                    warmUp.add(new OptionalEventDispatcher(id + "Clicked", 0),
+                            view.getClass());
+                }
+            }
+        }
     };
 
 
@@ -216,6 +322,20 @@ public class EventBinder
                 }
             });
         }
+
+        @Override
+        public void collect(AbsListView view, HandlerWarmUp warmUp)
+        {
+            String resourceId = getIdName(view.getContext(), view.getId());
+            String id = (resourceId != null) ? resourceId : "listView";
+            Class<?> itemClass = firstItemClass(view);
+
+            if (itemClass != null)
+            {
+                warmUp.add(new OptionalEventDispatcher(id + "ItemClicked", 1),
+                        itemClass, Integer.class);
+            }
+        }
     };
 
 
@@ -258,6 +378,26 @@ public class EventBinder
                 });
             }
         }
+
+        @Override
+        public void collect(AbsSpinner view, HandlerWarmUp warmUp)
+        {
+            String id = getIdName(view.getContext(), view.getId());
+
+            if (id != null)
+            {
+                Class<?> itemClass = firstItemClass(view);
+
+                if (itemClass != null)
+                {
+                    warmUp.add(
+                            new OptionalEventDispatcher(id + "ItemSelected", 1),
+                            itemClass, Integer.class);
+                }
+
+                warmUp.add(new EventDispatcher(id + "NothingSelected"));
+            }
+        }
     };
 
 
@@ -277,6 +417,18 @@ public class EventBinder
             editText.setOnEditorActionListener(
                     new EditorActionListener(receiver));
         }
+
+        @Override
+        public void collect(EditText view, HandlerWarmUp warmUp)
+        {
+            String id = getIdName(view.getContext(), view.getId());
+
+            if (id != null)
+            {
+                warmUp.add(new OptionalEventDispatcher(id + "EditingDone"),
+                        view.getClass());
+            }
+        }
     };
 
 
@@ -329,6 +481,25 @@ public class EventBinder
                 });
             }
         }
+
+        @Override
+        public void collect(SeekBar view, HandlerWarmUp warmUp)
+        {
+            String id = getIdName(view.getContext(), view.getId());
+
+            if (id != null)
+            {
+                warmUp.add(
+                        new OptionalEventDispatcher(id + "ProgressChanged", 0),
+                        view.getClass(), Integer.class, Boolean.class);
+                warmUp.add(
+                        new OptionalEventDispatcher(id + "TrackingStarted", 0),
+                        view.getClass(), Integer.class);
+                warmUp.add(
+                        new OptionalEventDispatcher(id + "TrackingStopped", 0),
+                        view.getClass(), Integer.class);
+            }
+        }
     };
 
 
@@ -364,6 +535,19 @@ public class EventBinder
                 });
             }
         }
+
+        @Override
+        public void collect(RatingBar view, HandlerWarmUp warmUp)
+        {
+            String id = getIdName(view.getContext(), view.getId());
+
+            if (id != null)
+            {
+                warmUp.add(
+                        new OptionalEventDispatcher(id + "RatingChanged", 0),
+                        view.getClass(), Float.class, Boolean.class);
+            }
+        }
     };
 
 
@@ -0,0 +1,214 @@
+package sofia.app.internal;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import sofia.internal.ViewVisitor;
+import sofia.internal.events.EventDispatcher;
+import android.os.Process;
+import android.os.SystemClock;
+import android.util.Log;
+import android.view.View;
+
+//-------------------------------------------------------------------------
+/**
+ * Resolves a receiver's event handlers ahead of time, so that the first
+ * click on each button does not pay the cost of reflective method lookup on
+ * the UI thread. The handlers to resolve are collected on the UI thread
+ * (usually by walking an inflated view tree and asking {@link EventBinder}
+ * which events it would dispatch for each view), and are then resolved on a
+ * background thread.
+ * <p>
+ * When resolution finishes, the elapsed time and the number of handlers that
+ * were found are logged, and they can also be queried from this object.
+ * </p>
+ *
+ * @author  Last changed by $Author$
+ * @version $Revision$, $Date$
+ */
+public class HandlerWarmUp
+{
+    //~ Fields ................................................................
+
+    private static final String TAG = "HandlerWarmUp";
+
+    private Object receiver;
+    private List<EventDispatcher> dispatchers;
+    private List<Class<?>[]> argTypes;
+
+    private volatile boolean finished;
+    private volatile long elapsedTime;
+    private volatile int resolvedCount;
+
+
+    //~ Constructors ..........................................................
+
+    // ----------------------------------------------------------
+    /**
+     * Creates a new, empty warm-up for the specified receiver.
+     *
+     * @param receiver the object whose handlers will be resolved
+     */
+    public HandlerWarmUp(Object receiver)
+    {
+        this.receiver = receiver;
+        this.dispatchers = new ArrayList<EventDispatcher>();
+        this.argTypes = new ArrayList<Class<?>[]>();
+    }
+
+
+    //~ Methods ...............................................................
+
+    // ----------------------------------------------------------
+    /**
+     * Adds a handler to be resolved.
+     *
+     * @param dispatcher the dispatcher that will dispatch the event
+     * @param types the classes of the arguments that will be dispatched
+     */
+    public void add(EventDispatcher dispatcher, Class<?>... types)
+    {
+        dispatchers.add(dispatcher);
+        argTypes.add(types);
+    }
+
+
+    // ----------------------------------------------------------
+    /**
+     * Adds every handler that {@link EventBinder} could dispatch to for the
+     * views in the specified tree. This must be called on the UI thread.
+     *
+     * @param root the root of the view tree
+     */
+    public void addViewTree(View root)
+    {
+        final EventBinder binder = new EventBinder(receiver);
+
+        new ViewVisitor() {
+            @Override
+            protected boolean visit(View view)
+            {
+                binder.collectHandlers(view, HandlerWarmUp.this);
+                return true;
+            }
+        }.accept(root);
+    }
+
+
+    // ----------------------------------------------------------
+    /**
+     * Gets the number of handlers that have been added to this warm-up.
+     *
+     * @return the number of handlers to resolve
+     */
+    public int size()
+    {
+        return dispatchers.size();
+    }
+
+
+    // ----------------------------------------------------------
+    /**
+     * Resolves the handlers on a new background thread. No more handlers
+     * should be added after this is called.
+     * <p>
+     * The thread runs only slightly below normal priority, rather than at
+     * background priority: resolution is shared, so if the user taps a
+     * button whose handler is still being resolved, the UI thread waits for
+     * this thread, and a thread in the background scheduling group could
+     * keep it waiting for a long time.
+     * </p>
+     */
+    public void start()
+    {
+        Thread thread = new Thread(new Runnable() {
+            public void run()
+            {
+                Process.setThreadPriority(Process.THREAD_PRIORITY_DEFAULT
+                        + Process.THREAD_PRIORITY_LESS_FAVORABLE);
+                HandlerWarmUp.this.run();
+            }
+        }, "sofia-warm-up");
+
+        thread.setDaemon(true);
+        thread.start();
+    }
+
+
+    // ----------------------------------------------------------
+    /**
+     * Resolves the handlers on the calling thread.
+     */
+    public void run()
+    {
+        long startTime = SystemClock.uptimeMillis();
+        int resolved = 0;
+
+        for (int i = 0; i < dispatchers.size(); i++)
+        {
+            try
+            {
+                if (dispatchers.get(i).prepare(receiver, argTypes.get(i)))
+                {
+                    resolved++;
+                }
+            }
+            catch (RuntimeException e)
+            {
+                // A handler that cannot be resolved now will be resolved
+                // (and report its error) when the event is dispatched.
+            }
+            catch (LinkageError e)
+            {
+                // Same as above.
+            }
+        }
+
+        elapsedTime = SystemClock.uptimeMillis() - startTime;
+        resolvedCount = resolved;
+        finished = true;
+
+        Log.d(TAG, "Resolved " + resolved + " of " + dispatchers.size()
+                + " handlers on " + receiver.getClass().getSimpleName()
+                + " in " + elapsedTime + " ms");
+    }
+
+
+    // ----------------------------------------------------------
+    /**
+     * Gets a value indicating whether resolution has finished.
+     *
+     * @return true if all handlers have been resolved
+     */
+    public boolean isFinished()
+    {
+        return finished;
+    }
+
+
+    // ----------------------------------------------------------
+    /**
+     * Gets the time, in milliseconds, that resolution took.
+     *
+     * @return the elapsed time, or 0 if resolution has not finished
+     */
+    public long getElapsedTime()
+    {
+        return elapsedTime;
+    }
+
+
+    // ----------------------------------------------------------
+    /**
+     * Gets the number of handlers that were found on the receiver. Events
+     * for which the receiver has no handler are resolved too (so that their
+     * absence is cached), but are not counted here.
+     *
+     * @return the number of handlers found, or 0 if resolution has not
+     *     finished
+     */
+    public int getResolvedCount()
+    {
+        return resolvedCount;
+    }
+}
@@ -2,13 +2,13 @@ package sofia.app.internal;
 
 import java.lang.ref.WeakReference;
 import java.lang.reflect.Method;
-import java.util.HashMap;
 import java.util.WeakHashMap;
 
 import sofia.app.ActivityStarter;
 import sofia.app.OptionsMenu;
 import sofia.app.Screen;
 import sofia.app.ScreenLayout;
+import sofia.internal.LongMRUMap;
 import sofia.internal.ModalTask;
 import sofia.internal.events.EventDispatcher;
 import sofia.internal.events.OptionalEventDispatcher;
@@ -22,6 +22,7 @@ import android.view.LayoutInflater;
 import android.view.Menu;
 import android.view.MenuInflater;
 import android.view.MenuItem;
+import android.view.View;
 import android.widget.ScrollView;
 
 // -------------------------------------------------------------------------
@@ -52,14 +53,16 @@ public class ScreenMixin
     private static final String INSTANCE_DATA =
             "sofia.app.internal.ScreenMixin.instanceData";
 
-    private static HashMap<Long, WeakReference<Object[]>> screenArguments =
-        new HashMap<Long, WeakReference<Object[]>>();
+    // Keyed by the timestamp at which each entry was registered; these maps
+    // have no capacity or age limit, so entries stay until they are taken.
+    private static LongMRUMap<WeakReference<Object[]>> screenArguments =
+        new LongMRUMap<WeakReference<Object[]>>(0, 0, null);
 
-    private static HashMap<Long, Object> screenResults =
-        new HashMap<Long, Object>();
+    private static LongMRUMap<Object> screenResults =
+        new LongMRUMap<Object>(0, 0, null);
 
-    private static HashMap<Long, AbsActivityStarter> startedActivities =
-            new HashMap<Long, AbsActivityStarter>();
+    private static LongMRUMap<AbsActivityStarter> startedActivities =
+            new LongMRUMap<AbsActivityStarter>(0, 0, null);
 
     public static final int ACTIVITY_STARTER_REQUEST_CODE = 0x50F1A001;
 
@@ -532,6 +535,7 @@ public class ScreenMixin
                 activity.setContentView(id);
             }
 
+            warmUpEventHandlers();
             return true;
         }
         else
@@ -541,6 +545,32 @@ public class ScreenMixin
     }
 
 
+    // ----------------------------------------------------------
+    /**
+     * Resolves the event handlers for every view in the activity's content
+     * view on a background thread, so that the user's first interaction with
+     * each view does not have to wait for reflective method lookup. This is
+     * called automatically after the screen's layout is inflated, and can be
+     * called again if the content view is replaced later.
+     *
+     * @return the warm-up that was started, which can be queried for its
+     *     elapsed time and the number of handlers that it resolved
+     */
+    public HandlerWarmUp warmUpEventHandlers()
+    {
+        HandlerWarmUp warmUp = new HandlerWarmUp(activity);
+
+        View content = activity.findViewById(android.R.id.content);
+        if (content != null)
+        {
+            warmUp.addViewTree(content);
+        }
+
+        warmUp.start();
+        return warmUp;
+    }
+
+
     // ----------------------------------------------------------
     /**
      * Invokes the {@code initialize} method on the activity that matches the
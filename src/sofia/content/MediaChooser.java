@@ -1,6 +1,7 @@
 package sofia.content;
 
 import sofia.app.internal.AbsActivityStarter;
+import sofia.internal.SampledBitmapDecoder;
 import android.app.Activity;
 import android.content.Intent;
 import android.graphics.Bitmap;
@@ -177,6 +178,51 @@ public class MediaChooser extends AbsActivityStarter
 	}
 
 
+    // ----------------------------------------------------------
+	/**
+	 * A convenience method that returns the image that was chosen as a
+	 * {@code Bitmap}, decoded at roughly a target size instead of at full
+	 * resolution. This is much faster, and uses much less memory, when the
+	 * image will be shown smaller than it was stored, such as in a
+	 * thumbnail. The image is decoded at the smallest power-of-two
+	 * fraction of its full size that is at least as large as the target
+	 * size, so it may be up to twice as large in each dimension.
+	 * 
+	 * @param width the target width in pixels, or zero if the width is not
+	 *     constrained
+	 * @param height the target height in pixels, or zero if the height is
+	 *     not constrained
+	 * @return a {@code Bitmap} that represents the image that was chosen,
+	 *     or null if it was not an image
+	 */
+	public Bitmap getBitmap(int width, int height)
+	{
+        return getBitmap(width, height, false);
+	}
+
+
+    // ----------------------------------------------------------
+	/**
+	 * A convenience method that returns the image that was chosen as a
+	 * {@code Bitmap}, decoded at roughly a target size instead of at full
+	 * resolution, and optionally scaled to fit the target size exactly.
+	 * 
+	 * @param width the target width in pixels, or zero if the width is not
+	 *     constrained
+	 * @param height the target height in pixels, or zero if the height is
+	 *     not constrained
+	 * @param exact if true, the image will be scaled, preserving its aspect
+	 *     ratio, to fit exactly within the target size
+	 * @return a {@code Bitmap} that represents the image that was chosen,
+	 *     or null if it was not an image
+	 */
+	public Bitmap getBitmap(int width, int height, boolean exact)
+	{
+        return SampledBitmapDecoder.decodeFile(
+            getPath(), width, height, exact);
+	}
+
+
     // ----------------------------------------------------------
 	public void handleActivityResult(
 			Activity owner, Intent data, int requestCode, int resultCode)
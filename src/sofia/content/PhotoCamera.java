@@ -3,6 +3,7 @@ package sofia.content;
 import java.io.File;
 
 import sofia.app.internal.AbsActivityStarter;
+import sofia.internal.SampledBitmapDecoder;
 import android.app.Activity;
 import android.content.Intent;
 import android.graphics.Bitmap;
@@ -101,6 +102,49 @@ public class PhotoCamera extends AbsActivityStarter
 	}
 
 
+    // ----------------------------------------------------------
+	/**
+	 * A convenience method that returns the photo that was taken as a
+	 * {@code Bitmap}, decoded at roughly a target size instead of at full
+	 * resolution. This is much faster, and uses much less memory, when the
+	 * photo will be shown smaller than it was stored, such as in a
+	 * thumbnail. The photo is decoded at the smallest power-of-two
+	 * fraction of its full size that is at least as large as the target
+	 * size, so it may be up to twice as large in each dimension.
+	 * 
+	 * @param width the target width in pixels, or zero if the width is not
+	 *     constrained
+	 * @param height the target height in pixels, or zero if the height is
+	 *     not constrained
+	 * @return a {@code Bitmap} that represents the photo that was taken
+	 */
+	public Bitmap getBitmap(int width, int height)
+	{
+        return getBitmap(width, height, false);
+	}
+
+
+    // ----------------------------------------------------------
+	/**
+	 * A convenience method that returns the photo that was taken as a
+	 * {@code Bitmap}, decoded at roughly a target size instead of at full
+	 * resolution, and optionally scaled to fit the target size exactly.
+	 * 
+	 * @param width the target width in pixels, or zero if the width is not
+	 *     constrained
+	 * @param height the target height in pixels, or zero if the height is
+	 *     not constrained
+	 * @param exact if true, the photo will be scaled, preserving its aspect
+	 *     ratio, to fit exactly within the target size
+	 * @return a {@code Bitmap} that represents the photo that was taken
+	 */
+	public Bitmap getBitmap(int width, int height, boolean exact)
+	{
+        return SampledBitmapDecoder.decodeFile(
+            getPath(), width, height, exact);
+	}
+
+
 	// ----------------------------------------------------------
 	/**
 	 * Displays the camera application. When the user has taken a photo, the
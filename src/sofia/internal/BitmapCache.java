@@ -0,0 +1,439 @@
+package sofia.internal;
+
+import android.graphics.Bitmap;
+
+//-------------------------------------------------------------------------
+/**
+ *  A cache of decoded bitmaps that limits the total number of bytes of
+ *  pixel data it holds, used by {@link JarResources} so that images such
+ *  as sprites are decoded once rather than every time they are requested.
+ *  <p>
+ *  When the byte budget is exceeded, the least recently used bitmaps are
+ *  dropped from the cache.  They are not recycled, since they may still be
+ *  on screen.  The most recently used bitmaps are held with strong
+ *  references, so the garbage collector cannot empty the cache behind its
+ *  back; the rest are held softly until they are evicted.  Entries are
+ *  spread over independently locked segments, so threads looking up
+ *  different images rarely wait for each other, and threads asking for the
+ *  same missing image share a single decode.
+ *  </p>
+ *
+ *  @author Last changed by $Author$
+ *  @version $Revision$, $Date$
+ */
+public class BitmapCache
+{
+    //~ Constructors ..........................................................
+
+    // ----------------------------------------------------------
+    /**
+     * Creates a new, empty cache.
+     * @param maxBytes The maximum number of bytes of pixel data to hold.
+     */
+    public BitmapCache(long maxBytes)
+    {
+        if (maxBytes <= 0)
+        {
+            throw new IllegalArgumentException("maxBytes must be positive");
+        }
+
+        this.maxBytes = maxBytes;
+        bitmaps = new ConcurrentMRUMap<Key, Bitmap>(
+            0, maxBytes, BYTE_WEIGHER, 0, new MRUMap.Recycler<Bitmap>() {
+                public void recycle(Bitmap bitmap)
+                {
+                    BitmapPool pool = recyclingPool;
+                    if (pool != null)
+                    {
+                        pool.put(bitmap);
+                    }
+                }
+            }, CONCURRENCY_LEVEL);
+        bitmaps.setHotTier(0, maxBytes);
+        bitmaps.setRecordingStats(true);
+    }
+
+
+    //~ Public methods ........................................................
+
+    // ----------------------------------------------------------
+    /**
+     * Get the cache shared by {@link JarResources}, creating it on first
+     * use.  Unless {@link #setSharedMaxBytes(long)} was called first, its
+     * budget is an eighth of the VM's maximum heap size.
+     * @return The shared cache.
+     */
+    public static synchronized BitmapCache getShared()
+    {
+        if (shared == null)
+        {
+            long maxBytes = sharedMaxBytes;
+            if (maxBytes <= 0)
+            {
+                maxBytes =
+                    Runtime.getRuntime().maxMemory() / DEFAULT_HEAP_FRACTION;
+            }
+            shared = new BitmapCache(maxBytes);
+        }
+        return shared;
+    }
+
+
+    // ----------------------------------------------------------
+    /**
+     * Set the byte budget of the shared cache.  If the shared cache already
+     * exists, it is discarded (along with its contents and statistics) and
+     * a new one with the given budget is created on next use.
+     * @param maxBytes The maximum number of bytes of pixel data to hold
+     *                 (or zero to use the default budget).
+     */
+    public static synchronized void setSharedMaxBytes(long maxBytes)
+    {
+        sharedMaxBytes = maxBytes;
+        shared = null;
+    }
+
+
+    // ----------------------------------------------------------
+    /**
+     * Look up a bitmap.
+     * @param key The key to look up.
+     * @return The cached bitmap, or null if it is not in the cache.
+     */
+    public Bitmap get(Key key)
+    {
+        return bitmaps.get(key);
+    }
+
+
+    // ----------------------------------------------------------
+    /**
+     * Look up a bitmap, decoding and caching it if it is not in the cache.
+     * Threads that ask for the same key while it is being decoded wait for
+     * that decode instead of starting their own.  A null result is not
+     * cached.
+     * @param key    The key to look up.
+     * @param loader Decodes the bitmap if it is not in the cache.
+     * @return The bitmap, or null if it was not cached and the loader
+     *         returned null.
+     */
+    public Bitmap get(Key key, MRUMap.Loader<? super Key, Bitmap> loader)
+    {
+        return bitmaps.get(key, loader);
+    }
+
+
+    // ----------------------------------------------------------
+    /**
+     * Add a bitmap to the cache.
+     * @param key    The key to store it under.
+     * @param bitmap The bitmap.
+     */
+    public void put(Key key, Bitmap bitmap)
+    {
+        bitmaps.put(key, bitmap);
+    }
+
+
+    // ----------------------------------------------------------
+    /**
+     * Remove a bitmap from the cache.  If bitmaps leaving the cache are
+     * being given to a pool, the removed bitmap is given to it too, so it
+     * must not be used afterwards.
+     * @param key The key to remove.
+     * @return The bitmap that was removed, or null if there was none.
+     * @see #setRecyclingPool(BitmapPool)
+     */
+    public Bitmap remove(Key key)
+    {
+        return bitmaps.remove(key);
+    }
+
+
+    // ----------------------------------------------------------
+    /**
+     * Remove every bitmap from the cache.
+     */
+    public void clear()
+    {
+        bitmaps.clear();
+    }
+
+
+    // ----------------------------------------------------------
+    /**
+     * Give bitmaps to a pool when they leave the cache, whether they are
+     * evicted, removed, or replaced, so that their memory can be reused by
+     * later decodes.  This is off by default, because it is only safe if
+     * nothing uses a cached bitmap after it leaves the cache: a sprite that
+     * is evicted while it is still on screen would have its pixels
+     * overwritten by the next image decoded into it.  The pool only accepts
+     * mutable bitmaps, so {@link JarResources} only decodes mutable bitmaps
+     * for the shared cache while it has a recycling pool.
+     * @param pool The pool to give bitmaps to (usually
+     *             {@link BitmapPool#getShared()}), or null to stop.
+     */
+    public void setRecyclingPool(BitmapPool pool)
+    {
+        recyclingPool = pool;
+    }
+
+
+    // ----------------------------------------------------------
+    /**
+     * Get the pool that bitmaps are given to when they leave the cache.
+     * @return The pool, or null if bitmaps are not given to one.
+     * @see #setRecyclingPool(BitmapPool)
+     */
+    public BitmapPool getRecyclingPool()
+    {
+        return recyclingPool;
+    }
+
+
+    // ----------------------------------------------------------
+    /**
+     * Require new bitmaps to have been requested more often than the bitmaps
+     * they would displace before they are cached.  This keeps one pass over
+     * many images, such as scrolling through a long list of thumbnails, from
+     * flushing out sprites that are drawn all the time.  A new bitmap is
+     * only compared with the least recently used bitmap of the whole cache
+     * once it would take the cache over its byte budget; until then, every
+     * bitmap is cached.  A bitmap that is turned away is not given to the
+     * recycling pool, since the caller is still using it.
+     * @param enabled True to filter new bitmaps, false to cache them all.
+     * @see MRUMap#setAdmissionFilter(boolean)
+     */
+    public void setAdmissionFilter(boolean enabled)
+    {
+        bitmaps.setAdmissionFilter(enabled);
+    }
+
+
+    // ----------------------------------------------------------
+    /**
+     * Get the number of bitmaps in the cache.
+     * @return The number of cached bitmaps.
+     */
+    public int size()
+    {
+        return bitmaps.size();
+    }
+
+
+    // ----------------------------------------------------------
+    /**
+     * Get the number of bytes of pixel data in the cache.
+     * @return The number of bytes cached.
+     */
+    public long sizeInBytes()
+    {
+        return bitmaps.weightedSize();
+    }
+
+
+    // ----------------------------------------------------------
+    /**
+     * Get the maximum number of bytes of pixel data the cache holds.
+     * @return The byte budget.
+     */
+    public long maxBytes()
+    {
+        return maxBytes;
+    }
+
+
+    // ----------------------------------------------------------
+    /**
+     * Get a snapshot of the cache's hit, miss, and eviction counts.
+     * @return The cache statistics.
+     */
+    public CacheStats stats()
+    {
+        return bitmaps.stats();
+    }
+
+
+    // ----------------------------------------------------------
+    /**
+     * Get the number of bytes of pixel data in a bitmap.
+     * @param bitmap The bitmap.
+     * @return The number of bytes its pixels occupy.
+     */
+    public static int byteCount(Bitmap bitmap)
+    {
+        // Bitmap.getByteCount() requires API level 12
+        return bitmap.getRowBytes() * bitmap.getHeight();
+    }
+
+
+    // ----------------------------------------------------------
+    /**
+     * Get a human-readable representation of this cache.
+     * @return A human-readable representation of this cache.
+     */
+    public String toString()
+    {
+        return "BitmapCache[" + size() + " bitmaps, " + sizeInBytes() + "/"
+            + maxBytes + " bytes, " + stats() + "]";
+    }
+
+
+    //~ Inner classes .........................................................
+
+    // ----------------------------------------------------------
+    /**
+     * Identifies a decoded bitmap by where it came from, its name, the
+     * display density it was decoded for, whether it was scaled for that
+     * density, and the target size it was sampled to, if any.  Bitmaps
+     * decoded from the same image in different ways are different bitmaps,
+     * so they are cached separately.
+     */
+    public static class Key
+    {
+        // ----------------------------------------------------------
+        /**
+         * Creates a new key for an image decoded at its full size.
+         * @param resource    True for an Android drawable resource, false for
+         *                    an image stored on the classpath.
+         * @param packageName The package the image belongs to.
+         * @param name        The name of the image.
+         * @param density     The display density, in dots per inch, that
+         *                    the image is decoded for (or zero if unknown).
+         * @param scaleForDpi True if the image is scaled for the display
+         *                    density.
+         */
+        public Key(boolean resource, String packageName, String name,
+            int density, boolean scaleForDpi)
+        {
+            this(resource, packageName, name, density, scaleForDpi, 0, 0,
+                false);
+        }
+
+
+        // ----------------------------------------------------------
+        /**
+         * Creates a new key for an image sampled to a target size.
+         * @param resource    True for an Android drawable resource, false for
+         *                    an image stored on the classpath.
+         * @param packageName The package the image belongs to.
+         * @param name        The name of the image.
+         * @param width       The target width in pixels.
+         * @param height      The target height in pixels.
+         * @param exact       True if the image is scaled to fit the target
+         *                    size exactly.
+         * @see SampledBitmapDecoder
+         */
+        public Key(boolean resource, String packageName, String name,
+            int width, int height, boolean exact)
+        {
+            this(resource, packageName, name, 0, false, width, height, exact);
+        }
+
+
+        // ----------------------------------------------------------
+        private Key(boolean resource, String packageName, String name,
+            int density, boolean scaleForDpi, int width, int height,
+            boolean exact)
+        {
+            this.resource = resource;
+            this.packageName = packageName == null ? "" : packageName;
+            this.name = name;
+            this.density = density;
+            this.scaleForDpi = scaleForDpi;
+            this.width = width;
+            this.height = height;
+            this.exact = exact;
+
+            int h = this.packageName.hashCode();
+            h = 31 * h + name.hashCode();
+            h = 31 * h + density;
+            h = 31 * h + width;
+            h = 31 * h + height;
+            h = 8 * h + (exact ? 4 : 0) + (scaleForDpi ? 2 : 0)
+                + (resource ? 1 : 0);
+            hash = h;
+        }
+
+
+        // ----------------------------------------------------------
+        public boolean equals(Object other)
+        {
+            if (this == other)
+            {
+                return true;
+            }
+            if (!(other instanceof Key))
+            {
+                return false;
+            }
+            Key key = (Key)other;
+            return hash == key.hash
+                && resource == key.resource
+                && density == key.density
+                && scaleForDpi == key.scaleForDpi
+                && width == key.width
+                && height == key.height
+                && exact == key.exact
+                && name.equals(key.name)
+                && packageName.equals(key.packageName);
+        }
+
+
+        // ----------------------------------------------------------
+        public int hashCode()
+        {
+            return hash;
+        }
+
+
+        // ----------------------------------------------------------
+        public String toString()
+        {
+            String source = (resource ? "resource:" : "classpath:")
+                + packageName + "/" + name;
+            if (width > 0 || height > 0)
+            {
+                return source + "@" + width + "x" + height
+                    + (exact ? "" : "(sampled)");
+            }
+            return source + "@" + density
+                + (scaleForDpi ? "dpi" : "dpi(unscaled)");
+        }
+
+
+        //~ Instance/static variables .........................................
+
+        private final boolean resource;
+        private final String packageName;
+        private final String name;
+        private final int density;
+        private final boolean scaleForDpi;
+        private final int width;
+        private final int height;
+        private final boolean exact;
+        private final int hash;
+    }
+
+
+    //~ Instance/static variables .............................................
+
+    // The shared cache's default budget is this fraction of the maximum heap
+    private static final int DEFAULT_HEAP_FRACTION = 8;
+    private static final int CONCURRENCY_LEVEL = 4;
+
+    private static final MRUMap.Weigher<Key, Bitmap> BYTE_WEIGHER =
+        new MRUMap.Weigher<Key, Bitmap>() {
+            public int weigh(Key key, Bitmap bitmap)
+            {
+                return byteCount(bitmap);
+            }
+        };
+
+    private static BitmapCache shared;
+    private static long sharedMaxBytes;
+
+    private final ConcurrentMRUMap<Key, Bitmap> bitmaps;
+    private final long maxBytes;
+    private volatile BitmapPool recyclingPool;
+}
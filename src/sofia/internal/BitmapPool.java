@@ -0,0 +1,543 @@
+package sofia.internal;
+
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.LinkedList;
+import java.util.Map;
+
+import android.graphics.Bitmap;
+import android.graphics.BitmapFactory;
+import android.os.Build;
+
+//-------------------------------------------------------------------------
+/**
+ *  A pool of bitmaps that are no longer in use, whose memory can be reused
+ *  by later decodes of images of the same size.  Screens that cycle through
+ *  sprites or photos would otherwise allocate a new bitmap for every
+ *  decode, which churns the heap and causes garbage collection pauses in
+ *  the middle of animations.
+ *  <p>
+ *  Bitmaps are kept in buckets by width, height, and configuration, and the
+ *  pool holds at most a fixed number of bytes of them, discarding (and
+ *  recycling) the bitmaps from the least recently used bucket when it is
+ *  full.  Decoding into an existing bitmap requires API level 11, and
+ *  before API level 19 it only works for mutable bitmaps of exactly the
+ *  decoded size, with no sampling or density scaling.  On older platforms
+ *  the pool accepts nothing and every decode allocates a new bitmap as
+ *  usual.
+ *  </p><p>
+ *  Only bitmaps that nothing else refers to may be put in the pool, since
+ *  their pixels will be overwritten.
+ *  </p>
+ *
+ *  @author Last changed by $Author$
+ *  @version $Revision$, $Date$
+ */
+public class BitmapPool
+{
+    //~ Constructors ..........................................................
+
+    // ----------------------------------------------------------
+    /**
+     * Creates a new, empty pool.
+     * @param maxBytes The maximum number of bytes of pixel data to hold.
+     */
+    public BitmapPool(long maxBytes)
+    {
+        this.maxBytes = maxBytes;
+    }
+
+
+    //~ Public methods ........................................................
+
+    // ----------------------------------------------------------
+    /**
+     * Get the pool shared by the library, creating it on first use.  Unless
+     * {@link #setSharedMaxBytes(long)} was called first, it may hold up to a
+     * sixteenth of the VM's maximum heap size.
+     * @return The shared pool.
+     */
+    public static synchronized BitmapPool getShared()
+    {
+        if (shared == null)
+        {
+            long maxBytes = sharedMaxBytes;
+            if (maxBytes <= 0)
+            {
+                maxBytes =
+                    Runtime.getRuntime().maxMemory() / DEFAULT_HEAP_FRACTION;
+            }
+            shared = new BitmapPool(maxBytes);
+        }
+        return shared;
+    }
+
+
+    // ----------------------------------------------------------
+    /**
+     * Set the byte budget of the shared pool.  If the shared pool already
+     * exists, it is emptied and a new one with the given budget is created
+     * on next use.
+     * @param maxBytes The maximum number of bytes of pixel data to hold
+     *                 (or zero to use the default budget).
+     */
+    public static synchronized void setSharedMaxBytes(long maxBytes)
+    {
+        if (shared != null)
+        {
+            shared.clear();
+        }
+        sharedMaxBytes = maxBytes;
+        shared = null;
+    }
+
+
+    // ----------------------------------------------------------
+    /**
+     * Check whether the platform can decode images into existing bitmaps.
+     * @return True on API level 11 and later.
+     */
+    public static boolean isReuseSupported()
+    {
+        return REUSE_SUPPORTED;
+    }
+
+
+    // ----------------------------------------------------------
+    /**
+     * Give a bitmap to the pool, so that its memory can be reused.  The
+     * caller must not use the bitmap afterwards, whether or not the pool
+     * accepted it.
+     * @param bitmap The bitmap to give up.
+     * @return True if the pool kept the bitmap, false if it cannot be
+     *         reused (because it is immutable, already recycled, larger
+     *         than the whole pool, or the platform does not support reuse).
+     */
+    public boolean put(Bitmap bitmap)
+    {
+        if (!REUSE_SUPPORTED
+            || bitmap == null
+            || bitmap.isRecycled()
+            || !bitmap.isMutable())
+        {
+            return false;
+        }
+
+        int bytes = BitmapCache.byteCount(bitmap);
+        if (bytes > maxBytes)
+        {
+            return false;
+        }
+
+        Bucket bucket = new Bucket(
+            bitmap.getWidth(), bitmap.getHeight(), bitmap.getConfig());
+        synchronized (this)
+        {
+            LinkedList<Bitmap> bitmaps = buckets.get(bucket);
+            if (bitmaps == null)
+            {
+                bitmaps = new LinkedList<Bitmap>();
+                buckets.put(bucket, bitmaps);
+            }
+            else if (bitmaps.contains(bitmap))
+            {
+                return true;
+            }
+            bitmaps.addLast(bitmap);
+            sizeInBytes += bytes;
+            putCount++;
+            trimTo(maxBytes);
+        }
+        return true;
+    }
+
+
+    // ----------------------------------------------------------
+    /**
+     * Take a bitmap out of the pool.
+     * @param width  The width it must have.
+     * @param height The height it must have.
+     * @param config The configuration it must have (or null for
+     *               {@code ARGB_8888}).
+     * @return A bitmap to reuse, or null if the pool has none of that size.
+     */
+    public Bitmap take(int width, int height, Bitmap.Config config)
+    {
+        if (config == null)
+        {
+            config = Bitmap.Config.ARGB_8888;
+        }
+
+        Bucket bucket = new Bucket(width, height, config);
+        synchronized (this)
+        {
+            requestCount++;
+            LinkedList<Bitmap> bitmaps = buckets.get(bucket);
+            if (bitmaps == null || bitmaps.isEmpty())
+            {
+                return null;
+            }
+
+            Bitmap bitmap = bitmaps.removeLast();
+            if (bitmaps.isEmpty())
+            {
+                buckets.remove(bucket);
+            }
+            sizeInBytes -= BitmapCache.byteCount(bitmap);
+            return bitmap;
+        }
+    }
+
+
+    // ----------------------------------------------------------
+    /**
+     * Decode an image, reusing a pooled bitmap of the same size if there is
+     * one.  Unless the pool holds no bitmaps of the requested configuration
+     * (in which case the image is simply decoded), the image's dimensions
+     * are read first, so the source must be able to decode it more than
+     * once.  A result decoded into a pooled bitmap is always mutable, since
+     * the platform requires it.
+     * @param source  The source of the image.
+     * @param options The options to decode with (or null for defaults).
+     * @param mutable True if the caller will give the result back to the
+     *                pool when it is done with it, in which case a newly
+     *                allocated result is made mutable so that the pool can
+     *                accept it.  Callers that never give their bitmaps
+     *                back should pass false.
+     * @return The decoded image, or null if it could not be decoded.
+     */
+    public Bitmap decode(
+        SampledBitmapDecoder.Source source,
+        BitmapFactory.Options options,
+        boolean mutable)
+    {
+        if (!REUSE_SUPPORTED)
+        {
+            return source.decode(options);
+        }
+
+        if (options == null)
+        {
+            options = new BitmapFactory.Options();
+        }
+        if (mutable)
+        {
+            options.inMutable = true;
+        }
+        if (options.inSampleSize > 1)
+        {
+            // Sampled decodes cannot reuse bitmaps before API level 19
+            return source.decode(options);
+        }
+        if (!holds(options.inPreferredConfig))
+        {
+            // Nothing could be reused, so skip the bounds-only decode
+            synchronized (this)
+            {
+                requestCount++;
+            }
+            return source.decode(options);
+        }
+
+        options.inJustDecodeBounds = true;
+        source.decode(options);
+        options.inJustDecodeBounds = false;
+        if (options.outWidth <= 0 || options.outHeight <= 0
+            || isScaled(options))
+        {
+            return source.decode(options);
+        }
+
+        Bitmap reusable = take(
+            options.outWidth, options.outHeight, options.inPreferredConfig);
+        if (reusable == null)
+        {
+            return source.decode(options);
+        }
+
+        options.inBitmap = reusable;
+        Bitmap result = null;
+        try
+        {
+            result = source.decode(options);
+        }
+        catch (IllegalArgumentException e)
+        {
+            // The decoder refused the bitmap; handled below
+        }
+        finally
+        {
+            options.inBitmap = null;
+        }
+
+        if (result == null)
+        {
+            // Whether the decoder refused the bitmap or failed part way
+            // through, its pixels may have been overwritten, so it cannot go
+            // back in the pool.  Decode into a new one instead.
+            reusable.recycle();
+            return source.decode(options);
+        }
+
+        synchronized (this)
+        {
+            hitCount++;
+            bytesRecycled += BitmapCache.byteCount(result);
+        }
+        return result;
+    }
+
+
+    // ----------------------------------------------------------
+    /**
+     * Recycle every bitmap in the pool.
+     */
+    public synchronized void clear()
+    {
+        trimTo(0);
+    }
+
+
+    // ----------------------------------------------------------
+    /**
+     * Get the number of bytes of pixel data in the pool.
+     * @return The number of bytes pooled.
+     */
+    public synchronized long sizeInBytes()
+    {
+        return sizeInBytes;
+    }
+
+
+    // ----------------------------------------------------------
+    /**
+     * Get the maximum number of bytes of pixel data the pool holds.
+     * @return The byte budget.
+     */
+    public long maxBytes()
+    {
+        return maxBytes;
+    }
+
+
+    // ----------------------------------------------------------
+    /**
+     * Get the number of times a bitmap was requested from the pool.
+     * @return The request count.
+     */
+    public synchronized long requestCount()
+    {
+        return requestCount;
+    }
+
+
+    // ----------------------------------------------------------
+    /**
+     * Get the number of decodes that reused a pooled bitmap.
+     * @return The hit count.
+     */
+    public synchronized long hitCount()
+    {
+        return hitCount;
+    }
+
+
+    // ----------------------------------------------------------
+    /**
+     * Get the fraction of requests that reused a pooled bitmap.
+     * @return The hit rate, between 0 and 1 (or 0 if there were no
+     *         requests).
+     */
+    public synchronized double hitRate()
+    {
+        return requestCount == 0 ? 0.0 : (double)hitCount / requestCount;
+    }
+
+
+    // ----------------------------------------------------------
+    /**
+     * Get the total number of bytes of pixel data that decodes reused
+     * instead of allocating.
+     * @return The number of bytes recycled.
+     */
+    public synchronized long bytesRecycled()
+    {
+        return bytesRecycled;
+    }
+
+
+    // ----------------------------------------------------------
+    /**
+     * Get the number of bitmaps the pool has accepted.
+     * @return The put count.
+     */
+    public synchronized long putCount()
+    {
+        return putCount;
+    }
+
+
+    // ----------------------------------------------------------
+    /**
+     * Get the number of bitmaps the pool discarded to stay within its
+     * budget.
+     * @return The eviction count.
+     */
+    public synchronized long evictionCount()
+    {
+        return evictionCount;
+    }
+
+
+    // ----------------------------------------------------------
+    /**
+     * Get a human-readable representation of this pool.
+     * @return A human-readable representation of this pool.
+     */
+    public synchronized String toString()
+    {
+        return "BitmapPool[" + sizeInBytes + "/" + maxBytes + " bytes"
+            + ", requests=" + requestCount
+            + ", hits=" + hitCount
+            + ", hitRate=" + Math.round(hitRate() * 1000) / 10.0 + "%"
+            + ", bytesRecycled=" + bytesRecycled
+            + ", puts=" + putCount
+            + ", evictions=" + evictionCount + "]";
+    }
+
+
+    //~ Private methods .......................................................
+
+    // ----------------------------------------------------------
+    /**
+     * Check whether the pool holds any bitmaps with the given configuration
+     * (or {@code ARGB_8888} if it is null).
+     */
+    private synchronized boolean holds(Bitmap.Config config)
+    {
+        if (config == null)
+        {
+            config = Bitmap.Config.ARGB_8888;
+        }
+        for (Bucket bucket : buckets.keySet())
+        {
+            if (bucket.config == config)
+            {
+                return true;
+            }
+        }
+        return false;
+    }
+
+
+    // ----------------------------------------------------------
+    /**
+     * Check whether a decode would scale the image for the display density,
+     * which makes the decoded size differ from the size reported by a
+     * bounds-only decode.
+     */
+    private static boolean isScaled(BitmapFactory.Options options)
+    {
+        return options.inScaled
+            && options.inDensity != 0
+            && options.inTargetDensity != 0
+            && options.inDensity != options.inTargetDensity;
+    }
+
+
+    // ----------------------------------------------------------
+    /**
+     * Recycle bitmaps, starting with the least recently used bucket, until
+     * the pool holds no more than the given number of bytes.
+     */
+    private void trimTo(long limit)
+    {
+        Iterator<LinkedList<Bitmap>> iterator = buckets.values().iterator();
+        while (sizeInBytes > limit && iterator.hasNext())
+        {
+            LinkedList<Bitmap> bitmaps = iterator.next();
+            while (sizeInBytes > limit && !bitmaps.isEmpty())
+            {
+                Bitmap bitmap = bitmaps.removeFirst();
+                sizeInBytes -= BitmapCache.byteCount(bitmap);
+                bitmap.recycle();
+                evictionCount++;
+            }
+            if (bitmaps.isEmpty())
+            {
+                iterator.remove();
+            }
+        }
+    }
+
+
+    //~ Inner classes .........................................................
+
+    // ----------------------------------------------------------
+    /**
+     * The size and configuration shared by the bitmaps in one bucket.
+     */
+    private static class Bucket
+    {
+        // ----------------------------------------------------------
+        public Bucket(int width, int height, Bitmap.Config config)
+        {
+            this.width = width;
+            this.height = height;
+            this.config = config;
+        }
+
+
+        // ----------------------------------------------------------
+        public boolean equals(Object other)
+        {
+            if (!(other instanceof Bucket))
+            {
+                return false;
+            }
+            Bucket bucket = (Bucket)other;
+            return width == bucket.width
+                && height == bucket.height
+                && config == bucket.config;
+        }
+
+
+        // ----------------------------------------------------------
+        public int hashCode()
+        {
+            return (width * 31 + height) * 31
+                + (config == null ? 0 : config.ordinal());
+        }
+
+
+        //~ Instance/static variables .........................................
+
+        private final int width;
+        private final int height;
+        private final Bitmap.Config config;
+    }
+
+
+    //~ Instance/static variables .............................................
+
+    private static final boolean REUSE_SUPPORTED =
+        Build.VERSION.SDK_INT >= Build.VERSION_CODES.HONEYCOMB;
+
+    // The shared pool's default budget is this fraction of the maximum heap
+    private static final int DEFAULT_HEAP_FRACTION = 16;
+
+    private static BitmapPool shared;
+    private static long sharedMaxBytes;
+
+    private final long maxBytes;
+
+    // Buckets in access order, so the least recently used comes first
+    private final Map<Bucket, LinkedList<Bitmap>> buckets =
+        new LinkedHashMap<Bucket, LinkedList<Bitmap>>(16, 0.75f, true);
+    private long sizeInBytes;
+    private long requestCount;
+    private long hitCount;
+    private long bytesRecycled;
+    private long putCount;
+    private long evictionCount;
+}
@@ -0,0 +1,257 @@
+package sofia.internal;
+
+//-------------------------------------------------------------------------
+/**
+ *  An immutable snapshot of the activity recorded by an {@link MRUMap} (or
+ *  {@link ConcurrentMRUMap}) since statistics were turned on.  To see what
+ *  a cache did over an interval, take a snapshot at the start and end of
+ *  the interval and subtract them with {@link #minus(CacheStats)}.
+ *
+ *  @author Last changed by $Author$
+ *  @version $Revision$, $Date$
+ */
+public class CacheStats
+{
+    //~ Constructors ..........................................................
+
+    // ----------------------------------------------------------
+    /**
+     * Creates a new snapshot.
+     * @param hitCount The number of lookups that found a value.
+     * @param missCount The number of lookups that found nothing.
+     * @param loadCount The number of values stored.
+     * @param rejectionCount The number of values that the admission filter
+     *                    declined to store.
+     * @param capacityEvictionCount The number of entries removed to stay
+     *                    within the capacity or weight limit.
+     * @param ageEvictionCount The number of entries removed because they
+     *                    were older than the age limit.
+     * @param collectedCount The number of entries removed because the
+     *                    garbage collector reclaimed their values.
+     * @param removalCount The number of entries removed for any reason,
+     *                    including explicit removal and replacement.
+     * @param totalLifetimeMillis The total time that all removed entries
+     *                    spent in the map.
+     */
+    public CacheStats(
+        long hitCount,
+        long missCount,
+        long loadCount,
+        long rejectionCount,
+        long capacityEvictionCount,
+        long ageEvictionCount,
+        long collectedCount,
+        long removalCount,
+        long totalLifetimeMillis)
+    {
+        this.hitCount = hitCount;
+        this.missCount = missCount;
+        this.loadCount = loadCount;
+        this.rejectionCount = rejectionCount;
+        this.capacityEvictionCount = capacityEvictionCount;
+        this.ageEvictionCount = ageEvictionCount;
+        this.collectedCount = collectedCount;
+        this.removalCount = removalCount;
+        this.totalLifetimeMillis = totalLifetimeMillis;
+    }
+
+
+    //~ Public methods ........................................................
+
+    // ----------------------------------------------------------
+    /**
+     * Get the number of lookups that found a value.
+     * @return The hit count.
+     */
+    public long hitCount()
+    {
+        return hitCount;
+    }
+
+
+    // ----------------------------------------------------------
+    /**
+     * Get the number of lookups that found nothing.
+     * @return The miss count.
+     */
+    public long missCount()
+    {
+        return missCount;
+    }
+
+
+    // ----------------------------------------------------------
+    /**
+     * Get the fraction of lookups that found a value.
+     * @return The hit rate, between 0 and 1 (or 1 if there were no
+     * lookups).
+     */
+    public double hitRate()
+    {
+        long requests = hitCount + missCount;
+        return requests == 0 ? 1.0 : (double) hitCount / requests;
+    }
+
+
+    // ----------------------------------------------------------
+    /**
+     * Get the number of values stored in the map.
+     * @return The load count.
+     */
+    public long loadCount()
+    {
+        return loadCount;
+    }
+
+
+    // ----------------------------------------------------------
+    /**
+     * Get the number of values that the admission filter declined to store.
+     * @return The rejection count.
+     */
+    public long rejectionCount()
+    {
+        return rejectionCount;
+    }
+
+
+    // ----------------------------------------------------------
+    /**
+     * Get the number of entries removed to stay within the capacity or
+     * weight limit.
+     * @return The capacity eviction count.
+     */
+    public long capacityEvictionCount()
+    {
+        return capacityEvictionCount;
+    }
+
+
+    // ----------------------------------------------------------
+    /**
+     * Get the number of entries removed because they were older than the
+     * age limit.
+     * @return The age eviction count.
+     */
+    public long ageEvictionCount()
+    {
+        return ageEvictionCount;
+    }
+
+
+    // ----------------------------------------------------------
+    /**
+     * Get the number of entries removed because the garbage collector
+     * reclaimed their values.
+     * @return The collected count.
+     */
+    public long collectedCount()
+    {
+        return collectedCount;
+    }
+
+
+    // ----------------------------------------------------------
+    /**
+     * Get the number of entries removed for any reason.
+     * @return The removal count.
+     */
+    public long removalCount()
+    {
+        return removalCount;
+    }
+
+
+    // ----------------------------------------------------------
+    /**
+     * Get the average time that removed entries spent in the map.
+     * @return The average lifetime in milliseconds (or 0 if no entries
+     * have been removed).
+     */
+    public double averageLifetimeMillis()
+    {
+        return removalCount == 0
+            ? 0.0
+            : (double) totalLifetimeMillis / removalCount;
+    }
+
+
+    // ----------------------------------------------------------
+    /**
+     * Get the activity between an earlier snapshot and this one.
+     * @param earlier The earlier snapshot of the same cache.
+     * @return The difference between the two snapshots.
+     */
+    public CacheStats minus(CacheStats earlier)
+    {
+        return new CacheStats(
+            hitCount - earlier.hitCount,
+            missCount - earlier.missCount,
+            loadCount - earlier.loadCount,
+            rejectionCount - earlier.rejectionCount,
+            capacityEvictionCount - earlier.capacityEvictionCount,
+            ageEvictionCount - earlier.ageEvictionCount,
+            collectedCount - earlier.collectedCount,
+            removalCount - earlier.removalCount,
+            totalLifetimeMillis - earlier.totalLifetimeMillis);
+    }
+
+
+    // ----------------------------------------------------------
+    /**
+     * Get the combined activity of two caches, such as the segments of a
+     * {@link ConcurrentMRUMap}.
+     * @param other The other snapshot.
+     * @return The sum of the two snapshots.
+     */
+    public CacheStats plus(CacheStats other)
+    {
+        return new CacheStats(
+            hitCount + other.hitCount,
+            missCount + other.missCount,
+            loadCount + other.loadCount,
+            rejectionCount + other.rejectionCount,
+            capacityEvictionCount + other.capacityEvictionCount,
+            ageEvictionCount + other.ageEvictionCount,
+            collectedCount + other.collectedCount,
+            removalCount + other.removalCount,
+            totalLifetimeMillis + other.totalLifetimeMillis);
+    }
+
+
+    // ----------------------------------------------------------
+    /**
+     * Get a human-readable representation of these statistics.
+     * @return A human-readable representation of these statistics.
+     */
+    public String toString()
+    {
+        return "CacheStats[hits=" + hitCount
+            + ", misses=" + missCount
+            + ", hitRate=" + Math.round(hitRate() * 1000) / 10.0 + "%"
+            + ", loads=" + loadCount
+            + ", rejections=" + rejectionCount
+            + ", capacityEvictions=" + capacityEvictionCount
+            + ", ageEvictions=" + ageEvictionCount
+            + ", collected=" + collectedCount
+            + ", averageLifetime="
+            + Math.round(averageLifetimeMillis()) + "ms]";
+    }
+
+
+    //~ Instance/static variables .............................................
+
+    /** A snapshot with no recorded activity. */
+    public static final CacheStats EMPTY =
+        new CacheStats(0, 0, 0, 0, 0, 0, 0, 0, 0);
+
+    private final long hitCount;
+    private final long missCount;
+    private final long loadCount;
+    private final long rejectionCount;
+    private final long capacityEvictionCount;
+    private final long ageEvictionCount;
+    private final long collectedCount;
+    private final long removalCount;
+    private final long totalLifetimeMillis;
+}
@@ -0,0 +1,197 @@
+package sofia.internal;
+
+import java.io.IOException;
+import java.util.Enumeration;
+import java.util.HashSet;
+import java.util.Set;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipFile;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import android.content.Context;
+import android.os.Process;
+
+//-------------------------------------------------------------------------
+/**
+ *  An index of the images stored on the classpath, used by
+ *  {@link JarResources} to find out which of the many candidate paths for
+ *  an image actually exist without asking the class loader about each one.
+ *  Every probe through the class loader searches the application's
+ *  archive, and a single image name can have dozens of candidate paths (one
+ *  per density directory and extension), so probing is slow, especially
+ *  for images that do not exist at all.
+ *  <p>
+ *  On Android, resources from every JAR the application uses are merged
+ *  into its APK, so one scan of the APK's entries finds every image. The
+ *  index records the path of each entry that lies in an "images"
+ *  directory.  Scanning a large APK takes long enough to drop frames, so
+ *  the scan runs on a background thread started the first time the index
+ *  is asked for, and callers probe the class loader until it finishes.
+ *  If the APK cannot be read, or contains no images at all, no index is
+ *  ever available and callers keep probing.
+ *  </p>
+ *
+ *  @author Last changed by $Author$
+ *  @version $Revision$, $Date$
+ */
+class ClasspathImageIndex
+{
+    //~ Constructors ..........................................................
+
+    // ----------------------------------------------------------
+    /**
+     * Creates a new index from a set of paths.
+     * @param paths The paths of the images on the classpath.
+     */
+    private ClasspathImageIndex(Set<String> paths)
+    {
+        this.paths = paths;
+    }
+
+
+    //~ Public methods ........................................................
+
+    // ----------------------------------------------------------
+    /**
+     * Get the index for the application, if it has been built.  The first
+     * call starts building it on a background thread and returns without
+     * waiting, so this never blocks the caller.
+     * @param context The context used to find the application's archive
+     *                (or null, in which case an index can be returned only
+     *                if one has already been built).
+     * @return The index, or null if it is not available (yet).
+     */
+    public static ClasspathImageIndex getIndex(Context context)
+    {
+        ClasspathImageIndex result = index;
+        if (result == null && context != null)
+        {
+            startBuilding(context.getPackageCodePath());
+        }
+        return result;
+    }
+
+
+    // ----------------------------------------------------------
+    /**
+     * Check whether an image exists on the classpath.
+     * @param path The path of the image, relative to the root of the
+     *             classpath (no leading slash).
+     * @return True if an image exists at that path.
+     */
+    public boolean contains(String path)
+    {
+        return paths.contains(path);
+    }
+
+
+    // ----------------------------------------------------------
+    /**
+     * Get the number of images in the index.
+     * @return The number of indexed images.
+     */
+    public int size()
+    {
+        return paths.size();
+    }
+
+
+    //~ Private methods .......................................................
+
+    // ----------------------------------------------------------
+    /**
+     * Start scanning the application's archive, unless a scan has already
+     * been started.  Nothing ever waits for the scan, so it can run at
+     * background priority without holding up the UI thread.
+     */
+    private static synchronized void startBuilding(final String archivePath)
+    {
+        if (started || archivePath == null)
+        {
+            return;
+        }
+        started = true;
+
+        Thread builder = new Thread(new Runnable() {
+            public void run()
+            {
+                Process.setThreadPriority(Process.THREAD_PRIORITY_BACKGROUND);
+                index = build(archivePath);
+            }
+        }, "sofia-image-index");
+        builder.setDaemon(true);
+        builder.start();
+    }
+
+
+    // ----------------------------------------------------------
+    /**
+     * Scan an archive for image paths.  This runs on the calling thread.
+     * @param archivePath The path of the archive to scan.
+     * @return The index, or null if the archive could not be read or
+     *         contains no images.
+     */
+    static ClasspathImageIndex build(String archivePath)
+    {
+        if (archivePath == null)
+        {
+            return null;
+        }
+
+        Set<String> paths = new HashSet<String>();
+        ZipFile archive = null;
+        try
+        {
+            archive = new ZipFile(archivePath);
+            Enumeration<? extends ZipEntry> entries = archive.entries();
+            while (entries.hasMoreElements())
+            {
+                ZipEntry entry = entries.nextElement();
+                String name = entry.getName();
+                if (!entry.isDirectory()
+                    && (name.startsWith(IMAGES_DIR)
+                        || name.indexOf("/" + IMAGES_DIR) >= 0))
+                {
+                    paths.add(name);
+                }
+            }
+        }
+        catch (IOException e)
+        {
+            log.warn("Unable to index images in " + archivePath, e);
+            return null;
+        }
+        finally
+        {
+            if (archive != null)
+            {
+                try
+                {
+                    archive.close();
+                }
+                catch (IOException e)
+                {
+                    // Ignore it, since the index is already complete
+                }
+            }
+        }
+
+        return paths.isEmpty() ? null : new ClasspathImageIndex(paths);
+    }
+
+
+    //~ Instance/static variables .............................................
+
+    private static final Logger log =
+        LoggerFactory.getLogger(ClasspathImageIndex.class);
+
+    private static final String IMAGES_DIR = "images/";
+
+    // Written once, by the thread that builds the index
+    private static volatile ClasspathImageIndex index;
+    private static boolean started;
+
+    private final Set<String> paths;
+}
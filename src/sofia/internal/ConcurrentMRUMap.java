@@ -0,0 +1,1121 @@
+package sofia.internal;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executor;
+import java.util.concurrent.Future;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.atomic.AtomicLong;
+
+//-------------------------------------------------------------------------
+/**
+ *  A thread-safe version of {@link MRUMap}, with the same capacity limit,
+ *  age limit, soft values, and {@link MRUMap.Recycler} callback.  Because
+ *  every read of an {@code MRUMap} updates its access order, guarding a
+ *  single {@code MRUMap} with one lock serializes all readers.  This class
+ *  instead splits its entries among a fixed number of independent
+ *  segments, each an {@code MRUMap} with its own lock, chosen by key hash,
+ *  so that threads working with different keys rarely wait for each other.
+ *  <p>
+ *  The capacity limit is divided evenly among the segments, and each
+ *  segment evicts its own least-recently-used entries.  Eviction order is
+ *  therefore least-recently-used within a segment rather than across the
+ *  whole map, which is indistinguishable in practice for caches with more
+ *  than a few entries per segment.
+ *  </p><p>
+ *  Operations that span the whole map ({@link #size()}, {@link #keySet()},
+ *  {@link #values()}, {@link #entrySet()}, and {@link #clear()}) visit the
+ *  segments one at a time, so they are not atomic with respect to
+ *  concurrent updates, and the collections they return are snapshots.
+ *  </p>
+ *
+ *  @param <K> The type for keys
+ *  @param <V> The type for values
+ *
+ *  @author Last changed by $Author$
+ *  @version $Revision$, $Date$
+ */
+public class ConcurrentMRUMap<K, V>
+    implements Map<K, V>
+{
+    //~ Constructors ..........................................................
+
+    // ----------------------------------------------------------
+    /**
+     * Creates a new ConcurrentMRUMap with the default number of segments.
+     * @param maxCapacity The limit on the maximum number of entries this
+     *                    map should hold (or zero if there is no limit).
+     * @param ageLimitInSeconds The maximum amount of time to hold any one
+     *                    entry (or zero if there is no limit).
+     * @param recycler    The recycler to notify when values are removed
+     *                    (or null if none).
+     * @see MRUMap#MRUMap(int, long, MRUMap.Recycler)
+     */
+    public ConcurrentMRUMap(
+        int maxCapacity, long ageLimitInSeconds, MRUMap.Recycler<V> recycler)
+    {
+        this(maxCapacity, ageLimitInSeconds, recycler,
+            DEFAULT_CONCURRENCY_LEVEL);
+    }
+
+
+    // ----------------------------------------------------------
+    /**
+     * Creates a new ConcurrentMRUMap.
+     * @param maxCapacity The limit on the maximum number of entries this
+     *                    map should hold (or zero if there is no limit).
+     * @param ageLimitInSeconds The maximum amount of time to hold any one
+     *                    entry (or zero if there is no limit).
+     * @param recycler    The recycler to notify when values are removed
+     *                    (or null if none).
+     * @param concurrencyLevel The expected number of threads that will use
+     *                    the map at once.  The number of segments is the
+     *                    smallest power of two at least this large, but
+     *                    no more than the capacity limit (if any).
+     */
+    public ConcurrentMRUMap(
+        int maxCapacity,
+        long ageLimitInSeconds,
+        MRUMap.Recycler<V> recycler,
+        int concurrencyLevel)
+    {
+        this(maxCapacity, 0, null, ageLimitInSeconds, recycler,
+            concurrencyLevel);
+    }
+
+
+    // ----------------------------------------------------------
+    /**
+     * Creates a new ConcurrentMRUMap that limits the total weight of its
+     * entries.  Unlike the capacity limit, the weight limit is shared by all
+     * segments rather than divided among them, so that a single heavy entry
+     * can use more than its segment's share of the budget.  When the total
+     * weight exceeds the limit, the least recently used entries across all
+     * segments are removed until the map is back within the limit.  A value
+     * heavier than the whole limit is not stored.
+     * @param maxCapacity The limit on the maximum number of entries this
+     *                    map should hold (or zero if there is no limit).
+     * @param maxWeight   The limit on the total weight of the entries this
+     *                    map should hold (or zero if there is no limit).
+     * @param weigher     Computes the weight of each entry when it is
+     *                    added (or null, in which case each entry weighs 1).
+     * @param ageLimitInSeconds The maximum amount of time to hold any one
+     *                    entry (or zero if there is no limit).
+     * @param recycler    The recycler to notify when values are removed
+     *                    (or null if none).
+     * @param concurrencyLevel The expected number of threads that will use
+     *                    the map at once.
+     * @see MRUMap#MRUMap(int, long, MRUMap.Weigher, long, MRUMap.Recycler)
+     */
+    public ConcurrentMRUMap(
+        int maxCapacity,
+        long maxWeight,
+        MRUMap.Weigher<? super K, ? super V> weigher,
+        long ageLimitInSeconds,
+        MRUMap.Recycler<V> recycler,
+        int concurrencyLevel)
+    {
+        if (concurrencyLevel < 1)
+        {
+            throw new IllegalArgumentException(
+                "concurrencyLevel must be positive");
+        }
+
+        int segmentCount = 1;
+        while (segmentCount < concurrencyLevel
+            && segmentCount < MAX_SEGMENTS
+            && (maxCapacity == 0 || segmentCount < maxCapacity))
+        {
+            segmentCount <<= 1;
+        }
+
+        // Spread any remainder over the first segments, so the segment
+        // capacities add up to exactly maxCapacity.  There are never more
+        // segments than maxCapacity, so no segment gets a zero (unlimited)
+        // capacity by accident.
+        segments = newSegmentArray(segmentCount);
+        for (int i = 0; i < segmentCount; i++)
+        {
+            int segmentCapacity = maxCapacity / segmentCount
+                + (i < maxCapacity % segmentCount ? 1 : 0);
+            segments[i] = new MRUMap<K, V>(segmentCapacity, maxWeight,
+                weigher, ageLimitInSeconds, recycler);
+            if (maxWeight > 0)
+            {
+                segments[i].shareWeight(totalWeight);
+            }
+        }
+        segmentMask = segmentCount - 1;
+        this.maxWeight = maxWeight;
+        this.weigher = weigher;
+    }
+
+
+    //~ Public methods ........................................................
+
+    // ----------------------------------------------------------
+    /**
+     * Empty the map by removing all its elements.
+     */
+    public void clear()
+    {
+        for (MRUMap<K, V> segment : segments)
+        {
+            synchronized (segment)
+            {
+                segment.clear();
+            }
+        }
+    }
+
+
+    // ----------------------------------------------------------
+    /**
+     * Check to see if a key is in the map.
+     * @param key The key to check.
+     * @return True if an entry for the key is stored in the map.
+     */
+    public boolean containsKey(Object key)
+    {
+        MRUMap<K, V> segment = segmentFor(key);
+        synchronized (segment)
+        {
+            return segment.containsKey(key);
+        }
+    }
+
+
+    // ----------------------------------------------------------
+    /**
+     * Check to see if a value is in the map.  This operation is
+     * <b>unsupported</b> by this class.
+     * @param value The value to check.
+     * @return Always throws an UnsupportedOperationException.
+     */
+    public boolean containsValue(Object value)
+    {
+        throw new UnsupportedOperationException();
+    }
+
+
+    // ----------------------------------------------------------
+    /**
+     * Get a snapshot of all entries stored in this map.
+     * @return A set of all key/value pairs stored in the map.
+     */
+    public Set<Map.Entry<K, V>> entrySet()
+    {
+        Set<Map.Entry<K, V>> result = new HashSet<Map.Entry<K, V>>();
+        for (MRUMap<K, V> segment : segments)
+        {
+            synchronized (segment)
+            {
+                result.addAll(segment.entrySet());
+            }
+        }
+        return result;
+    }
+
+
+    // ----------------------------------------------------------
+    /**
+     * Look up the value stored for a given key.
+     * @param key The key to look up.
+     * @return The value associated with the key, or null if there is none.
+     */
+    public V get(Object key)
+    {
+        MRUMap<K, V> segment = segmentFor(key);
+        synchronized (segment)
+        {
+            return segment.get(key);
+        }
+    }
+
+
+    // ----------------------------------------------------------
+    /**
+     * Look up the value stored for a given key, loading and storing it if
+     * there is none.  Only one load runs for a given key at a time: if
+     * other threads ask for the same key while it is loading, they wait for
+     * that load and receive its result instead of starting their own.
+     * <p>
+     * If a refresh interval has been set (see
+     * {@link #setRefreshAfterWrite(long, Executor)}) and the stored value is
+     * older than that, the old value is returned immediately and a new one
+     * is loaded in the background.
+     * </p>
+     * @param key The key to look up, which must not be null.
+     * @param loader Computes the value if it is not in the map.
+     * @return The value associated with the key, or null if there is none
+     * and the loader returned null.
+     * @throws RuntimeException if the loader threw an exception (which is
+     * rethrown to every thread that was waiting for the load).
+     */
+    public V get(K key, MRUMap.Loader<? super K, ? extends V> loader)
+    {
+        MRUMap.ValueWithTimestamp<V> current = getTimestampedValue(key);
+        if (current != null && current.value != null)
+        {
+            if (refreshExecutor != null && System.currentTimeMillis()
+                - current.timestamp > refreshAfterWriteMillis)
+            {
+                refresh(key, loader);
+            }
+            return current.value;
+        }
+
+        FutureTask<V> load = newLoad(key, loader, true);
+        FutureTask<V> existing = loading.putIfAbsent(key, load);
+        if (existing == null)
+        {
+            runLoad(key, load);
+            existing = load;
+        }
+        return awaitLoad(existing);
+    }
+
+
+    // ----------------------------------------------------------
+    /**
+     * Look up the value stored for a given key without waiting, loading it
+     * on the specified executor if there is none.  Loads are shared with
+     * {@link #get(Object, MRUMap.Loader)}, so this never starts a second
+     * load of a key that is already loading.
+     * @param key The key to look up, which must not be null.
+     * @param loader Computes the value if it is not in the map.
+     * @param executor Runs the load if one is needed.
+     * @return A future holding the value (which is already complete if the
+     * value was in the map).
+     */
+    public Future<V> getAsync(
+        final K key,
+        final MRUMap.Loader<? super K, ? extends V> loader,
+        Executor executor)
+    {
+        final V value = get(key);
+        FutureTask<V> result = new FutureTask<V>(new Callable<V>() {
+            public V call()
+            {
+                return value != null ? value : get(key, loader);
+            }
+        });
+        if (value != null)
+        {
+            result.run();
+        }
+        else
+        {
+            executor.execute(result);
+        }
+        return result;
+    }
+
+
+    // ----------------------------------------------------------
+    /**
+     * Reload values in the background once they have been in the map for
+     * longer than the specified time, while continuing to return the old
+     * values until the new ones are ready.  This only applies to values
+     * read through {@link #get(Object, MRUMap.Loader)}, and is separate
+     * from the age limit, after which values are removed outright.
+     * @param refreshMillis How old a value must be before it is reloaded
+     *                    (or zero to turn refreshing off).
+     * @param executor    Runs the reloads.
+     */
+    public void setRefreshAfterWrite(long refreshMillis, Executor executor)
+    {
+        refreshAfterWriteMillis = refreshMillis;
+        refreshExecutor = refreshMillis > 0 ? executor : null;
+    }
+
+
+    // ----------------------------------------------------------
+    /**
+     * Look up the value stored for a given key, along with the time at
+     * which it was stored.
+     * @param key The key to look up.
+     * @return The value and its timestamp, or null if there is none.
+     */
+    public MRUMap.ValueWithTimestamp<V> getTimestampedValue(Object key)
+    {
+        MRUMap<K, V> segment = segmentFor(key);
+        synchronized (segment)
+        {
+            return segment.getTimestampedValue(key);
+        }
+    }
+
+
+    // ----------------------------------------------------------
+    /**
+     * Look up the timestamp associated with the cached value for a given key.
+     * @param key The key to look up.
+     * @return The timestamp value associated with the key,
+     * or 0 if there is none.
+     */
+    public long getTimestampFor(Object key)
+    {
+        MRUMap<K, V> segment = segmentFor(key);
+        synchronized (segment)
+        {
+            return segment.getTimestampFor(key);
+        }
+    }
+
+
+    // ----------------------------------------------------------
+    /**
+     * Check to see if the map has any entries at all.
+     * @return True iff the map's size is zero.
+     */
+    public boolean isEmpty()
+    {
+        for (MRUMap<K, V> segment : segments)
+        {
+            synchronized (segment)
+            {
+                if (!segment.isEmpty())
+                {
+                    return false;
+                }
+            }
+        }
+        return true;
+    }
+
+
+    // ----------------------------------------------------------
+    /**
+     * Get a snapshot of all the keys stored in this map.
+     * @return A set of all this map's keys.
+     */
+    public Set<K> keySet()
+    {
+        Set<K> result = new HashSet<K>();
+        for (MRUMap<K, V> segment : segments)
+        {
+            synchronized (segment)
+            {
+                result.addAll(segment.keySet());
+            }
+        }
+        return result;
+    }
+
+
+    // ----------------------------------------------------------
+    /**
+     * Set the value associated with a given key.
+     * @param key The key to associate.
+     * @param value The value to associate with the key.
+     * @return The previous value associated with the given key, or null if
+     * there was no value associated with the key prior to the call.
+     */
+    public V put(K key, V value)
+    {
+        MRUMap<K, V> segment = segmentFor(key);
+        int victimFrequency = -1;
+        if (maxWeight > 0 && admissionFilter && value != null)
+        {
+            victimFrequency = victimFrequencyFor(key, value);
+        }
+
+        V result;
+        synchronized (segment)
+        {
+            if (victimFrequency >= 0
+                && !segment.admitAgainst(key, victimFrequency))
+            {
+                // Not stored, so not recycled either: the caller owns it
+                return null;
+            }
+            result = segment.put(key, value);
+        }
+        if (maxWeight > 0)
+        {
+            enforceWeightLimit();
+        }
+        return result;
+    }
+
+
+    // ----------------------------------------------------------
+    /**
+     * Add all the associations stored in the given map to this map.
+     * @param otherMap The map to copy key/value pairs from.
+     */
+    public void putAll(Map<? extends K, ? extends V> otherMap)
+    {
+        if (maxWeight > 0 && admissionFilter)
+        {
+            // Each new key has to be weighed against the map as it stands
+            // after the previous one was added
+            for (Map.Entry<? extends K, ? extends V> entry
+                : otherMap.entrySet())
+            {
+                put(entry.getKey(), entry.getValue());
+            }
+            return;
+        }
+
+        List<Map<K, V>> batches = newBatches();
+        for (Map.Entry<? extends K, ? extends V> entry : otherMap.entrySet())
+        {
+            int index = segmentIndex(entry.getKey());
+            Map<K, V> batch = batches.get(index);
+            if (batch == null)
+            {
+                batch = new LinkedHashMap<K, V>();
+                batches.set(index, batch);
+            }
+            batch.put(entry.getKey(), entry.getValue());
+        }
+
+        for (int i = 0; i < segments.length; i++)
+        {
+            Map<K, V> batch = batches.get(i);
+            if (batch != null)
+            {
+                synchronized (segments[i])
+                {
+                    segments[i].putAll(batch);
+                }
+            }
+        }
+        if (maxWeight > 0)
+        {
+            enforceWeightLimit();
+        }
+    }
+
+
+    // ----------------------------------------------------------
+    /**
+     * Look up the values stored for several keys at once, locking each
+     * segment only once for all of the keys that belong to it.
+     * @param keys The keys to look up.
+     * @return A map from each key that has a value to that value.
+     * @see MRUMap#getAll(Collection)
+     */
+    public Map<K, V> getAll(Collection<? extends K> keys)
+    {
+        List<List<K>> batches = batchKeys(keys);
+        Map<K, V> result = new LinkedHashMap<K, V>();
+        for (int i = 0; i < segments.length; i++)
+        {
+            List<K> batch = batches.get(i);
+            if (batch != null)
+            {
+                synchronized (segments[i])
+                {
+                    result.putAll(segments[i].getAll(batch));
+                }
+            }
+        }
+        return result;
+    }
+
+
+    // ----------------------------------------------------------
+    /**
+     * Remove the entries for several keys at once, locking each segment
+     * only once for all of the keys that belong to it.
+     * @param keys The keys for the associations to remove.
+     * @return The number of entries that were removed.
+     * @see MRUMap#removeAll(Collection)
+     */
+    public int removeAll(Collection<? extends K> keys)
+    {
+        List<List<K>> batches = batchKeys(keys);
+        int removed = 0;
+        for (int i = 0; i < segments.length; i++)
+        {
+            List<K> batch = batches.get(i);
+            if (batch != null)
+            {
+                synchronized (segments[i])
+                {
+                    removed += segments[i].removeAll(batch);
+                }
+            }
+        }
+        return removed;
+    }
+
+
+    // ----------------------------------------------------------
+    /**
+     * Remove an entry from the map.
+     * @param key The key for the association to remove.
+     * @return The value that was associated with the key prior to the call,
+     * or null if there was none.
+     */
+    public V remove(Object key)
+    {
+        MRUMap<K, V> segment = segmentFor(key);
+        synchronized (segment)
+        {
+            return segment.remove(key);
+        }
+    }
+
+
+    // ----------------------------------------------------------
+    /**
+     * Get the number of entries stored in the map.
+     * @return The number of entries.
+     */
+    public int size()
+    {
+        int result = 0;
+        for (MRUMap<K, V> segment : segments)
+        {
+            synchronized (segment)
+            {
+                result += segment.size();
+            }
+        }
+        return result;
+    }
+
+
+    // ----------------------------------------------------------
+    /**
+     * Remove all expired and garbage-collected entries from every segment.
+     * @see MRUMap#cleanUp()
+     */
+    public void cleanUp()
+    {
+        for (MRUMap<K, V> segment : segments)
+        {
+            synchronized (segment)
+            {
+                segment.cleanUp();
+            }
+        }
+    }
+
+
+    // ----------------------------------------------------------
+    /**
+     * Start cleaning up every segment at a regular interval on a shared
+     * background thread.
+     * @param periodMillis The number of milliseconds between clean-ups.
+     * @see MRUMap#startCleaner(long)
+     */
+    public void startCleaner(long periodMillis)
+    {
+        for (MRUMap<K, V> segment : segments)
+        {
+            segment.startCleaner(periodMillis);
+        }
+    }
+
+
+    // ----------------------------------------------------------
+    /**
+     * Stop the background cleaner started by {@link #startCleaner(long)}.
+     */
+    public void stopCleaner()
+    {
+        for (MRUMap<K, V> segment : segments)
+        {
+            segment.stopCleaner();
+        }
+    }
+
+
+    // ----------------------------------------------------------
+    /**
+     * Turn statistics recording on or off for every segment.
+     * @param enabled True to record statistics, false to stop.
+     * @see MRUMap#setRecordingStats(boolean)
+     */
+    public void setRecordingStats(boolean enabled)
+    {
+        for (MRUMap<K, V> segment : segments)
+        {
+            synchronized (segment)
+            {
+                segment.setRecordingStats(enabled);
+            }
+        }
+    }
+
+
+    // ----------------------------------------------------------
+    /**
+     * Get a snapshot of the statistics recorded by all segments combined.
+     * Each segment is read under its own lock, so the snapshot is not
+     * atomic with respect to concurrent operations.
+     * @return The combined statistics.
+     * @see MRUMap#stats()
+     */
+    public CacheStats stats()
+    {
+        CacheStats result = CacheStats.EMPTY;
+        for (MRUMap<K, V> segment : segments)
+        {
+            synchronized (segment)
+            {
+                result = result.plus(segment.stats());
+            }
+        }
+        return result;
+    }
+
+
+    // ----------------------------------------------------------
+    /**
+     * Keep the most recently used entries of each segment in a hot tier
+     * that holds its values strongly.  The limits are divided evenly among
+     * the segments, in the same way as the capacity limit.
+     * @param maxHotEntries The maximum number of hot entries (or zero for no
+     *                    limit on the number).
+     * @param maxHotWeight The maximum total weight of hot entries (or zero
+     *                    for no limit on the weight).
+     * @see MRUMap#setHotTier(int, long)
+     */
+    public void setHotTier(int maxHotEntries, long maxHotWeight)
+    {
+        int count = segments.length;
+        for (int i = 0; i < count; i++)
+        {
+            // Give each segment at least one entry's worth, since zero
+            // would mean "no limit" rather than "no room"
+            int entries = maxHotEntries == 0
+                ? 0
+                : Math.max(1, maxHotEntries / count
+                    + (i < maxHotEntries % count ? 1 : 0));
+            long weight = maxHotWeight == 0
+                ? 0
+                : Math.max(1, maxHotWeight / count
+                    + (i < maxHotWeight % count ? 1 : 0));
+            synchronized (segments[i])
+            {
+                segments[i].setHotTier(entries, weight);
+            }
+        }
+    }
+
+
+    // ----------------------------------------------------------
+    /**
+     * Turn the frequency-based admission filter on or off for every
+     * segment.  Each segment keeps its own frequency counts.  If this map
+     * has a weight limit, a new key is compared against the least recently
+     * used entry of the whole map, since that is the one the shared limit
+     * would evict to make room for it; otherwise, it is compared against
+     * the least recently used entry of its own segment.
+     * @param enabled True to filter new entries, false to add them all.
+     * @see MRUMap#setAdmissionFilter(boolean)
+     */
+    public void setAdmissionFilter(boolean enabled)
+    {
+        for (MRUMap<K, V> segment : segments)
+        {
+            synchronized (segment)
+            {
+                segment.setAdmissionFilter(enabled);
+            }
+        }
+        admissionFilter = enabled;
+    }
+
+
+    // ----------------------------------------------------------
+    /**
+     * Get the total weight of the entries stored in the map.  If this map
+     * has no weigher, each entry weighs 1.
+     * @return The total weight of all entries.
+     */
+    public long weightedSize()
+    {
+        long result = 0;
+        for (MRUMap<K, V> segment : segments)
+        {
+            synchronized (segment)
+            {
+                result += segment.weightedSize();
+            }
+        }
+        return result;
+    }
+
+
+    // ----------------------------------------------------------
+    /**
+     * Get a snapshot of all the values stored in this map.
+     * @return A collection of all the values.
+     */
+    public Collection<V> values()
+    {
+        ArrayList<V> result = new ArrayList<V>();
+        for (MRUMap<K, V> segment : segments)
+        {
+            synchronized (segment)
+            {
+                result.addAll(segment.values());
+            }
+        }
+        return result;
+    }
+
+
+    // ----------------------------------------------------------
+    /**
+     * Get a human-readable representation of this map.
+     * @return A human-readable representation of this map.
+     */
+    public String toString()
+    {
+        StringBuilder result = new StringBuilder("{");
+        for (MRUMap<K, V> segment : segments)
+        {
+            synchronized (segment)
+            {
+                String contents = segment.toString();
+                // Strip the braces from each segment's representation
+                contents = contents.substring(1, contents.length() - 1);
+                if (contents.length() > 0)
+                {
+                    if (result.length() > 1)
+                    {
+                        result.append(", ");
+                    }
+                    result.append(contents);
+                }
+            }
+        }
+        return result.append('}').toString();
+    }
+
+
+    //~ Private methods .......................................................
+
+    // ----------------------------------------------------------
+    /**
+     * Find the segment responsible for a key.  The key's hash code is
+     * spread so that keys whose hash codes differ only in their upper
+     * bits still land in different segments.
+     */
+    private MRUMap<K, V> segmentFor(Object key)
+    {
+        return segments[segmentIndex(key)];
+    }
+
+
+    // ----------------------------------------------------------
+    private int segmentIndex(Object key)
+    {
+        int h = key == null ? 0 : key.hashCode();
+        h ^= (h >>> 20) ^ (h >>> 12);
+        h ^= (h >>> 7) ^ (h >>> 4);
+        return h & segmentMask;
+    }
+
+
+    // ----------------------------------------------------------
+    /**
+     * Split keys into one list per segment (null for segments with none).
+     */
+    private List<List<K>> batchKeys(Collection<? extends K> keys)
+    {
+        List<List<K>> batches = newBatches();
+        for (K key : keys)
+        {
+            int index = segmentIndex(key);
+            List<K> batch = batches.get(index);
+            if (batch == null)
+            {
+                batch = new ArrayList<K>();
+                batches.set(index, batch);
+            }
+            batch.add(key);
+        }
+        return batches;
+    }
+
+
+    // ----------------------------------------------------------
+    private <T> List<T> newBatches()
+    {
+        return new ArrayList<T>(
+            Collections.<T>nCopies(segments.length, null));
+    }
+
+
+    // ----------------------------------------------------------
+    /**
+     * Create a load that calls the loader and stores its result.  A thread
+     * that missed just before another load stored its value can still
+     * register a new load once that one has been unregistered, so unless
+     * this is a refresh, the load checks the map again first and returns
+     * the stored value instead of calling the loader a second time.
+     */
+    private FutureTask<V> newLoad(
+        final K key,
+        final MRUMap.Loader<? super K, ? extends V> loader,
+        final boolean reuseStored)
+    {
+        return new FutureTask<V>(new Callable<V>() {
+            public V call()
+            {
+                if (reuseStored)
+                {
+                    V stored = storedValue(key);
+                    if (stored != null)
+                    {
+                        return stored;
+                    }
+                }
+
+                V value = loader.load(key);
+                if (value != null)
+                {
+                    put(key, value);
+                }
+                return value;
+            }
+        });
+    }
+
+
+    // ----------------------------------------------------------
+    /**
+     * Run a load that this thread registered, then unregister it.  The
+     * value is stored before the load is unregistered, so a thread that
+     * looks it up in between finds it.  One that missed before it was
+     * stored may register a new load afterwards, which finds the stored
+     * value instead of loading it again.
+     */
+    private void runLoad(K key, FutureTask<V> load)
+    {
+        try
+        {
+            load.run();
+        }
+        finally
+        {
+            loading.remove(key, load);
+        }
+    }
+
+
+    // ----------------------------------------------------------
+    /**
+     * Get the value stored for a key, if any, without counting a miss when
+     * there is none.
+     */
+    private V storedValue(K key)
+    {
+        MRUMap<K, V> segment = segmentFor(key);
+        synchronized (segment)
+        {
+            return segment.getTimestampFor(key) != 0 ? segment.get(key) : null;
+        }
+    }
+
+
+    // ----------------------------------------------------------
+    private void refresh(
+        final K key, MRUMap.Loader<? super K, ? extends V> loader)
+    {
+        final FutureTask<V> load = newLoad(key, loader, false);
+        if (loading.putIfAbsent(key, load) == null)
+        {
+            try
+            {
+                refreshExecutor.execute(new Runnable() {
+                    public void run()
+                    {
+                        runLoad(key, load);
+                    }
+                });
+            }
+            catch (RejectedExecutionException e)
+            {
+                // Keep serving the old value; a later read will try again
+                loading.remove(key, load);
+            }
+        }
+    }
+
+
+    // ----------------------------------------------------------
+    private V awaitLoad(Future<V> load)
+    {
+        boolean interrupted = false;
+
+        try
+        {
+            while (true)
+            {
+                try
+                {
+                    return load.get();
+                }
+                catch (InterruptedException e)
+                {
+                    interrupted = true;
+                }
+                catch (ExecutionException e)
+                {
+                    Throwable cause = e.getCause();
+
+                    if (cause instanceof Error)
+                    {
+                        throw (Error) cause;
+                    }
+                    else if (cause instanceof RuntimeException)
+                    {
+                        throw (RuntimeException) cause;
+                    }
+                    else
+                    {
+                        throw new RuntimeException(cause);
+                    }
+                }
+            }
+        }
+        finally
+        {
+            if (interrupted)
+            {
+                Thread.currentThread().interrupt();
+            }
+        }
+    }
+
+
+    // ----------------------------------------------------------
+    /**
+     * Remove the least recently used entries across all segments until the
+     * total weight is back within the limit.  Only one thread evicts at a
+     * time, and it checks the shared total again before each removal, so
+     * threads that overfill the map together do not each evict on the
+     * other's behalf.
+     */
+    private void enforceWeightLimit()
+    {
+        if (totalWeight.get() <= maxWeight)
+        {
+            return;
+        }
+
+        synchronized (evictionLock)
+        {
+            while (totalWeight.get() > maxWeight)
+            {
+                MRUMap<K, V> segment = eldestSegment();
+                if (segment == null)
+                {
+                    break;
+                }
+                synchronized (segment)
+                {
+                    segment.evictEldest();
+                }
+            }
+        }
+    }
+
+
+    // ----------------------------------------------------------
+    /**
+     * If adding a value would take the map over its weight limit, get the
+     * estimated frequency of the entry that would be evicted for it, so
+     * that the value's segment can decide whether to admit it.
+     * @return The victim's frequency, or -1 if there is room for the value
+     * (or it is too heavy to store at all).
+     */
+    private int victimFrequencyFor(K key, V value)
+    {
+        int weight = weigher == null ? 1 : weigher.weigh(key, value);
+        if (weight > maxWeight || totalWeight.get() + weight <= maxWeight)
+        {
+            return -1;
+        }
+
+        MRUMap<K, V> victim = eldestSegment();
+        if (victim == null)
+        {
+            return -1;
+        }
+        synchronized (victim)
+        {
+            return victim.eldestFrequency();
+        }
+    }
+
+
+    // ----------------------------------------------------------
+    /**
+     * Find the segment holding the least recently used entry of the whole
+     * map, locking one segment at a time.
+     * @return The segment, or null if every segment is empty.
+     */
+    private MRUMap<K, V> eldestSegment()
+    {
+        MRUMap<K, V> result = null;
+        long eldestTime = 0;
+        for (MRUMap<K, V> segment : segments)
+        {
+            synchronized (segment)
+            {
+                if (!segment.isEmpty())
+                {
+                    // nanoTime() values may wrap, so compare differences
+                    long time = segment.eldestAccessTime();
+                    if (result == null || time - eldestTime < 0)
+                    {
+                        result = segment;
+                        eldestTime = time;
+                    }
+                }
+            }
+        }
+        return result;
+    }
+
+
+    // ----------------------------------------------------------
+    @SuppressWarnings({"unchecked", "rawtypes"})
+    private static <K, V> MRUMap<K, V>[] newSegmentArray(int size)
+    {
+        return new MRUMap[size];
+    }
+
+
+    //~ Instance/static variables .............................................
+
+    private static final int DEFAULT_CONCURRENCY_LEVEL = 16;
+    private static final int MAX_SEGMENTS = 1 << 16;
+
+    private final MRUMap<K, V>[] segments;
+    private final int segmentMask;
+    private final long maxWeight;
+    private final MRUMap.Weigher<? super K, ? super V> weigher;
+    private volatile boolean admissionFilter;
+
+    // The total weight of all segments, which each segment keeps up to date
+    private final AtomicLong totalWeight = new AtomicLong();
+    private final Object evictionLock = new Object();
+
+    // Loads in progress, so that concurrent misses on a key share one load
+    private final ConcurrentHashMap<K, FutureTask<V>> loading =
+        new ConcurrentHashMap<K, FutureTask<V>>();
+    private volatile long refreshAfterWriteMillis;
+    private volatile Executor refreshExecutor;
+}
@@ -0,0 +1,174 @@
+package sofia.internal;
+
+import java.util.Arrays;
+
+//-------------------------------------------------------------------------
+/**
+ *  A compact, approximate record of how often each key has been used
+ *  recently, for use as an admission filter by {@link MRUMap}.  This is a
+ *  count-min sketch with four 4-bit counters per key, so each counter
+ *  saturates at 15.  Counts only ever overestimate the true frequency,
+ *  never underestimate it.
+ *  <p>
+ *  To keep the record recent, every counter is halved once the number of
+ *  increments reaches ten times the expected number of keys, so keys that
+ *  were popular long ago gradually lose their advantage over keys that are
+ *  popular now.
+ *  </p><p>
+ *  This class is not thread-safe; the map that owns it is responsible for
+ *  synchronization.
+ *  </p>
+ *
+ *  @author Last changed by $Author$
+ *  @version $Revision$, $Date$
+ */
+public class FrequencySketch
+{
+    //~ Constructors ..........................................................
+
+    // ----------------------------------------------------------
+    /**
+     * Creates a new, empty sketch.
+     * @param expectedSize The number of distinct keys that the sketch
+     *                     should be able to tell apart, usually the
+     *                     capacity of the map that uses it.
+     */
+    public FrequencySketch(int expectedSize)
+    {
+        int size = Math.max(expectedSize, MIN_SIZE);
+        int tableSize = 1;
+        while (tableSize < size && tableSize < MAX_TABLE_SIZE)
+        {
+            tableSize <<= 1;
+        }
+        table = new long[tableSize];
+        tableMask = tableSize - 1;
+        sampleSize = 10 * size;
+    }
+
+
+    //~ Public methods ........................................................
+
+    // ----------------------------------------------------------
+    /**
+     * Estimate how many times a key has been used recently.
+     * @param key The key to look up.
+     * @return The estimated number of uses, between 0 and 15.
+     */
+    public int frequency(Object key)
+    {
+        int hash = spread(key);
+        int start = (hash & 3) << 2;
+        int frequency = MAX_COUNT;
+        for (int i = 0; i < 4; i++)
+        {
+            int index = indexOf(hash, i);
+            int count = (int) ((table[index] >>> ((start + i) << 2)) & 0xfL);
+            frequency = Math.min(frequency, count);
+        }
+        return frequency;
+    }
+
+
+    // ----------------------------------------------------------
+    /**
+     * Record a use of a key.
+     * @param key The key that was used.
+     */
+    public void increment(Object key)
+    {
+        int hash = spread(key);
+        int start = (hash & 3) << 2;
+        boolean added = false;
+        for (int i = 0; i < 4; i++)
+        {
+            int index = indexOf(hash, i);
+            added |= incrementAt(index, start + i);
+        }
+
+        if (added && ++additions >= sampleSize)
+        {
+            reset();
+        }
+    }
+
+
+    // ----------------------------------------------------------
+    /**
+     * Forget all recorded uses.
+     */
+    public void clear()
+    {
+        Arrays.fill(table, 0L);
+        additions = 0;
+    }
+
+
+    //~ Private methods .......................................................
+
+    // ----------------------------------------------------------
+    private boolean incrementAt(int index, int counter)
+    {
+        int shift = counter << 2;
+        long mask = 0xfL << shift;
+        if ((table[index] & mask) != mask)
+        {
+            table[index] += 1L << shift;
+            return true;
+        }
+        return false;
+    }
+
+
+    // ----------------------------------------------------------
+    /**
+     * Halve every counter, so that old uses count for less than new ones.
+     */
+    private void reset()
+    {
+        for (int i = 0; i < table.length; i++)
+        {
+            table[i] = (table[i] >>> 1) & RESET_MASK;
+        }
+        additions >>>= 1;
+    }
+
+
+    // ----------------------------------------------------------
+    private int indexOf(int hash, int i)
+    {
+        long h = (hash + SEEDS[i]) * SEEDS[i];
+        h += h >>> 32;
+        return ((int) h) & tableMask;
+    }
+
+
+    // ----------------------------------------------------------
+    private static int spread(Object key)
+    {
+        int h = key == null ? 0 : key.hashCode();
+        h = ((h >>> 16) ^ h) * 0x45d9f3b;
+        h = ((h >>> 16) ^ h) * 0x45d9f3b;
+        return (h >>> 16) ^ h;
+    }
+
+
+    //~ Instance/static variables .............................................
+
+    private static final int MIN_SIZE = 16;
+    private static final int MAX_TABLE_SIZE = 1 << 24;
+    private static final int MAX_COUNT = 15;
+
+    // Clears the high bit of each 4-bit counter after a right shift
+    private static final long RESET_MASK = 0x7777777777777777L;
+
+    private static final long[] SEEDS = {
+        0xc3a5c85c97cb3127L, 0xb492b66fbe98f273L,
+        0x9ae16a3b2f90404fL, 0xcbf29ce484222325L
+    };
+
+    private final long[] table;
+    private final int tableMask;
+    private final int sampleSize;
+    private int additions;
+}
@@ -0,0 +1,317 @@
+package sofia.internal;
+
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import android.content.Context;
+import android.graphics.Bitmap;
+import android.os.Process;
+import android.os.SystemClock;
+
+//-------------------------------------------------------------------------
+/**
+ * Decodes a set of images in the background and puts them in the shared
+ * {@link BitmapCache}, so that a screen can load its sprites during a splash
+ * screen or while its layout inflates, instead of on the UI thread the first
+ * time each one is drawn.  Instances are created by
+ * {@link JarResources#prefetch(Context, String...)}, and serve as a handle
+ * for following the progress of the prefetch.
+ * <p>
+ * Images are decoded on a small pool of daemon threads shared by all
+ * prefetches.  Requesting an image while it is being prefetched does not
+ * decode it twice; the request waits for the prefetch's decode instead.
+ * Because the UI thread may wait on them, the threads run only slightly
+ * below normal priority rather than at background priority, which would
+ * put them in the background scheduling group and leave the UI thread
+ * waiting on a thread that barely gets the CPU.
+ * </p>
+ *
+ * @author  Last changed by $Author$
+ * @version $Revision$, $Date$
+ */
+public class ImagePrefetch
+{
+    //~ Fields ................................................................
+
+    private static final Logger log =
+        LoggerFactory.getLogger(ImagePrefetch.class);
+
+    private static final int MAX_THREADS = 2;
+    private static ExecutorService executor;
+
+    private final Context context;
+    private final String[] names;
+    private final String[] packageNames;
+
+    private final AtomicInteger completedCount = new AtomicInteger();
+    private final AtomicInteger loadedCount = new AtomicInteger();
+    private final CountDownLatch done;
+    private volatile boolean cancelled;
+    private volatile long startTime;
+    private volatile long elapsedTime;
+
+
+    //~ Constructors ..........................................................
+
+    // ----------------------------------------------------------
+    /**
+     * Creates a new prefetch, which does nothing until it is started.
+     *
+     * @param context the context used to look up the images; only its
+     *     application context is retained
+     * @param names the names of the images to load
+     * @param packageNames the packages to search for the images, as for
+     *     {@link JarResources#getBitmap(Context, String, String...)}
+     */
+    ImagePrefetch(Context context, String[] names, String[] packageNames)
+    {
+        this.context = context.getApplicationContext();
+        this.names = names.clone();
+        this.packageNames = packageNames.clone();
+        this.done = new CountDownLatch(names.length);
+    }
+
+
+    //~ Methods ...............................................................
+
+    // ----------------------------------------------------------
+    /**
+     * Queues every image to be decoded on the shared prefetch threads.
+     */
+    void start()
+    {
+        startTime = SystemClock.uptimeMillis();
+        if (names.length == 0)
+        {
+            finish();
+            return;
+        }
+
+        ExecutorService threads = executor();
+        for (final String name : names)
+        {
+            threads.execute(new Runnable() {
+                public void run()
+                {
+                    load(name);
+                }
+            });
+        }
+    }
+
+
+    // ----------------------------------------------------------
+    /**
+     * Gets the number of images in this prefetch.
+     *
+     * @return the number of images
+     */
+    public int getTotalCount()
+    {
+        return names.length;
+    }
+
+
+    // ----------------------------------------------------------
+    /**
+     * Gets the number of images that have been processed so far, whether or
+     * not they were found.
+     *
+     * @return the number of images processed
+     */
+    public int getCompletedCount()
+    {
+        return completedCount.get();
+    }
+
+
+    // ----------------------------------------------------------
+    /**
+     * Gets the number of images that were found and are now cached.
+     *
+     * @return the number of images loaded
+     */
+    public int getLoadedCount()
+    {
+        return loadedCount.get();
+    }
+
+
+    // ----------------------------------------------------------
+    /**
+     * Gets the fraction of the images that have been processed, suitable
+     * for driving a progress bar.
+     *
+     * @return the progress, between 0 and 1
+     */
+    public float getProgress()
+    {
+        return names.length == 0
+            ? 1.0f
+            : (float) completedCount.get() / names.length;
+    }
+
+
+    // ----------------------------------------------------------
+    /**
+     * Gets a value indicating whether every image has been processed (or
+     * skipped, if the prefetch was cancelled).
+     *
+     * @return true if the prefetch has finished
+     */
+    public boolean isFinished()
+    {
+        return done.getCount() == 0;
+    }
+
+
+    // ----------------------------------------------------------
+    /**
+     * Blocks until the prefetch has finished. This should not be called on
+     * the UI thread.
+     *
+     * @throws InterruptedException if the calling thread is interrupted
+     */
+    public void await()
+        throws InterruptedException
+    {
+        done.await();
+    }
+
+
+    // ----------------------------------------------------------
+    /**
+     * Blocks until the prefetch has finished or the timeout elapses.
+     *
+     * @param timeout the longest time to wait, in milliseconds
+     * @return true if the prefetch finished, or false if the time elapsed
+     * @throws InterruptedException if the calling thread is interrupted
+     */
+    public boolean await(long timeout)
+        throws InterruptedException
+    {
+        return done.await(timeout, TimeUnit.MILLISECONDS);
+    }
+
+
+    // ----------------------------------------------------------
+    /**
+     * Skips the images that have not started decoding yet. Images that are
+     * already being decoded are still cached.
+     */
+    public void cancel()
+    {
+        cancelled = true;
+    }
+
+
+    // ----------------------------------------------------------
+    /**
+     * Gets a value indicating whether the prefetch was cancelled.
+     *
+     * @return true if {@link #cancel()} was called
+     */
+    public boolean isCancelled()
+    {
+        return cancelled;
+    }
+
+
+    // ----------------------------------------------------------
+    /**
+     * Gets the time, in milliseconds, that the prefetch took.
+     *
+     * @return the elapsed time, or 0 if the prefetch has not finished
+     */
+    public long getElapsedTime()
+    {
+        return elapsedTime;
+    }
+
+
+    // ----------------------------------------------------------
+    /**
+     * Decodes one image into the cache, unless the prefetch was cancelled.
+     *
+     * @param name the name of the image
+     */
+    private void load(String name)
+    {
+        try
+        {
+            if (!cancelled)
+            {
+                Bitmap bitmap = JarResources.getBitmap(
+                    context, name, true, true, packageNames);
+                if (bitmap != null)
+                {
+                    loadedCount.incrementAndGet();
+                }
+            }
+        }
+        catch (RuntimeException e)
+        {
+            log.warn("Unable to prefetch image " + name, e);
+        }
+        finally
+        {
+            if (completedCount.incrementAndGet() == names.length)
+            {
+                finish();
+            }
+            done.countDown();
+        }
+    }
+
+
+    // ----------------------------------------------------------
+    private void finish()
+    {
+        elapsedTime = SystemClock.uptimeMillis() - startTime;
+        log.debug("Prefetched {} of {} images in {} ms",
+            loadedCount.get(), names.length, elapsedTime);
+    }
+
+
+    // ----------------------------------------------------------
+    private static synchronized ExecutorService executor()
+    {
+        if (executor == null)
+        {
+            int threads = Math.max(1, Math.min(MAX_THREADS,
+                Runtime.getRuntime().availableProcessors()));
+            final AtomicInteger threadCount = new AtomicInteger();
+
+            // allowCoreThreadTimeOut() requires API level 9, so idle
+            // threads are kept; they are daemons, so that is harmless.
+            executor = new ThreadPoolExecutor(
+                threads, threads, 0L, TimeUnit.MILLISECONDS,
+                new LinkedBlockingQueue<Runnable>(),
+                new ThreadFactory() {
+                    public Thread newThread(final Runnable runnable)
+                    {
+                        Thread thread = new Thread(new Runnable() {
+                            public void run()
+                            {
+                                Process.setThreadPriority(
+                                    Process.THREAD_PRIORITY_DEFAULT
+                                    + Process.THREAD_PRIORITY_LESS_FAVORABLE);
+                                runnable.run();
+                            }
+                        }, "sofia-prefetch-" + threadCount.incrementAndGet());
+                        thread.setDaemon(true);
+                        return thread;
+                    }
+                });
+        }
+        return executor;
+    }
+}
@@ -1,13 +1,15 @@
 package sofia.internal;
 
+import java.io.IOException;
 import java.io.InputStream;
-import java.lang.ref.WeakReference;
 import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
 
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 import android.content.Context;
+import android.content.res.Resources;
 import android.graphics.Bitmap;
 import android.graphics.BitmapFactory;
 import android.util.DisplayMetrics;
@@ -20,7 +22,11 @@ import android.util.DisplayMetrics;
  * application projects.
  * </p><p>
  * Instead, for things like images, we store them embedded in the JARs, and
- * this class provides a better interface for accessing them.
+ * this class provides a better interface for accessing them.  Decoded
+ * images are kept in the shared {@link BitmapCache}, so repeated requests
+ * for the same image at the same density do not decode it again, and
+ * decodes reuse the memory of bitmaps in the shared {@link BitmapPool}
+ * where the platform allows it.
  * </p>
  *
  * @author Tony Allevato
@@ -121,6 +127,60 @@ public class JarResources
     }
 
 
+    // ----------------------------------------------------------
+    /**
+     * Get an image resource by name, decoded at roughly a target size
+     * instead of its full resolution.  This is much faster, and uses much
+     * less memory, for images that will be shown smaller than they are
+     * stored, such as thumbnails.  The image is looked up the same way as
+     * {@link #getBitmap(Context, String, String...)}, but it is not scaled
+     * for the display density; the target size is in pixels.
+     *
+     * @param context The context for determining the display resolution,
+     *                and also the application's package, if the image isn't
+     *                found in any of the specified package(s).
+     * @param name    The name of the image file, optionally including its
+     *                extension.
+     * @param width   The target width in pixels (or zero if the width is
+     *                not constrained).
+     * @param height  The target height in pixels (or zero if the height is
+     *                not constrained).
+     * @param exact   If true, the image will be scaled, preserving its
+     *                aspect ratio, to fit exactly within the target size.
+     *                If false, it will be decoded at the smallest
+     *                power-of-two fraction of its stored size that is at
+     *                least as large as the target size.
+     * @param packageNames The packages where the images are located
+     *                (can be omitted, to only search the application package).
+     * @return A {@code Bitmap} containing the image, or null if no
+     *     image could be found.
+     * @see SampledBitmapDecoder
+     */
+    public static Bitmap getBitmap(Context context, String name,
+        int width, int height, boolean exact, String ... packageNames)
+    {
+        Bitmap result =
+            getBitmapFromResource(context, name, width, height, exact);
+        if (result != null)
+        {
+            return result;
+        }
+
+        for (String pkgName : packageNames)
+        {
+            result = getBitmapFromClasspath(
+                context, name, pkgName, width, height, exact);
+            if (result != null)
+            {
+                return result;
+            }
+        }
+
+        return getBitmapFromClasspath(
+            context, name, context.getPackageName(), width, height, exact);
+    }
+
+
     // ----------------------------------------------------------
     /**
      * Get an image resource by name, taking the current device's DPI into
@@ -140,56 +200,72 @@ public class JarResources
      *     image could be found.
      */
     public static Bitmap getBitmapFromResource(
-        Context context, String name, boolean scaleForDpi)
+        final Context context, String name, boolean scaleForDpi)
     {
-        // trim file extension, if present
-        int pos = name.lastIndexOf('.');
-        if (pos >= 0)
-        {
-            name = name.substring(0, pos);
-        }
+        name = stripExtension(name);
         //log.debug("looking for resource named {}", name);
 
-        // Look for cached bitmap first
-        Bitmap result = null;
-        {
-            WeakReference<Bitmap> ref = RESOURCE_CACHE.get(name);
-            if (ref != null)
-            {
-                result = ref.get();
-                if (result != null)
+        final String resourceName = name;
+        final boolean scaled = scaleForDpi;
+        return BitmapCache.getShared().get(
+            new BitmapCache.Key(true, context.getPackageName(), name,
+                densityOf(context), scaleForDpi),
+            new MRUMap.Loader<BitmapCache.Key, Bitmap>() {
+                public Bitmap load(BitmapCache.Key key)
                 {
-                    //log.debug("found cached resource for {}", name);
-                    return result;
+                    return decodeResource(context, resourceName, scaled);
                 }
-            }
-        }
+            });
+    }
 
-        BitmapFactory.Options bfo = null;
-        if (!scaleForDpi)
-        {
-            bfo = new BitmapFactory.Options();
-            bfo.inScaled = false;
-        }
 
-        // First, try for a resource by this name:
-        int id = context.getResources().getIdentifier(
-            name, "drawable", context.getPackageName());
-        if (id != 0)
-        {
-            result = BitmapFactory.decodeResource(
-                context.getResources(), id, bfo);
-        }
-        if (result != null)
-        {
-            //log.debug("caching resource id {} for {}", id, name);
-            RESOURCE_CACHE.put(name, new WeakReference<Bitmap>(result));
-        }
-        else
-        {
-            //log.debug("cannot find resource {}", name);
-        }
-        return result;
+    // ----------------------------------------------------------
+    /**
+     * Get an image resource by name, decoded at roughly a target size
+     * instead of its full resolution.  The image must be a traditional
+     * Android resource, but it will be looked up by name, instead of by id.
+     *
+     * @param context The context for looking up the resource.
+     * @param name    The name of the image file, optionally including its
+     *                extension.
+     * @param width   The target width in pixels (or zero if the width is
+     *                not constrained).
+     * @param height  The target height in pixels (or zero if the height is
+     *                not constrained).
+     * @param exact   If true, the image will be scaled to fit exactly
+     *                within the target size.
+     * @return A {@code Bitmap} containing the image, or null if no
+     *     image could be found.
+     * @see #getBitmap(Context, String, int, int, boolean, String...)
+     */
+    public static Bitmap getBitmapFromResource(final Context context,
+        String name, final int width, final int height, final boolean exact)
+    {
+        name = stripExtension(name);
+        final String resourceName = name;
+        return BitmapCache.getShared().get(
+            new BitmapCache.Key(true, context.getPackageName(), name,
+                width, height, exact),
+            new MRUMap.Loader<BitmapCache.Key, Bitmap>() {
+                public Bitmap load(BitmapCache.Key key)
+                {
+                    final int id = context.getResources().getIdentifier(
+                        resourceName, "drawable", context.getPackageName());
+                    if (id == 0)
+                    {
+                        return null;
+                    }
+                    return SampledBitmapDecoder.decode(
+                        new SampledBitmapDecoder.Source() {
+                            public Bitmap decode(
+                                BitmapFactory.Options options)
+                            {
+                                return BitmapFactory.decodeResource(
+                                    context.getResources(), id, options);
+                            }
+                        }, width, height, exact);
+                }
+            });
     }
 
 
@@ -220,7 +296,8 @@ public class JarResources
      *     image could be found.
      */
     public static Bitmap getBitmapFromClasspath(
-        Context context, String name, String pkgName, boolean scaleForDpi)
+        final Context context, String name, String pkgName,
+        boolean scaleForDpi)
     {
         if (pkgName == null)
         {
@@ -228,37 +305,246 @@ public class JarResources
         }
         //log.debug("looking for image named {} in '{}'", name, pkgName);
 
-        // Look for cached bitmap first
+        final String imageName = name;
+        final String packageName = pkgName;
+        final boolean scaled = scaleForDpi;
+        return BitmapCache.getShared().get(
+            new BitmapCache.Key(false, pkgName, name, densityOf(context),
+                scaleForDpi),
+            new MRUMap.Loader<BitmapCache.Key, Bitmap>() {
+                public Bitmap load(BitmapCache.Key key)
+                {
+                    return decodeFromClasspath(
+                        context, imageName, packageName, scaled);
+                }
+            });
+    }
+
+
+    // ----------------------------------------------------------
+    /**
+     * Get an image resource by name, decoded at roughly a target size
+     * instead of its full resolution.  The image is looked up the same way
+     * as {@link #getBitmapFromClasspath(Context, String, String, boolean)},
+     * preferring the density directory that matches the device, but it is
+     * not scaled for the display density; the target size is in pixels.
+     *
+     * @param context The context for determining the display resolution.
+     *                If null, the highest resolution image will be used.
+     * @param name    The name of the image file, optionally including its
+     *                extension.
+     * @param pkgName The name of the package where the images are
+     *                located (i.e., the package containing "images/", not
+     *                including the ".images" at the end of the package
+     *                name).
+     * @param width   The target width in pixels (or zero if the width is
+     *                not constrained).
+     * @param height  The target height in pixels (or zero if the height is
+     *                not constrained).
+     * @param exact   If true, the image will be scaled to fit exactly
+     *                within the target size.
+     * @return A {@code Bitmap} containing the image, or null if no
+     *     image could be found.
+     * @see #getBitmap(Context, String, int, int, boolean, String...)
+     */
+    public static Bitmap getBitmapFromClasspath(final Context context,
+        String name, String pkgName, final int width, final int height,
+        final boolean exact)
+    {
+        if (pkgName == null)
+        {
+            pkgName = "";
+        }
+
+        final String imageName = name;
+        final String packageName = pkgName;
+        return BitmapCache.getShared().get(
+            new BitmapCache.Key(false, pkgName, name, width, height, exact),
+            new MRUMap.Loader<BitmapCache.Key, Bitmap>() {
+                public Bitmap load(BitmapCache.Key key)
+                {
+                    final Location location = locate(context,
+                        imageBase(packageName), imageName,
+                        searchPatternFor(context));
+                    if (location == MISSING)
+                    {
+                        return null;
+                    }
+                    return SampledBitmapDecoder.decode(
+                        new SampledBitmapDecoder.Source() {
+                            public Bitmap decode(
+                                BitmapFactory.Options options)
+                            {
+                                return decodeStream(location.path, options);
+                            }
+                        }, width, height, exact);
+                }
+            });
+    }
+
+
+    // ----------------------------------------------------------
+    /**
+     * Start decoding a set of images in the background, so that they are
+     * already cached when they are first drawn.  This is useful during a
+     * splash screen, or while a screen's layout inflates.  The images are
+     * looked up the same way as {@link #getBitmap(Context, String, String...)}
+     * with no packages listed: as resources, then in the application
+     * package.
+     *
+     * @param context The context for determining the display resolution
+     *                and the application's package.
+     * @param names   The names of the images to load.
+     * @return A handle for following the progress of the prefetch.
+     */
+    public static ImagePrefetch prefetch(Context context, String ... names)
+    {
+        return prefetch(context, names, new String[0]);
+    }
+
+
+    // ----------------------------------------------------------
+    /**
+     * Start decoding a set of images in the background, so that they are
+     * already cached when they are first drawn.  The images are looked up
+     * the same way as {@link #getBitmap(Context, String, String...)}.
+     *
+     * @param context The context for determining the display resolution,
+     *                and also the application's package, if an image isn't
+     *                found in any of the specified package(s).
+     * @param names   The names of the images to load.
+     * @param packageNames The packages where the images are located
+     *                (can be omitted, to only search the application package).
+     * @return A handle for following the progress of the prefetch.
+     */
+    public static ImagePrefetch prefetch(
+        Context context, String[] names, String ... packageNames)
+    {
+        ImagePrefetch prefetch =
+            new ImagePrefetch(context, names, packageNames);
+        prefetch.start();
+        return prefetch;
+    }
+
+
+    //~ Private methods .......................................................
+
+    // ----------------------------------------------------------
+    private static Bitmap decodeResource(
+        Context context, String name, boolean scaleForDpi)
+    {
+        BitmapFactory.Options bfo = null;
+        if (!scaleForDpi)
+        {
+            bfo = new BitmapFactory.Options();
+            bfo.inScaled = false;
+        }
+
+        // First, try for a resource by this name:
         Bitmap result = null;
-        Map<String, WeakReference<Bitmap>> pkgMap =
-            CLASSPATH_CACHE.get(pkgName);
-        if (pkgMap == null)
+        final Resources resources = context.getResources();
+        final int id = resources.getIdentifier(
+            name, "drawable", context.getPackageName());
+        if (id != 0)
         {
-            //log.debug("no package cache for '{}'", pkgName);
-            pkgMap = new java.util.TreeMap<String, WeakReference<Bitmap>>();
-            CLASSPATH_CACHE.put(pkgName, pkgMap);
+            result = BitmapPool.getShared().decode(
+                new SampledBitmapDecoder.Source() {
+                    public Bitmap decode(BitmapFactory.Options options)
+                    {
+                        return BitmapFactory.decodeResource(
+                            resources, id, options);
+                    }
+                }, bfo, decodeMutable());
         }
-        else
+        if (result == null)
         {
-            WeakReference<Bitmap> ref = pkgMap.get(name);
-            if (ref != null)
-            {
-                result = ref.get();
-                if (result != null)
+            //log.debug("cannot find resource {}", name);
+        }
+        return result;
+    }
+
+
+    // ----------------------------------------------------------
+    private static Bitmap decodeFromClasspath(
+        Context context, String name, String pkgName, boolean scaleForDpi)
+    {
+        Location location = locate(
+            context, imageBase(pkgName), name, searchPatternFor(context));
+        if (location == MISSING)
+        {
+            return null;
+        }
+
+        BitmapFactory.Options bfo = null;
+        if (location.density >= 0 && scaleForDpi)
+        {
+            bfo = new BitmapFactory.Options();
+            bfo.inDensity = DENSITY[location.density];
+        }
+        else if (!scaleForDpi)
+        {
+            bfo = new BitmapFactory.Options();
+            bfo.inScaled = false;
+        }
+        final String path = location.path;
+        Bitmap result = BitmapPool.getShared().decode(
+            new SampledBitmapDecoder.Source() {
+                public Bitmap decode(BitmapFactory.Options options)
                 {
-                    //log.debug("found cached image for {} in '{}'",
-                    //        name, pkgName);
-                    return result;
+                    return decodeStream(path, options);
                 }
+            }, bfo, decodeMutable());
+        if (result == null)
+        {
+            //log.debug("cannot find image {} in '{}'", name, pkgName);
+        }
+        return result;
+    }
+
+
+    // ----------------------------------------------------------
+    /**
+     * Decode an image stored on the classpath, closing its stream
+     * afterwards.
+     */
+    private static Bitmap decodeStream(
+        String path, BitmapFactory.Options options)
+    {
+        InputStream stream =
+            JarResources.class.getClassLoader().getResourceAsStream(path);
+        if (stream == null)
+        {
+            return null;
+        }
+
+        try
+        {
+            return BitmapFactory.decodeStream(stream, null, options);
+        }
+        finally
+        {
+            try
+            {
+                stream.close();
+            }
+            catch (IOException e)
+            {
+                // Ignore it, since the image has already been read
             }
         }
+    }
+
 
-        boolean hasExtension = (name.lastIndexOf('.') >= 0);
-        int foundDensity = -1;    // Density of device
+    // ----------------------------------------------------------
+    /**
+     * Choose the order in which to search the density directories for the
+     * device's display, as an index in SEARCH_PATTERN.
+     */
+    private static int searchPatternFor(Context context)
+    {
         int pattern = 0;          // search pattern, index in SEARCH_PATTERN
         if (context != null)
         {
-            // If no resource was found ...
             DisplayMetrics metrics =
                 context.getResources().getDisplayMetrics();
 
@@ -281,90 +567,138 @@ public class JarResources
             // resolution to lowest, and scale image down if necessary.
             pattern = XHDPI;
         }
+        return pattern;
+    }
+
 
-        InputStream stream = null;
-        // OK, now search using the specified package
+    // ----------------------------------------------------------
+    /**
+     * Get the classpath directory holding the images for a package.
+     */
+    private static String imageBase(String pkgName)
+    {
         String base = "";
         if (pkgName.length() > 0)
         {
             base = pkgName.replace('.', '/') + "/";
         }
-        base += "images/";
-        ClassLoader loader = JarResources.class.getClassLoader();
-        for (int attempt : SEARCH_PATTERN[pattern])
-        {
-            String dir = base + DENSITY_NAME[attempt] + "/";
+        return base + "images/";
+    }
 
-            if (hasExtension)
-            {
-                stream = loader.getResourceAsStream(dir + name);
-            }
-            else
-            {
-                for (String extension : EXTENSIONS)
-                {
-                    stream =
-                        loader.getResourceAsStream(dir + name + extension);
-                    if (stream != null)
-                    {
-                        break;
-                    }
-                }
-            }
 
-            if (stream != null)
-            {
-                foundDensity = attempt;
-                break;
-            }
+    // ----------------------------------------------------------
+    private static String stripExtension(String name)
+    {
+        // trim file extension, if present
+        int pos = name.lastIndexOf('.');
+        if (pos >= 0)
+        {
+            name = name.substring(0, pos);
         }
+        return name;
+    }
 
-        if (stream == null)
+
+    // ----------------------------------------------------------
+    /**
+     * Find where an image is stored on the classpath.  The answer, even if
+     * the image does not exist, is remembered so that later requests for
+     * the same image do not need to search again.
+     */
+    private static Location locate(
+        Context context, String base, String name, int pattern)
+    {
+        String key = pattern + ":" + base + name;
+        Location location = LOCATIONS.get(key);
+        if (location == null)
         {
-            // If we make it here, try for the default (no density) name
-            if (hasExtension)
+            ClasspathImageIndex index =
+                ClasspathImageIndex.getIndex(context);
+            location = MISSING;
+            for (int attempt : SEARCH_PATTERN[pattern])
             {
-                stream = loader.getResourceAsStream(base + name);
+                String path = findPath(
+                    index, base + DENSITY_NAME[attempt] + "/", name);
+                if (path != null)
+                {
+                    location = new Location(path, attempt);
+                    break;
+                }
             }
-            else
+            if (location == MISSING)
             {
-                for (String extension : EXTENSIONS)
+                // If we make it here, try for the default (no density) name
+                String path = findPath(index, base, name);
+                if (path != null)
                 {
-                    stream =
-                        loader.getResourceAsStream(base + name + extension);
-                    if (stream != null)
-                    {
-                        break;
-                    }
+                    location = new Location(path, -1);
                 }
             }
+            LOCATIONS.put(key, location);
         }
+        return location;
+    }
 
-        if (stream != null)
+
+    // ----------------------------------------------------------
+    /**
+     * Find the path of an image in a directory, trying each of the known
+     * extensions if the name does not have one.  Uses the index if one is
+     * available, and otherwise probes the class loader.
+     */
+    private static String findPath(
+        ClasspathImageIndex index, String dir, String name)
+    {
+        if (name.lastIndexOf('.') >= 0)
         {
-            BitmapFactory.Options bfo = null;
-            if (foundDensity >= 0 && scaleForDpi)
-            {
-                bfo = new BitmapFactory.Options();
-                bfo.inDensity = DENSITY[foundDensity];
-            }
-            else if (!scaleForDpi)
+            return exists(index, dir + name) ? dir + name : null;
+        }
+
+        for (String extension : EXTENSIONS)
+        {
+            String path = dir + name + extension;
+            if (exists(index, path))
             {
-                bfo = new BitmapFactory.Options();
-                bfo.inScaled = false;
+                return path;
             }
-            result = BitmapFactory.decodeStream(stream, null, bfo);
         }
-        if (result != null)
+        return null;
+    }
+
+
+    // ----------------------------------------------------------
+    private static boolean exists(ClasspathImageIndex index, String path)
+    {
+        if (index != null)
         {
-            //log.debug("caching image {} for package '{}'", name, pkgName);
-            pkgMap.put(name, new WeakReference<Bitmap>(result));
+            return index.contains(path);
         }
         else
         {
-            //log.debug("cannot find image {} in '{}'", name, pkgName);
+            return JarResources.class.getClassLoader().getResource(path)
+                != null;
         }
-        return result;
+    }
+
+
+    // ----------------------------------------------------------
+    /**
+     * Check whether bitmaps decoded for the shared cache should be mutable.
+     * They only need to be if the cache gives them to a pool when they
+     * leave it, since nothing else ever gives them back.
+     */
+    private static boolean decodeMutable()
+    {
+        return BitmapCache.getShared().getRecyclingPool() != null;
+    }
+
+
+    // ----------------------------------------------------------
+    private static int densityOf(Context context)
+    {
+        return context == null
+            ? 0
+            : context.getResources().getDisplayMetrics().densityDpi;
     }
 
 
@@ -419,18 +753,31 @@ public class JarResources
         ".png", ".PNG", ".gif", ".GIF", ".jpg", ".JPG", ".JPEG", ".JPEG"
     };
 
+    // Where each image was found, keyed by search pattern and path, with
+    // MISSING for images that were not found.  Classpath contents never
+    // change while the application runs, so entries never go stale.
+    private static final Map<String, Location> LOCATIONS =
+        new ConcurrentHashMap<String, Location>();
+
+    private static final Location MISSING = new Location(null, -1);
+
 
-    // These maps use weak references so the bitmaps can be reclaimed once
-    // nothing refers to them.  We don't worry about the value-less entries
-    // that remain in these maps, since the expected number of keys is
-    // only a handful anyway.
-    private static final Map<String, WeakReference<Bitmap>> RESOURCE_CACHE =
-        java.util.Collections.synchronizedMap(
-            new java.util.TreeMap<String, WeakReference<Bitmap>>());
+    //~ Inner classes .........................................................
 
-    private static final Map<String, Map<String, WeakReference<Bitmap>>>
-        CLASSPATH_CACHE =
-        java.util.Collections.synchronizedMap(
-            new java.util.TreeMap<String, Map<String, WeakReference<Bitmap>>>()
-            );
+    // ----------------------------------------------------------
+    /**
+     * The path of an image on the classpath, and the index of the density
+     * directory it was found in (or -1 if it was not in one).
+     */
+    private static class Location
+    {
+        public final String path;
+        public final int density;
+
+        public Location(String path, int density)
+        {
+            this.path = path;
+            this.density = density;
+        }
+    }
 }
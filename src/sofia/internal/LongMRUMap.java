@@ -0,0 +1,541 @@
+package sofia.internal;
+
+//-------------------------------------------------------------------------
+/**
+ *  A version of {@link MRUMap} whose keys are primitive {@code long}s, such
+ *  as timestamps or IDs, so that storing and looking up entries never boxes
+ *  a key.  Like {@code MRUMap}, it supports a capacity limit, removing the
+ *  least recently used entries to make room for new ones, and an age limit,
+ *  removing entries that were stored longer ago than the limit, and it
+ *  passes removed values to an optional {@link MRUMap.Recycler}.
+ *  <p>
+ *  Unlike {@code MRUMap}, values are held with ordinary strong references,
+ *  since this map is meant for registries whose entries must not disappear
+ *  on their own.  Entries live in open-addressed arrays (with linear
+ *  probing), and the access and age orders are kept as linked lists of
+ *  array indices, so no objects are allocated per entry.
+ *  </p><p>
+ *  This class is not thread-safe.
+ *  </p>
+ *
+ *  @param <V> The type for values
+ *
+ *  @author Last changed by $Author$
+ *  @version $Revision$, $Date$
+ */
+public class LongMRUMap<V>
+{
+    //~ Constructors ..........................................................
+
+    // ----------------------------------------------------------
+    /**
+     * Creates a new LongMRUMap.
+     * @param maxCapacity The limit on the maximum number of entries this
+     *                    map should hold (or zero if there is no limit).
+     * @param ageLimitInSeconds The maximum amount of time to hold any one
+     *                    entry (or zero if there is no limit).
+     * @param recycler    The recycler to notify when values are removed
+     *                    (or null if none).
+     * @see MRUMap#MRUMap(int, long, MRUMap.Recycler)
+     */
+    public LongMRUMap(
+        int maxCapacity, long ageLimitInSeconds, MRUMap.Recycler<V> recycler)
+    {
+        this.capacity = maxCapacity;
+        this.ageLimit = ageLimitInSeconds * 1000;
+        this.recycler = recycler;
+
+        int tableSize = MIN_TABLE_SIZE;
+        while (maxCapacity > 0 && tableSize * MAX_LOAD < maxCapacity
+            && tableSize < MAX_TABLE_SIZE)
+        {
+            tableSize <<= 1;
+        }
+        allocate(tableSize);
+    }
+
+
+    //~ Public methods ........................................................
+
+    // ----------------------------------------------------------
+    /**
+     * Empty the map by removing all its elements.  The removed values are
+     * not passed to the recycler.
+     */
+    public void clear()
+    {
+        allocate(MIN_TABLE_SIZE);
+    }
+
+
+    // ----------------------------------------------------------
+    /**
+     * Check to see if a key is in the map.
+     * @param key The key to check.
+     * @return True if an entry for the key is stored in the map.
+     */
+    public boolean containsKey(long key)
+    {
+        return liveSlot(key) >= 0;
+    }
+
+
+    // ----------------------------------------------------------
+    /**
+     * Look up the value stored for a given key, making it the most recently
+     * used entry.
+     * @param key The key to look up.
+     * @return The value associated with the key, or null if there is none.
+     */
+    @SuppressWarnings("unchecked")
+    public V get(long key)
+    {
+        int slot = liveSlot(key);
+        if (slot < 0)
+        {
+            return null;
+        }
+        unlinkAccess(slot);
+        appendAccess(slot);
+        return (V) values[slot];
+    }
+
+
+    // ----------------------------------------------------------
+    /**
+     * Look up the timestamp associated with the value for a given key.
+     * @param key The key to look up.
+     * @return The time at which the value was stored, or 0 if there is none.
+     */
+    public long getTimestampFor(long key)
+    {
+        int slot = liveSlot(key);
+        return slot < 0 ? 0L : created[slot];
+    }
+
+
+    // ----------------------------------------------------------
+    /**
+     * Check to see if the map has any entries at all.
+     * @return True iff the map's size is zero.
+     */
+    public boolean isEmpty()
+    {
+        return size() == 0;
+    }
+
+
+    // ----------------------------------------------------------
+    /**
+     * Set the value associated with a given key, making it the most
+     * recently used and most recently stored entry.
+     * @param key The key to associate.
+     * @param value The value to associate with the key (or null to remove
+     *              the key).
+     * @return The previous value associated with the given key, or null if
+     * there was no value associated with the key prior to the call.
+     */
+    @SuppressWarnings("unchecked")
+    public V put(long key, V value)
+    {
+        clearOldEntries();
+        if (value == null)
+        {
+            return remove(key);
+        }
+
+        long now = System.currentTimeMillis();
+        int slot = findSlot(key);
+        V oldValue = null;
+        if (slot >= 0)
+        {
+            oldValue = (V) values[slot];
+            unlinkAccess(slot);
+            unlinkAge(slot);
+        }
+        else
+        {
+            if (count + tombstones + 1 > table.length * MAX_LOAD)
+            {
+                // Grow only if live entries need the room; otherwise,
+                // rebuilding at the same size clears the tombstones
+                rehash(count + 1 > table.length * MAX_LOAD / 2
+                    ? table.length * 2 : table.length);
+            }
+            slot = insertionSlot(key);
+            if (state[slot] == DELETED)
+            {
+                tombstones--;
+            }
+            state[slot] = FULL;
+            table[slot] = key;
+            count++;
+        }
+
+        values[slot] = value;
+        created[slot] = now;
+        appendAccess(slot);
+        appendAge(slot);
+        if (ageLimit > 0 && nextExpiry == Long.MAX_VALUE)
+        {
+            nextExpiry = now + ageLimit + 1;
+        }
+
+        if (oldValue != null && oldValue != value && recycler != null)
+        {
+            recycler.recycle(oldValue);
+        }
+
+        while (capacity > 0 && count > capacity)
+        {
+            removeSlot(accessHead);
+        }
+        return oldValue;
+    }
+
+
+    // ----------------------------------------------------------
+    /**
+     * Remove an entry from the map.
+     * @param key The key for the association to remove.
+     * @return The value that was associated with the key prior to the call,
+     * or null if there was none.
+     */
+    public V remove(long key)
+    {
+        int slot = findSlot(key);
+        return slot < 0 ? null : removeSlot(slot);
+    }
+
+
+    // ----------------------------------------------------------
+    /**
+     * Get the number of entries stored in the map.
+     * @return The number of entries.
+     */
+    public int size()
+    {
+        clearOldEntries();
+        return count;
+    }
+
+
+    // ----------------------------------------------------------
+    /**
+     * Remove all entries that are older than the age limit, passing their
+     * values to the recycler.
+     * @see MRUMap#cleanUp()
+     */
+    public void cleanUp()
+    {
+        clearOldEntries();
+    }
+
+
+    // ----------------------------------------------------------
+    /**
+     * Get a human-readable representation of this map.
+     * @return A human-readable representation of this map, from least to
+     * most recently used.
+     */
+    public String toString()
+    {
+        StringBuilder result = new StringBuilder("{");
+        for (int slot = accessHead; slot != NONE; slot = accessNext[slot])
+        {
+            if (result.length() > 1)
+            {
+                result.append(", ");
+            }
+            result.append(table[slot]).append('=').append(values[slot]);
+        }
+        return result.append('}').toString();
+    }
+
+
+    //~ Private methods .......................................................
+
+    // ----------------------------------------------------------
+    private void allocate(int tableSize)
+    {
+        table = new long[tableSize];
+        values = new Object[tableSize];
+        created = new long[tableSize];
+        state = new byte[tableSize];
+        accessPrevious = new int[tableSize];
+        accessNext = new int[tableSize];
+        agePrevious = new int[tableSize];
+        ageNext = new int[tableSize];
+        count = 0;
+        tombstones = 0;
+        accessHead = accessTail = NONE;
+        ageHead = ageTail = NONE;
+        nextExpiry = Long.MAX_VALUE;
+    }
+
+
+    // ----------------------------------------------------------
+    /**
+     * Rebuild the table at the specified size, keeping both the access
+     * order and the age order of the entries.
+     */
+    private void rehash(int newSize)
+    {
+        long[] oldTable = table;
+        Object[] oldValues = values;
+        long[] oldCreated = created;
+        int[] oldAccessNext = accessNext;
+        int[] oldAgeNext = ageNext;
+        int oldAccessHead = accessHead;
+        int oldAgeHead = ageHead;
+        long oldNextExpiry = nextExpiry;
+
+        int[] moved = new int[oldTable.length];
+        allocate(newSize);
+
+        for (int old = oldAccessHead; old != NONE; old = oldAccessNext[old])
+        {
+            int slot = insertionSlot(oldTable[old]);
+            state[slot] = FULL;
+            table[slot] = oldTable[old];
+            values[slot] = oldValues[old];
+            created[slot] = oldCreated[old];
+            appendAccess(slot);
+            moved[old] = slot;
+            count++;
+        }
+        for (int old = oldAgeHead; old != NONE; old = oldAgeNext[old])
+        {
+            appendAge(moved[old]);
+        }
+        nextExpiry = oldNextExpiry;
+    }
+
+
+    // ----------------------------------------------------------
+    /**
+     * Find the slot holding a key, or -1 if the key is not in the table.
+     */
+    private int findSlot(long key)
+    {
+        int mask = table.length - 1;
+        int slot = hash(key) & mask;
+        while (state[slot] != EMPTY)
+        {
+            if (state[slot] == FULL && table[slot] == key)
+            {
+                return slot;
+            }
+            slot = (slot + 1) & mask;
+        }
+        return -1;
+    }
+
+
+    // ----------------------------------------------------------
+    /**
+     * Find the first free or deleted slot for a key that is known not to be
+     * in the table.
+     */
+    private int insertionSlot(long key)
+    {
+        int mask = table.length - 1;
+        int slot = hash(key) & mask;
+        while (state[slot] == FULL)
+        {
+            slot = (slot + 1) & mask;
+        }
+        return slot;
+    }
+
+
+    // ----------------------------------------------------------
+    /**
+     * Find the slot holding a key, removing the entry and returning -1 if
+     * it has expired.
+     */
+    private int liveSlot(long key)
+    {
+        int slot = findSlot(key);
+        if (slot >= 0 && ageLimit > 0
+            && System.currentTimeMillis() - created[slot] > ageLimit)
+        {
+            removeSlot(slot);
+            slot = -1;
+        }
+        return slot;
+    }
+
+
+    // ----------------------------------------------------------
+    @SuppressWarnings("unchecked")
+    private V removeSlot(int slot)
+    {
+        V result = (V) values[slot];
+        unlinkAccess(slot);
+        unlinkAge(slot);
+        values[slot] = null;
+        state[slot] = DELETED;
+        tombstones++;
+        count--;
+
+        if (recycler != null && result != null)
+        {
+            recycler.recycle(result);
+        }
+        return result;
+    }
+
+
+    // ----------------------------------------------------------
+    private void clearOldEntries()
+    {
+        if (ageLimit > 0)
+        {
+            long time = System.currentTimeMillis();
+            if (time >= nextExpiry)
+            {
+                while (ageHead != NONE && time - created[ageHead] > ageLimit)
+                {
+                    removeSlot(ageHead);
+                }
+                nextExpiry = ageHead == NONE
+                    ? Long.MAX_VALUE
+                    : created[ageHead] + ageLimit + 1;
+            }
+        }
+    }
+
+
+    // ----------------------------------------------------------
+    private void appendAccess(int slot)
+    {
+        accessPrevious[slot] = accessTail;
+        accessNext[slot] = NONE;
+        if (accessTail == NONE)
+        {
+            accessHead = slot;
+        }
+        else
+        {
+            accessNext[accessTail] = slot;
+        }
+        accessTail = slot;
+    }
+
+
+    // ----------------------------------------------------------
+    private void unlinkAccess(int slot)
+    {
+        int previous = accessPrevious[slot];
+        int next = accessNext[slot];
+        if (previous == NONE)
+        {
+            accessHead = next;
+        }
+        else
+        {
+            accessNext[previous] = next;
+        }
+        if (next == NONE)
+        {
+            accessTail = previous;
+        }
+        else
+        {
+            accessPrevious[next] = previous;
+        }
+    }
+
+
+    // ----------------------------------------------------------
+    private void appendAge(int slot)
+    {
+        agePrevious[slot] = ageTail;
+        ageNext[slot] = NONE;
+        if (ageTail == NONE)
+        {
+            ageHead = slot;
+        }
+        else
+        {
+            ageNext[ageTail] = slot;
+        }
+        ageTail = slot;
+    }
+
+
+    // ----------------------------------------------------------
+    private void unlinkAge(int slot)
+    {
+        int previous = agePrevious[slot];
+        int next = ageNext[slot];
+        if (previous == NONE)
+        {
+            ageHead = next;
+        }
+        else
+        {
+            ageNext[previous] = next;
+        }
+        if (next == NONE)
+        {
+            ageTail = previous;
+        }
+        else
+        {
+            agePrevious[next] = previous;
+        }
+    }
+
+
+    // ----------------------------------------------------------
+    /**
+     * Mix all the bits of a key into the low bits, since keys such as
+     * timestamps differ mostly in their low-order bits but are not
+     * otherwise evenly distributed.
+     */
+    private static int hash(long key)
+    {
+        key ^= key >>> 33;
+        key *= 0xff51afd7ed558ccdL;
+        key ^= key >>> 33;
+        return (int) key;
+    }
+
+
+    //~ Instance/static variables .............................................
+
+    private static final int NONE = -1;
+    private static final byte EMPTY = 0;
+    private static final byte FULL = 1;
+    private static final byte DELETED = 2;
+
+    private static final int MIN_TABLE_SIZE = 16;
+    private static final int MAX_TABLE_SIZE = 1 << 30;
+    private static final float MAX_LOAD = 0.6f;
+
+    private final int capacity;
+    private final long ageLimit;
+    private final MRUMap.Recycler<V> recycler;
+
+    private long[] table;
+    private Object[] values;
+    private long[] created;
+    private byte[] state;
+    private int count;
+    private int tombstones;
+
+    // Doubly linked lists threaded through the slots: the access list runs
+    // from least to most recently used, and the age list from oldest to
+    // newest
+    private int[] accessPrevious;
+    private int[] accessNext;
+    private int accessHead;
+    private int accessTail;
+    private int[] agePrevious;
+    private int[] ageNext;
+    private int ageHead;
+    private int ageTail;
+    private long nextExpiry;
+}
@@ -23,11 +23,20 @@ package sofia.internal;
 
 import java.lang.ref.ReferenceQueue;
 import java.lang.ref.SoftReference;
+import java.lang.ref.WeakReference;
 import java.util.ArrayList;
 import java.util.Collection;
+import java.util.Iterator;
 import java.util.LinkedHashMap;
 import java.util.Map;
+import java.util.NoSuchElementException;
 import java.util.Set;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
 
 //-------------------------------------------------------------------------
 /**
@@ -68,8 +77,44 @@ public class MRUMap<K, V>
      *                    is used on the corresponding key.
      */
     public MRUMap(int maxCapacity, long ageLimitInSeconds, Recycler<V> recycler)
+    {
+        this(maxCapacity, 0, null, ageLimitInSeconds, recycler);
+    }
+
+
+    // ----------------------------------------------------------
+    /**
+     * Creates a new MRUMap that limits the total weight of its entries,
+     * rather than (or as well as) their number.  This is the right choice
+     * for caching values whose sizes vary widely, such as bitmaps, where
+     * the weight of each entry would be its size in bytes.
+     * @param maxCapacity The limit on the maximum number of entries this
+     *                    map should hold (or zero if there is no limit).
+     * @param maxWeight   The limit on the total weight of the entries this
+     *                    map should hold (or zero if there is no limit).  If
+     *                    a non-zero limit is given, then least recently used
+     *                    entries will be removed whenever the total weight
+     *                    exceeds it.  A value that is heavier than the
+     *                    limit on its own is not stored at all (and not
+     *                    passed to the recycler, since the caller still
+     *                    owns it).
+     * @param weigher     Computes the weight of each entry when it is
+     *                    added (or null, in which case each entry weighs 1).
+     * @param ageLimitInSeconds The maximum amount of time to hold any one
+     *                    entry (or zero if there is no limit).
+     * @param recycler    The recycler to notify when values are removed
+     *                    (or null if none).
+     */
+    public MRUMap(
+        int maxCapacity,
+        long maxWeight,
+        Weigher<? super K, ? super V> weigher,
+        long ageLimitInSeconds,
+        Recycler<V> recycler)
     {
         this.recycler = recycler;
+        this.weigher = weigher;
+        this.maxWeight = maxWeight;
 
         int initialCap = (int)(maxCapacity / 0.75f + 1);
         if (initialCap < 128)
@@ -94,6 +139,8 @@ public class MRUMap<K, V>
     public void clear()
     {
         map.clear();
+        addWeight(-totalWeight);
+        nextExpiry = Long.MAX_VALUE;
         // Empty the stale reference queue completely
         while (staleRefs.poll() != null);
         initializeMRU();
@@ -109,8 +156,9 @@ public class MRUMap<K, V>
      */
     public boolean containsKey(Object key)
     {
-        clearOldEntries();
-        Data<K, V> val = map.get(key);
+        clearStaleReferences();
+        recordAccess(key);
+        Data<K, V> val = liveEntry(key, currentTimeIfNeeded());
 //		checkInvariant("containsKey");
         return val != null;
     }
@@ -124,8 +172,8 @@ public class MRUMap<K, V>
      */
     public long keyLastSetTime(Object key)
     {
-        clearOldEntries();
-        Data<K, V> val = map.get(key);
+        clearStaleReferences();
+        Data<K, V> val = liveEntry(key, currentTimeIfNeeded());
         if (val != null)
         {
             return val.creationTime();
@@ -175,14 +223,61 @@ public class MRUMap<K, V>
      */
     public V get(Object key)
     {
-        clearOldEntries();
-        V result = null;
-        Data<K, V> val = map.get(key);
-        if (val != null)
+        clearStaleReferences();
+        V result = lookup(key, currentTimeIfNeeded());
+//		checkInvariant("get");
+        return result;
+    }
+
+
+    // ----------------------------------------------------------
+    /**
+     * Look up the values stored for several keys at once.  This checks for
+     * garbage-collected values and reads the clock once for the whole
+     * batch, rather than once per key.
+     * @param keys The keys to look up.
+     * @return A map from each key that has a value to that value, in the
+     * order the keys were given.
+     */
+    public Map<K, V> getAll(Collection<? extends K> keys)
+    {
+        clearStaleReferences();
+        long now = currentTimeIfNeeded();
+        Map<K, V> result = new LinkedHashMap<K, V>();
+        for (K key : keys)
         {
-            result = getValue(val);
+            V value = lookup(key, now);
+            if (value != null)
+            {
+                result.put(key, value);
+            }
+        }
+        return result;
+    }
+
+
+    // ----------------------------------------------------------
+    /**
+     * Look up the value stored for a given key, loading and storing it if
+     * there is none.  This map is not thread-safe, so it makes no attempt
+     * to stop several threads from loading the same key at once; use
+     * {@link ConcurrentMRUMap#get(Object, MRUMap.Loader)} for that.
+     * @param key The key to look up.
+     * @param loader Computes the value if it is not in the map.
+     * @return The value associated with the key, or null if there is none
+     * and the loader returned null.
+     */
+    public V get(K key, Loader<? super K, ? extends V> loader)
+    {
+        V result = get(key);
+        if (result == null)
+        {
+            result = loader.load(key);
+            if (result != null)
+            {
+                put(key, result);
+            }
         }
-//		checkInvariant("get");
         return result;
     }
 
@@ -195,15 +290,18 @@ public class MRUMap<K, V>
      */
     public ValueWithTimestamp<V> getTimestampedValue(Object key)
     {
-        clearOldEntries();
+        clearStaleReferences();
+        recordAccess(key);
         ValueWithTimestamp<V> result = null;
-        Data<K, V> val = map.get(key);
+        Data<K, V> val = liveEntry(key, currentTimeIfNeeded());
         if (val != null)
         {
             result = new ValueWithTimestamp<V>();
             result.value = getValue(val);
             result.timestamp = val.creationTime();
+            promote(val, result.value);
         }
+        recordLookup(result != null && result.value != null);
 //      checkInvariant("get");
         return result;
     }
@@ -218,9 +316,9 @@ public class MRUMap<K, V>
      */
     public long getTimestampFor(Object key)
     {
-        clearOldEntries();
+        clearStaleReferences();
         long result = 0L;
-        Data<K, V> val = map.get(key);
+        Data<K, V> val = liveEntry(key, currentTimeIfNeeded());
         if (val != null)
         {
             result = val.creationTime();
@@ -269,216 +367,974 @@ public class MRUMap<K, V>
         clearOldEntries();
         if (value == null)
         {
-            remove(key);
-            return value;
+            remove(key);
+            return value;
+        }
+        V oldValue = internalReplace(key, value);
+
+//		checkInvariant("put");
+        return oldValue;
+    }
+
+
+    // ----------------------------------------------------------
+    /**
+     * Set the value associated with a given key.
+     * @param key The key to associate.
+     * @param value The value to associate with the key.
+     * @return The timestamp associated with the newly inserted value,
+     * or zero is the value inserted was null.
+     */
+    public long putReturningTimestamp(K key, V value)
+    {
+        clearOldEntries();
+        if (value == null)
+        {
+            remove(key);
+            return 0L;
+        }
+        Data<K, V> old = map.get(key);
+        internalRemove(old, value);
+        Data<K, V> val = internalPut(key, value, old != null);
+
+//      checkInvariant("put");
+        return val == null ? 0L : val.creationTime();
+    }
+
+
+    // ----------------------------------------------------------
+    /**
+     * Add all the associations stored in the given map to this map.
+     * @param otherMap The map to copy key/value pairs from.
+     */
+    public void putAll(Map<? extends K, ? extends V> otherMap)
+    {
+        // One expiry pass covers the whole batch
+        clearOldEntries();
+        for (Map.Entry<? extends K, ? extends V> entry : otherMap.entrySet())
+        {
+            if (entry.getValue() == null)
+            {
+                internalRemove(entry.getKey());
+            }
+            else
+            {
+                internalReplace(entry.getKey(), entry.getValue());
+            }
+        }
+//		checkInvariant("putAll");
+    }
+
+
+    // ----------------------------------------------------------
+    /**
+     * Remove the entries for several keys at once, with a single expiry
+     * pass for the whole batch.
+     * @param keys The keys for the associations to remove.
+     * @return The number of entries that were removed.
+     */
+    public int removeAll(Collection<?> keys)
+    {
+        clearOldEntries();
+        int removed = 0;
+        for (Object key : keys)
+        {
+            Data<K, V> val = map.get(key);
+            if (val != null)
+            {
+                internalRemove(val);
+                removed++;
+            }
+        }
+        return removed;
+    }
+
+
+    // ----------------------------------------------------------
+    /**
+     * Get a live view of the keys in this map, from least to most recently
+     * used.  Unlike {@link #keySet()}, iterating over the view does not
+     * copy anything, and unlike {@link #get(Object)}, it does not change
+     * which entries count as recently used.  Entries that have expired or
+     * whose values have been garbage-collected are skipped (but not
+     * removed).  Removing through the view's iterator removes the entry
+     * from the map and passes its value to the recycler; it must be called
+     * right after {@code next()}, before {@code hasNext()}.  As with any
+     * {@code LinkedHashMap}, changing the map in any other way while
+     * iterating causes a {@code ConcurrentModificationException}.
+     * @return A view of the keys.
+     */
+    public Iterable<K> keysView()
+    {
+        return new Iterable<K>() {
+            public Iterator<K> iterator()
+            {
+                return new ViewIterator<K>() {
+                    protected K current(Data<K, V> node, V value)
+                    {
+                        return node.getKey();
+                    }
+                };
+            }
+        };
+    }
+
+
+    // ----------------------------------------------------------
+    /**
+     * Get a live view of the values in this map, from least to most
+     * recently used.  See {@link #keysView()} for how the view behaves.
+     * @return A view of the values.
+     */
+    public Iterable<V> valuesView()
+    {
+        return new Iterable<V>() {
+            public Iterator<V> iterator()
+            {
+                return new ViewIterator<V>() {
+                    protected V current(Data<K, V> node, V value)
+                    {
+                        return value;
+                    }
+                };
+            }
+        };
+    }
+
+
+    // ----------------------------------------------------------
+    /**
+     * Get a live view of the entries in this map, from least to most
+     * recently used.  See {@link #keysView()} for how the view behaves.
+     * The entries do not support {@code setValue()}.
+     * @return A view of the entries.
+     */
+    public Iterable<Map.Entry<K, V>> entriesView()
+    {
+        return new Iterable<Map.Entry<K, V>>() {
+            public Iterator<Map.Entry<K, V>> iterator()
+            {
+                return new ViewIterator<Map.Entry<K, V>>() {
+                    protected Map.Entry<K, V> current(
+                        Data<K, V> node, V value)
+                    {
+                        return new ViewEntry<K, V>(node.getKey(), value);
+                    }
+                };
+            }
+        };
+    }
+
+
+    // ----------------------------------------------------------
+    /**
+     * Remove an entry from the map.
+     * @param key The key for the association to remove.
+     * @return The value that was associated with the key prior to the call,
+     * or null if there was none.
+     */
+    public V remove(Object key)
+    {
+        clearOldEntries();
+        V result = internalRemove(key);
+//		checkInvariant("remove");
+        return result;
+    }
+
+
+    // ----------------------------------------------------------
+    /**
+     * Get the number of entries stored in the map.
+     * @return The number of entries.
+     */
+    public int size()
+    {
+        clearOldEntries();
+//		checkInvariant("size");
+        return map.size();
+    }
+
+
+    // ----------------------------------------------------------
+    /**
+     * Remove all entries that are older than the age limit, and all
+     * entries whose values have been reclaimed by the garbage collector,
+     * passing their values to the recycler.  Lookups only check the age of
+     * the entry they find, so expired entries that are not looked up are
+     * otherwise only removed by the next operation that changes or
+     * measures the map; call this (or use {@link #startCleaner(long)}) if
+     * they must be recycled promptly even when the map is idle.
+     */
+    public void cleanUp()
+    {
+        clearOldEntries();
+    }
+
+
+    // ----------------------------------------------------------
+    /**
+     * Start calling {@link #cleanUp()} at a regular interval on a shared
+     * background thread, so that expired values are recycled on time even
+     * when nothing uses the map.  The cleaner holds the map weakly, so it
+     * stops by itself once the map is no longer in use.  It synchronizes on
+     * this map while it runs, so any other code that uses the map must
+     * synchronize on it as well.
+     * @param periodMillis The number of milliseconds between clean-ups.
+     */
+    public synchronized void startCleaner(long periodMillis)
+    {
+        stopCleaner();
+        cleaner = new Cleaner(this);
+        cleaner.future = cleanerExecutor().scheduleWithFixedDelay(
+            cleaner, periodMillis, periodMillis, TimeUnit.MILLISECONDS);
+    }
+
+
+    // ----------------------------------------------------------
+    /**
+     * Stop the background cleaner started by {@link #startCleaner(long)},
+     * if there is one.
+     */
+    public synchronized void stopCleaner()
+    {
+        if (cleaner != null)
+        {
+            cleaner.future.cancel(false);
+            cleaner = null;
+        }
+    }
+
+
+    // ----------------------------------------------------------
+    /**
+     * Turn statistics recording on or off.  Recording is off by default,
+     * and costs a few field updates per operation when it is on.  Turning
+     * it off discards everything recorded so far.
+     * @param enabled True to record statistics, false to stop.
+     * @see #stats()
+     */
+    public void setRecordingStats(boolean enabled)
+    {
+        if (!enabled)
+        {
+            stats = null;
+        }
+        else if (stats == null)
+        {
+            stats = new StatsCounter();
+        }
+    }
+
+
+    // ----------------------------------------------------------
+    /**
+     * Get a snapshot of the statistics recorded since recording was turned
+     * on.  Lookups are counted by {@link #get(Object)} and
+     * {@link #getTimestampedValue(Object)}; a lookup that finds an entry
+     * whose value has been reclaimed by the garbage collector counts as a
+     * miss.
+     * @return The statistics, or {@link CacheStats#EMPTY} if recording is
+     * off.
+     */
+    public CacheStats stats()
+    {
+        return stats == null ? CacheStats.EMPTY : stats.snapshot();
+    }
+
+
+    // ----------------------------------------------------------
+    /**
+     * Keep the most recently used entries in a "hot" tier that holds its
+     * values with ordinary strong references, instead of soft references
+     * that the garbage collector may clear at any time.  Entries that fall
+     * out of the hot tier are demoted to soft references, but stay in the
+     * map until they are evicted as usual or reclaimed by the garbage
+     * collector.  This keeps the hit rate predictable for the working set
+     * while still letting the rest of the map give memory back under
+     * pressure.  Hot entries are also read without dereferencing a soft
+     * reference.
+     * <p>
+     * Entries join the hot tier when they are stored or looked up, so
+     * turning the tier on does not promote existing entries until they are
+     * next used.  Pass zero for both limits to turn the tier off and demote
+     * all hot entries.
+     * </p>
+     * @param maxHotEntries The maximum number of hot entries (or zero for no
+     *                    limit on the number).
+     * @param maxHotWeight The maximum total weight of hot entries, measured
+     *                    by this map's weigher (or zero for no limit on the
+     *                    weight).
+     */
+    public void setHotTier(int maxHotEntries, long maxHotWeight)
+    {
+        hotCapacity = maxHotEntries;
+        hotMaxWeight = maxHotWeight;
+        hotTierEnabled = maxHotEntries > 0 || maxHotWeight > 0;
+
+        Data<K, V> coldest = hotSentinel.hotPrevious;
+        while (coldest != hotSentinel
+            && (!hotTierEnabled
+                || (hotCapacity > 0 && hotCount > hotCapacity)
+                || (hotMaxWeight > 0 && hotTotalWeight > hotMaxWeight)))
+        {
+            demote(coldest);
+            coldest = hotSentinel.hotPrevious;
+        }
+    }
+
+
+    // ----------------------------------------------------------
+    /**
+     * Get the number of entries in the hot tier.
+     * @return The number of values held by strong references.
+     * @see #setHotTier(int, long)
+     */
+    public int hotSize()
+    {
+        return hotCount;
+    }
+
+
+    // ----------------------------------------------------------
+    /**
+     * Turn the frequency-based admission filter on or off.  Without the
+     * filter, every new entry is added and the least recently used entry is
+     * evicted to make room for it, so a single pass over many keys that are
+     * never used again (such as scrolling once through a long list of
+     * images) flushes everything useful out of the map.  With the filter,
+     * the map keeps an approximate count of how often each key has been
+     * used recently (see {@link FrequencySketch}), and when the map is
+     * full, a new key is only added if it has been used more often than
+     * the entry that would be evicted for it.
+     * <p>
+     * A value that is not admitted is simply not stored: {@code put()}
+     * behaves as if it succeeded, but later lookups miss.  Such values are
+     * <b>not</b> passed to the recycler, since the caller still owns them.
+     * Replacing the value for a key that is already in the map is always
+     * allowed.
+     * </p>
+     * @param enabled True to filter new entries, false to add them all.
+     */
+    public void setAdmissionFilter(boolean enabled)
+    {
+        if (!enabled)
+        {
+            admissionSketch = null;
+        }
+        else if (admissionSketch == null)
+        {
+            admissionSketch = new FrequencySketch(
+                Math.max(capacity, DEFAULT_SKETCH_SIZE));
+        }
+    }
+
+
+    // ----------------------------------------------------------
+    /**
+     * Get the total weight of the entries stored in the map.  If this map
+     * has no weigher, each entry weighs 1.
+     * @return The total weight of all entries.
+     */
+    public long weightedSize()
+    {
+        clearOldEntries();
+        return totalWeight;
+    }
+
+
+    // ----------------------------------------------------------
+    /**
+     * Get a set of all the values stored in this map.
+     * @return A set of all the values.
+     */
+    public Collection<V> values()
+    {
+        clearOldEntries();
+        ArrayList<V> result = new ArrayList<V>(size());
+        for (Data<K, V> data : map.values())
+        {
+            result.add(getValue(data));
+        }
+//		checkInvariant("values");
+        return result;
+    }
+
+
+    // ----------------------------------------------------------
+    /**
+     * Get a human-readable representation of this map.
+     * @return A human-readable representation of this map.
+     */
+    public String toString()
+    {
+        return map.toString();
+    }
+
+
+    // ----------------------------------------------------------
+    /**
+     * Represents a value and a time stamp bundled together, so they
+     * can be returned as a single value.
+     * @param <V> The type of the value
+     */
+    public static class ValueWithTimestamp<V>
+    {
+        /** The value to store. */
+        public V value;
+        /** The time at which this value was last changed. */
+        public long timestamp;
+    }
+
+
+    //~ Private classes and methods ...........................................
+
+    // ----------------------------------------------------------
+    private void initializeMRU()
+    {
+        ageSentinel = new Data<K, V>(null, null, null);
+        // Form a circular list
+        ageSentinel.addCreatedAfter(ageSentinel);
+
+        hotSentinel = new Data<K, V>(null, null, null);
+        hotSentinel.hotNext = hotSentinel;
+        hotSentinel.hotPrevious = hotSentinel;
+        hotCount = 0;
+        hotTotalWeight = 0;
+    }
+
+
+    // ----------------------------------------------------------
+    private void clearOldEntries()
+    {
+        if (ageLimit > 0)
+        {
+            long time = System.currentTimeMillis();
+//		    System.out.println("clearOldEntries() at "
+//			    + formatter.format(new java.util.Date(time)));
+
+            // Nothing can have expired before the oldest entry's deadline,
+            // so the age chain is only walked when there is work to do
+            if (time >= nextExpiry)
+            {
+                Data<K, V> oldestNode = ageSentinel.older;
+                while (oldestNode != ageSentinel
+                    && (time - oldestNode.creationTime() > ageLimit))
+                {
+                    K keyToRemove = oldestNode.getKey();
+                    oldestNode = oldestNode.older;
+                    if (stats != null)
+                    {
+                        stats.ageEvictionCount++;
+                    }
+                    internalRemove(keyToRemove);
+                }
+                nextExpiry = oldestNode == ageSentinel
+                    ? Long.MAX_VALUE
+                    : oldestNode.creationTime() + ageLimit + 1;
+            }
+        }
+
+        clearStaleReferences();
+    }
+
+
+    // ----------------------------------------------------------
+    /**
+     * Remove any entries whose values have been garbage-collected.  This
+     * only polls the reference queue, so it is cheap when there are none.
+     */
+    @SuppressWarnings("unchecked")
+    private void clearStaleReferences()
+    {
+        Data<K, V> stale = (Data<K, V>)staleRefs.poll();
+        while (stale != null)
+        {
+            if (stats != null)
+            {
+                stats.collectedCount++;
+            }
+            internalRemove(stale);
+            stale = (Data<K, V>)staleRefs.poll();
+        }
+    }
+
+
+    // ----------------------------------------------------------
+    private V internalRemove(Data<K, V> val)
+    {
+        return internalRemove(val, null);
+    }
+
+
+    // ----------------------------------------------------------
+    /**
+     * Remove an entry, passing its value to the recycler unless it is the
+     * same object that is about to replace it.
+     */
+    private V internalRemove(Data<K, V> val, V replacement)
+    {
+        if (val == null)
+        {
+            return null;
+        }
+
+        // A stale reference may belong to an entry that has since been
+        // replaced, in which case the newer entry must stay
+        boolean mapped = map.get(val.getKey()) == val;
+        if (mapped)
+        {
+            map.remove(val.getKey());
+        }
+        return detach(val, mapped, replacement);
+    }
+
+
+    // ----------------------------------------------------------
+    /**
+     * Finish removing an entry that is no longer in the underlying map:
+     * unlink it, update the totals if it was still mapped, and recycle its
+     * value unless that is the same object that is about to replace it.
+     */
+    private V detach(Data<K, V> val, boolean mapped, V replacement)
+    {
+        // Read the value before clearing the reference, since clearing it
+        // (to prevent val from being added to ReferenceQueue) discards it
+        V result = getValue(val);
+        demote(val);
+        val.clear();
+
+        // defensive, since we should get here only once per instance
+        if (val.newer != null && val.older != null)
+        {
+            val.removeFromAgeChain();
+        }
+
+        if (mapped)
+        {
+            addWeight(-val.weight);
+            if (stats != null)
+            {
+                stats.removalCount++;
+                stats.totalLifetimeMillis +=
+                    System.currentTimeMillis() - val.creationTime();
+            }
+        }
+
+        if (recycler != null && result != null && result != replacement)
+        {
+            recycler.recycle(result);
+        }
+
+        return result;
+    }
+
+
+    // ----------------------------------------------------------
+    private V internalRemove(Object key)
+    {
+        return internalRemove(map.get(key));
+    }
+
+
+    // ----------------------------------------------------------
+    private V internalReplace(K key, V value)
+    {
+        Data<K, V> old = map.get(key);
+        V oldValue = internalRemove(old, value);
+        internalPut(key, value, old != null);
+        return oldValue;
+    }
+
+
+    // ----------------------------------------------------------
+    private V lookup(Object key, long now)
+    {
+        recordAccess(key);
+        V result = null;
+        Data<K, V> val = liveEntry(key, now);
+        if (val != null)
+        {
+            result = getValue(val);
+            promote(val, result);
+        }
+        recordLookup(result != null);
+        return result;
+    }
+
+
+    // ----------------------------------------------------------
+    /**
+     * Get the current time if this map has an age limit (or zero if it
+     * does not, so that maps without one never read the clock).
+     */
+    private long currentTimeIfNeeded()
+    {
+        return ageLimit > 0 ? System.currentTimeMillis() : 0L;
+    }
+
+
+    // ----------------------------------------------------------
+    private boolean isExpired(Data<K, V> val, long now)
+    {
+        return ageLimit > 0 && now - val.creationTime() > ageLimit;
+    }
+
+
+    // ----------------------------------------------------------
+    /**
+     * Look up the entry for a key, checking only that entry's age.  An
+     * expired entry is removed and treated as missing, so that lookups cost
+     * the same however many other entries are waiting to expire.
+     */
+    private Data<K, V> liveEntry(Object key, long now)
+    {
+        Data<K, V> val = map.get(key);
+        if (val != null && isExpired(val, now))
+        {
+            if (stats != null)
+            {
+                stats.ageEvictionCount++;
+            }
+            internalRemove(val);
+            val = null;
+        }
+        if (val != null && sharedWeight != null)
+        {
+            val.lastAccess = System.nanoTime();
+        }
+        return val;
+    }
+
+
+    // ----------------------------------------------------------
+    private Data<K, V> internalPut(K key, V value, boolean replacing)
+    {
+        int weight = 1;
+        if (weigher != null)
+        {
+            weight = weigher.weigh(key, value);
+            if (weight < 0)
+            {
+                throw new IllegalArgumentException(
+                    "negative weight " + weight + " for key " + key);
+            }
+        }
+
+        // A value heavier than the whole budget would only evict everything
+        // else and then itself, recycling a value the caller still owns
+        if (maxWeight > 0 && weight > maxWeight)
+        {
+            return null;
+        }
+
+        if (admissionSketch != null)
+        {
+            admissionSketch.increment(key);
+            if (!replacing && !admit(key, weight))
+            {
+                if (stats != null)
+                {
+                    stats.rejectionCount++;
+                }
+                return null;
+            }
+        }
+
+        Data<K, V> val =
+            new Data<K, V>(key, value, staleRefs, ageSentinel.newer);
+        val.weight = weight;
+        if (sharedWeight != null)
+        {
+            val.lastAccess = System.nanoTime();
+        }
+        map.put(key, val);
+        addWeight(weight);
+        if (stats != null)
+        {
+            stats.loadCount++;
+        }
+        promote(val, value);
+        if (ageLimit > 0)
+        {
+            nextExpiry = Math.min(
+                nextExpiry, val.creationTime() + ageLimit + 1);
+        }
+        evictExcessEntries();
+        return val;
+    }
+
+
+    // ----------------------------------------------------------
+    private void recordLookup(boolean hit)
+    {
+        if (stats != null)
+        {
+            if (hit)
+            {
+                stats.hitCount++;
+            }
+            else
+            {
+                stats.missCount++;
+            }
+        }
+    }
+
+
+    // ----------------------------------------------------------
+    private void recordAccess(Object key)
+    {
+        if (admissionSketch != null)
+        {
+            admissionSketch.increment(key);
         }
-        V oldValue = internalRemove(key);
-        Data<K, V> val =
-            new Data<K, V>(key, value, staleRefs, ageSentinel.newer);
-        map.put(key, val);
-
-//		checkInvariant("put");
-        return oldValue;
     }
 
 
     // ----------------------------------------------------------
     /**
-     * Set the value associated with a given key.
-     * @param key The key to associate.
-     * @param value The value to associate with the key.
-     * @return The timestamp associated with the newly inserted value,
-     * or zero is the value inserted was null.
+     * Decide whether a new entry should be added.  If there is room for it,
+     * it always is; otherwise, it has to have been used more often than
+     * the least recently used entry, which is the one that adding it would
+     * evict first.
      */
-    public long putReturningTimestamp(K key, V value)
+    private boolean admit(K key, int weight)
     {
-        clearOldEntries();
-        if (value == null)
+        boolean full = (capacity > 0 && map.size() >= capacity)
+            || (maxWeight > 0 && totalWeight + weight > maxWeight);
+        if (!full || map.isEmpty())
         {
-            remove(key);
-            return 0L;
+            return true;
         }
-        internalRemove(key);
-        Data<K, V> val =
-            new Data<K, V>(key, value, staleRefs, ageSentinel.newer);
-        map.put(key, val);
 
-//      checkInvariant("put");
-        return val.creationTime();
+        Data<K, V> victim = map.values().iterator().next();
+        return admissionSketch.frequency(key)
+            > admissionSketch.frequency(victim.getKey());
     }
 
 
     // ----------------------------------------------------------
     /**
-     * Add all the associations stored in the given map to this map.
-     * @param otherMap The map to copy key/value pairs from.
+     * Remove least recently used entries until the map is within both its
+     * capacity limit and its weight limit.  Evicted values are passed to
+     * the recycler, just like values that are removed explicitly.
      */
-    public void putAll(Map<? extends K, ? extends V> otherMap)
+    private void evictExcessEntries()
     {
-        clearOldEntries();
-        for (Map.Entry<? extends K, ? extends V> entry : otherMap.entrySet())
+        while ((capacity > 0 && map.size() > capacity)
+            || (maxWeight > 0 && totalWeight > maxWeight))
         {
-            put(entry.getKey(), entry.getValue());
+            if (evictEldest() < 0)
+            {
+                break;
+            }
         }
-//		checkInvariant("putAll");
     }
 
 
     // ----------------------------------------------------------
     /**
-     * Remove an entry from the map.
-     * @param key The key for the association to remove.
-     * @return The value that was associated with the key prior to the call,
-     * or null if there was none.
+     * Remove the least recently used entry.  This does not check the
+     * capacity or weight limits, so that a {@link ConcurrentMRUMap} can use
+     * it to enforce a weight limit shared by all of its segments.
+     * @return The weight of the entry that was removed, or -1 if the map
+     * was empty.
      */
-    public V remove(Object key)
+    long evictEldest()
     {
-        clearOldEntries();
-        V result = internalRemove(key);
-//		checkInvariant("remove");
-        return result;
+        if (map.isEmpty())
+        {
+            return -1;
+        }
+
+        Data<K, V> eldest = map.values().iterator().next();
+        long weight = eldest.weight;
+        if (stats != null)
+        {
+            stats.capacityEvictionCount++;
+        }
+        internalRemove(eldest);
+        return weight;
     }
 
 
     // ----------------------------------------------------------
     /**
-     * Get the number of entries stored in the map.
-     * @return The number of entries.
+     * Get the time at which the least recently used entry was last used,
+     * so that a {@link ConcurrentMRUMap} can find the least recently used
+     * entry across all of its segments.  Times come from
+     * {@link System#nanoTime()}, and are only recorded once
+     * {@link #shareWeight(AtomicLong)} has been called.
+     * @return The time of the eldest entry's last use, or zero if the map
+     * is empty.
      */
-    public int size()
+    long eldestAccessTime()
     {
-        clearOldEntries();
-//		checkInvariant("size");
-        return map.size();
+        if (map.isEmpty())
+        {
+            return 0;
+        }
+        return map.values().iterator().next().lastAccess;
     }
 
 
     // ----------------------------------------------------------
     /**
-     * Get a set of all the values stored in this map.
-     * @return A set of all the values.
+     * Get the admission filter's estimate of how often the least recently
+     * used entry has been used, so that a {@link ConcurrentMRUMap} can
+     * weigh a new key in another segment against it.
+     * @return The eldest entry's estimated frequency, or zero if the map
+     * is empty or has no admission filter.
      */
-    public Collection<V> values()
+    int eldestFrequency()
     {
-        clearOldEntries();
-        ArrayList<V> result = new ArrayList<V>(size());
-        for (Data<K, V> data : map.values())
+        if (admissionSketch == null || map.isEmpty())
         {
-            result.add(data.get());
+            return 0;
         }
-//		checkInvariant("values");
-        return result;
+        return admissionSketch.frequency(map.keySet().iterator().next());
     }
 
 
     // ----------------------------------------------------------
     /**
-     * Get a human-readable representation of this map.
-     * @return A human-readable representation of this map.
+     * Decide whether a new key should be added, for a
+     * {@link ConcurrentMRUMap} whose weight limit is shared by all of its
+     * segments, so that the entry it would displace may be in another
+     * segment.  As in {@link #setAdmissionFilter(boolean)}, a key that is
+     * already in the map is always admitted, and a new key must have been
+     * used more often than the entry it would displace.  A key that is
+     * admitted should then be added with {@link #put(Object, Object)},
+     * which counts this use of it; one that is not has the use and the
+     * rejection counted here.
+     * @param key The key to be added.
+     * @param victimFrequency The estimated frequency of the entry that
+     *                    would be evicted to make room for it.
+     * @return True if the key should be added.
      */
-    public String toString()
+    boolean admitAgainst(K key, int victimFrequency)
     {
-        return map.toString();
+        if (admissionSketch == null || map.containsKey(key))
+        {
+            return true;
+        }
+
+        // The put being decided on counts as a use of the key
+        if (admissionSketch.frequency(key) + 1 > victimFrequency)
+        {
+            return true;
+        }
+
+        admissionSketch.increment(key);
+        if (stats != null)
+        {
+            stats.rejectionCount++;
+        }
+        return false;
     }
 
 
     // ----------------------------------------------------------
     /**
-     * Represents a value and a time stamp bundled together, so they
-     * can be returned as a single value.
-     * @param <V> The type of the value
+     * Add this map's weight changes to a counter shared with other maps, so
+     * that a {@link ConcurrentMRUMap} can check a weight limit shared by all
+     * of its segments without locking each of them.  This also starts
+     * recording when each entry was last used.
+     * @param counter The shared counter, which this map's current weight
+     * is added to.
      */
-    public static class ValueWithTimestamp<V>
+    void shareWeight(AtomicLong counter)
     {
-        /** The value to store. */
-        public V value;
-        /** The time at which this value was last changed. */
-        public long timestamp;
+        sharedWeight = counter;
+        counter.addAndGet(totalWeight);
     }
 
 
-    //~ Private classes and methods ...........................................
-
     // ----------------------------------------------------------
-    private void initializeMRU()
+    private void addWeight(long delta)
     {
-        ageSentinel = new Data<K, V>(null, null, null);
-        // Form a circular list
-        ageSentinel.addCreatedAfter(ageSentinel);
+        totalWeight += delta;
+        if (sharedWeight != null)
+        {
+            sharedWeight.addAndGet(delta);
+        }
     }
 
 
     // ----------------------------------------------------------
-    @SuppressWarnings("unchecked")
-    private void clearOldEntries()
+    private V getValue(Data<K, V> node)
     {
-        if (ageLimit > 0)
-        {
-            long time = System.currentTimeMillis();
-//		    System.out.println("clearOldEntries() at "
-//			    + formatter.format(new java.util.Date(time)));
-            Data<K, V> oldestNode = ageSentinel.older;
-            while (oldestNode != ageSentinel
-                && (time - oldestNode.creationTime() > ageLimit))
-            {
-                K keyToRemove = oldestNode.getKey();
-                oldestNode = oldestNode.older;
-                internalRemove(keyToRemove);
-            }
-        }
-
-        // Now drain any garbage-collected references
-        Data<K, V> stale = (Data<K, V>)staleRefs.poll();
-        while (stale != null)
-        {
-            internalRemove(stale);
-            stale = (Data<K, V>)staleRefs.poll();
-        }
+        V value = node.hotValue;
+        return value != null ? value : node.get();
     }
 
 
     // ----------------------------------------------------------
-    private V internalRemove(Data<K, V> val)
+    /**
+     * Move an entry to the front of the hot tier, holding its value
+     * strongly, and demote the least recently used hot entries if the
+     * tier is now over its limits.  This does nothing if the hot tier is
+     * off or the value has already been reclaimed.
+     */
+    private void promote(Data<K, V> node, V value)
     {
-        if (val == null)
+        if (!hotTierEnabled || value == null)
         {
-            return null;
+            return;
         }
 
-        val.clear();        // prevent val from being added to ReferenceQueue
-        V result = null;
-        if (val != null)
+        if (node.hotValue != null)
         {
-            // defensive, since we should get here only once per instance
-            if (val.newer != null && val.older != null)
-            {
-                val.removeFromAgeChain();
-            }
-
-            map.remove(val.getKey());
-            result = val.get();
+            unlinkHot(node);
         }
-
-        if (recycler != null)
+        else
         {
-            recycler.recycle(result);
+            node.hotValue = value;
+            hotCount++;
+            hotTotalWeight += node.weight;
         }
 
-        return result;
+        node.hotPrevious = hotSentinel;
+        node.hotNext = hotSentinel.hotNext;
+        hotSentinel.hotNext.hotPrevious = node;
+        hotSentinel.hotNext = node;
+
+        while ((hotCapacity > 0 && hotCount > hotCapacity)
+            || (hotMaxWeight > 0 && hotTotalWeight > hotMaxWeight))
+        {
+            Data<K, V> coldest = hotSentinel.hotPrevious;
+            if (coldest == hotSentinel)
+            {
+                break;
+            }
+            demote(coldest);
+        }
     }
 
 
     // ----------------------------------------------------------
-    private V internalRemove(Object key)
+    /**
+     * Drop an entry's strong reference, leaving it in the soft tier.
+     */
+    private void demote(Data<K, V> node)
     {
-        return internalRemove(map.get(key));
+        if (node.hotValue != null)
+        {
+            unlinkHot(node);
+            node.hotValue = null;
+            hotCount--;
+            hotTotalWeight -= node.weight;
+        }
     }
 
 
     // ----------------------------------------------------------
-    private V getValue(Data<K, V> node)
+    private void unlinkHot(Data<K, V> node)
     {
-        return node.get();
+        node.hotPrevious.hotNext = node.hotNext;
+        node.hotNext.hotPrevious = node.hotPrevious;
+        node.hotNext = null;
+        node.hotPrevious = null;
     }
 
 
@@ -595,12 +1451,236 @@ public class MRUMap<K, V>
 //	}
 
 
+    // ----------------------------------------------------------
+    private static synchronized ScheduledExecutorService cleanerExecutor()
+    {
+        if (cleanerExecutor == null)
+        {
+            cleanerExecutor = Executors.newSingleThreadScheduledExecutor(
+                new ThreadFactory() {
+                    public Thread newThread(Runnable runnable)
+                    {
+                        Thread thread =
+                            new Thread(runnable, "sofia-cache-cleaner");
+                        thread.setDaemon(true);
+                        return thread;
+                    }
+                });
+        }
+        return cleanerExecutor;
+    }
+
+
     public static interface Recycler<V>
     {
         public void recycle(V value);
     }
 
 
+    // ----------------------------------------------------------
+    /**
+     * Computes the value for a key that is not in the map, for
+     * {@link MRUMap#get(Object, MRUMap.Loader)}.  Loading is usually the
+     * expensive operation that the map exists to avoid, such as decoding a
+     * bitmap.
+     * @param <K> The type for keys
+     * @param <V> The type for values
+     */
+    public static interface Loader<K, V>
+    {
+        public V load(K key);
+    }
+
+
+    // ----------------------------------------------------------
+    /**
+     * Computes the weight of an entry, for maps that limit the total weight
+     * of their entries rather than just their number.  Weights are computed
+     * once, when an entry is added, and must not be negative.
+     * @param <K> The type for keys
+     * @param <V> The type for values
+     */
+    public static interface Weigher<K, V>
+    {
+        public int weigh(K key, V value);
+    }
+
+
+    // ----------------------------------------------------------
+    /**
+     * The iterator behind {@link MRUMap#keysView()} and the other views.
+     * It walks the underlying map directly, skipping entries that have
+     * expired or been reclaimed, without touching the access order.
+     */
+    private abstract class ViewIterator<T>
+        implements Iterator<T>
+    {
+        // ----------------------------------------------------------
+        public boolean hasNext()
+        {
+            while (next == null && inner.hasNext())
+            {
+                Data<K, V> candidate = inner.next();
+                innerLast = candidate;
+                V value = getValue(candidate);
+                if (value != null && !isExpired(candidate, now))
+                {
+                    next = candidate;
+                    nextValue = value;
+                }
+            }
+            return next != null;
+        }
+
+        // ----------------------------------------------------------
+        public T next()
+        {
+            if (!hasNext())
+            {
+                throw new NoSuchElementException();
+            }
+            T result = current(next, nextValue);
+            last = next;
+            next = null;
+            nextValue = null;
+            return result;
+        }
+
+        // ----------------------------------------------------------
+        public void remove()
+        {
+            // The inner iterator can only remove the entry it returned
+            // last, which is no longer the one this iterator returned last
+            // once hasNext() has looked ahead
+            if (last == null || innerLast != last)
+            {
+                throw new IllegalStateException();
+            }
+            inner.remove();
+            detach(last, true, null);
+            last = null;
+        }
+
+        // ----------------------------------------------------------
+        protected abstract T current(Data<K, V> node, V value);
+
+        private final Iterator<Data<K, V>> inner = map.values().iterator();
+        private final long now = currentTimeIfNeeded();
+        private Data<K, V> next;
+        private V nextValue;
+        private Data<K, V> last;
+        private Data<K, V> innerLast;
+    }
+
+
+    // ----------------------------------------------------------
+    /**
+     * A key/value pair returned by {@link MRUMap#entriesView()}.
+     */
+    private static class ViewEntry<K, V>
+        implements Map.Entry<K, V>
+    {
+        // ----------------------------------------------------------
+        public ViewEntry(K key, V value)
+        {
+            this.key = key;
+            this.value = value;
+        }
+
+        // ----------------------------------------------------------
+        public K getKey()
+        {
+            return key;
+        }
+
+        // ----------------------------------------------------------
+        public V getValue()
+        {
+            return value;
+        }
+
+        // ----------------------------------------------------------
+        public V setValue(V newValue)
+        {
+            throw new UnsupportedOperationException();
+        }
+
+        // ----------------------------------------------------------
+        public String toString()
+        {
+            return key + "=" + value;
+        }
+
+        private final K key;
+        private final V value;
+    }
+
+
+    // ----------------------------------------------------------
+    /**
+     * Periodically cleans up a map, for {@link MRUMap#startCleaner(long)}.
+     * It only holds the map weakly, and cancels itself once the map has
+     * been garbage-collected.
+     */
+    private static class Cleaner
+        implements Runnable
+    {
+        // ----------------------------------------------------------
+        public Cleaner(MRUMap<?, ?> map)
+        {
+            this.map = new WeakReference<MRUMap<?, ?>>(map);
+        }
+
+        // ----------------------------------------------------------
+        public void run()
+        {
+            MRUMap<?, ?> target = map.get();
+            if (target == null)
+            {
+                if (future != null)
+                {
+                    future.cancel(false);
+                }
+                return;
+            }
+            synchronized (target)
+            {
+                target.cleanUp();
+            }
+        }
+
+        private final WeakReference<MRUMap<?, ?>> map;
+        private volatile ScheduledFuture<?> future;
+    }
+
+
+    // ----------------------------------------------------------
+    /**
+     * The running totals behind {@link MRUMap#stats()}.  Like the map
+     * itself, this is not synchronized.
+     */
+    private static class StatsCounter
+    {
+        // ----------------------------------------------------------
+        public CacheStats snapshot()
+        {
+            return new CacheStats(hitCount, missCount, loadCount,
+                rejectionCount, capacityEvictionCount, ageEvictionCount,
+                collectedCount, removalCount, totalLifetimeMillis);
+        }
+
+        private long hitCount;
+        private long missCount;
+        private long loadCount;
+        private long rejectionCount;
+        private long capacityEvictionCount;
+        private long ageEvictionCount;
+        private long collectedCount;
+        private long removalCount;
+        private long totalLifetimeMillis;
+    }
+
+
     // ----------------------------------------------------------
     /**
      * This class is a feather-weight wrapper around an entry from
@@ -729,8 +1809,15 @@ public class MRUMap<K, V>
         // ----------------------------------------------------------
         private final K key;
         private long creationTime;
+        private long lastAccess;
+        private int weight;
         private Data<K, V> older;
         private Data<K, V> newer;
+
+        // Set only while the entry is in the hot tier
+        private V hotValue;
+        private Data<K, V> hotNext;
+        private Data<K, V> hotPrevious;
     }
 
 
@@ -753,30 +1840,34 @@ public class MRUMap<K, V>
         {
             super(initialCapacity, 0.75f, true);
         }
-
-
-        // ----------------------------------------------------------
-        protected boolean removeEldestEntry(
-            java.util.Map.Entry<Key, Value> eldest)
-        {
-            boolean result = capacity > 0 && size() > capacity;
-            if (result)
-            {
-                eldest.getValue().removeFromAgeChain();
-            }
-            return result;
-        }
     }
 
 
     //~ Instance/static variables .............................................
 
     private Data<K, V> ageSentinel;
+    private Data<K, V> hotSentinel;
+    private boolean hotTierEnabled;
+    private int hotCapacity;
+    private long hotMaxWeight;
+    private int hotCount;
+    private long hotTotalWeight;
     private Map<K, Data<K, V>> map;
     private int  capacity;
+    private long maxWeight;
+    private long totalWeight;
+    private AtomicLong sharedWeight;
+    private Weigher<? super K, ? super V> weigher;
+    private FrequencySketch admissionSketch;
+    private StatsCounter stats;
     private long ageLimit;
+    private long nextExpiry = Long.MAX_VALUE;
+    private Cleaner cleaner;
     private ReferenceQueue<V> staleRefs;
     private Recycler<V> recycler;
+
+    private static final int DEFAULT_SKETCH_SIZE = 256;
+    private static ScheduledExecutorService cleanerExecutor;
 //	private static java.text.SimpleDateFormat formatter =
 //		new java.text.SimpleDateFormat("HH:mm:ss.SSS");
 }
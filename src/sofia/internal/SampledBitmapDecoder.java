@@ -0,0 +1,201 @@
+package sofia.internal;
+
+import android.graphics.Bitmap;
+import android.graphics.BitmapFactory;
+
+//-------------------------------------------------------------------------
+/**
+ *  Decodes images at roughly the size they will be shown, instead of at
+ *  their full resolution.  A photo from a camera can take tens of
+ *  megabytes once decoded, even if it will only be shown as a thumbnail.
+ *  <p>
+ *  Decoding takes two passes over the image.  The first reads only its
+ *  dimensions.  The second decodes it with the largest power-of-two sample
+ *  size that still leaves the image at least as large as the target size
+ *  in both dimensions, which the decoder can do without ever holding the
+ *  full-resolution pixels.  Optionally, the result can then be scaled
+ *  exactly to fit the target size.  The display density is not taken into
+ *  account; the target size is in pixels.
+ *  </p>
+ *
+ *  @author Last changed by $Author$
+ *  @version $Revision$, $Date$
+ */
+public class SampledBitmapDecoder
+{
+    //~ Constructors ..........................................................
+
+    // ----------------------------------------------------------
+    /**
+     * This class only has static methods.
+     */
+    private SampledBitmapDecoder()
+    {
+        // Nothing to construct
+    }
+
+
+    //~ Public methods ........................................................
+
+    // ----------------------------------------------------------
+    /**
+     * Decode an image at roughly a target size.
+     * @param source The source of the image, which must be able to decode
+     *               it more than once.
+     * @param width  The target width in pixels (or zero if the width is not
+     *               constrained).
+     * @param height The target height in pixels (or zero if the height is
+     *               not constrained).
+     * @param exact  If true, the sampled image is scaled down, preserving
+     *               its aspect ratio, so that it fits exactly within the
+     *               target size.  If false, it is left at the sampled size,
+     *               which may be up to twice the target size in each
+     *               dimension.
+     * @return The decoded image, or null if it could not be decoded.
+     */
+    public static Bitmap decode(
+        Source source, int width, int height, boolean exact)
+    {
+        BitmapFactory.Options options = new BitmapFactory.Options();
+        options.inJustDecodeBounds = true;
+        options.inScaled = false;
+        source.decode(options);
+        if (options.outWidth <= 0 || options.outHeight <= 0)
+        {
+            return null;
+        }
+
+        options.inJustDecodeBounds = false;
+        options.inSampleSize = sampleSize(
+            options.outWidth, options.outHeight, width, height);
+        Bitmap bitmap = source.decode(options);
+        if (bitmap != null && exact)
+        {
+            bitmap = scaleToFit(bitmap, width, height);
+        }
+        return bitmap;
+    }
+
+
+    // ----------------------------------------------------------
+    /**
+     * Decode an image file at roughly a target size.
+     * @param path   The path of the file.
+     * @param width  The target width in pixels (or zero if the width is not
+     *               constrained).
+     * @param height The target height in pixels (or zero if the height is
+     *               not constrained).
+     * @param exact  If true, scale the image to fit exactly within the
+     *               target size.
+     * @return The decoded image, or null if it could not be decoded.
+     * @see #decode(Source, int, int, boolean)
+     */
+    public static Bitmap decodeFile(
+        final String path, int width, int height, boolean exact)
+    {
+        if (path == null)
+        {
+            return null;
+        }
+
+        return decode(new Source() {
+            public Bitmap decode(BitmapFactory.Options options)
+            {
+                return BitmapFactory.decodeFile(path, options);
+            }
+        }, width, height, exact);
+    }
+
+
+    // ----------------------------------------------------------
+    /**
+     * Compute the sample size to decode an image with: the largest power of
+     * two that leaves the image at least as large as the target size in
+     * each constrained dimension.
+     * @param imageWidth  The width of the stored image.
+     * @param imageHeight The height of the stored image.
+     * @param width       The target width (or zero if the width is not
+     *                    constrained).
+     * @param height      The target height (or zero if the height is not
+     *                    constrained).
+     * @return The sample size, which is 1 if the image is no larger than
+     *         the target size.
+     */
+    public static int sampleSize(
+        int imageWidth, int imageHeight, int width, int height)
+    {
+        int sampleSize = 1;
+        if (width <= 0 && height <= 0)
+        {
+            return sampleSize;
+        }
+
+        while ((width <= 0 || imageWidth / (sampleSize * 2) >= width)
+            && (height <= 0 || imageHeight / (sampleSize * 2) >= height))
+        {
+            sampleSize *= 2;
+        }
+        return sampleSize;
+    }
+
+
+    // ----------------------------------------------------------
+    /**
+     * Scale an image down, preserving its aspect ratio, so that it fits
+     * within a target size.  If the image is replaced, the original is
+     * recycled, so it must not be in use anywhere else.
+     * @param bitmap The image to scale.
+     * @param width  The target width (or zero if the width is not
+     *               constrained).
+     * @param height The target height (or zero if the height is not
+     *               constrained).
+     * @return The scaled image, or the original if it already fits.
+     */
+    public static Bitmap scaleToFit(Bitmap bitmap, int width, int height)
+    {
+        float scale = 1.0f;
+        if (width > 0)
+        {
+            scale = Math.min(scale, (float)width / bitmap.getWidth());
+        }
+        if (height > 0)
+        {
+            scale = Math.min(scale, (float)height / bitmap.getHeight());
+        }
+        if (scale >= 1.0f)
+        {
+            return bitmap;
+        }
+
+        Bitmap scaled = Bitmap.createScaledBitmap(
+            bitmap,
+            Math.max(1, Math.round(bitmap.getWidth() * scale)),
+            Math.max(1, Math.round(bitmap.getHeight() * scale)),
+            true);
+        if (scaled != bitmap)
+        {
+            bitmap.recycle();
+        }
+        return scaled;
+    }
+
+
+    //~ Inner classes .........................................................
+
+    // ----------------------------------------------------------
+    /**
+     * Something that can decode an image, such as a file or a resource.
+     * Sampled decoding reads the image twice, so a source that reads from
+     * a stream must open a new stream each time.
+     */
+    public static interface Source
+    {
+        /**
+         * Decode the image.
+         * @param options The options to decode with.
+         * @return The decoded image, or null if it could not be decoded (or
+         *         if the options only asked for its dimensions).
+         */
+        public Bitmap decode(BitmapFactory.Options options);
+    }
+}
@@ -0,0 +1,152 @@
+package sofia.internal.events;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+//-------------------------------------------------------------------------
+/**
+ * A precomputed mapping from the arguments of an event to the arguments of a
+ * handler, expressed as the index of the event argument that supplies each
+ * handler argument. Transforming dispatchers compute their mappings once,
+ * when a handler is resolved, so that each dispatch only copies references
+ * into an array of the right size. On the UI thread, where nearly every
+ * event is delivered, that array is allocated once per mapping and reused;
+ * dispatches on other threads allocate a new array for each call.
+ *
+ * @author  Last changed by $Author$
+ * @version $Revision$, $Date$
+ */
+class ArgumentMapping
+{
+    //~ Fields ................................................................
+
+    private static final Object[] NO_ARGS = new Object[0];
+
+    private final int[] sourceIndices;
+
+    // The array that apply() fills on the UI thread.
+    private final Object[] scratch;
+
+
+    //~ Constructors ..........................................................
+
+    // ----------------------------------------------------------
+    private ArgumentMapping(int[] sourceIndices)
+    {
+        this.sourceIndices = sourceIndices;
+        this.scratch = sourceIndices.length > 0
+                ? new Object[sourceIndices.length] : NO_ARGS;
+    }
+
+
+    //~ Methods ...............................................................
+
+    // ----------------------------------------------------------
+    /**
+     * Creates a mapping that keeps only the first {@code count} arguments.
+     *
+     * @param count the number of arguments to keep
+     * @return the mapping
+     */
+    public static ArgumentMapping prefix(int count)
+    {
+        int[] indices = new int[count];
+
+        for (int i = 0; i < count; i++)
+        {
+            indices[i] = i;
+        }
+
+        return new ArgumentMapping(indices);
+    }
+
+
+    // ----------------------------------------------------------
+    /**
+     * Creates a mapping that reverses the order of {@code count} arguments.
+     *
+     * @param count the number of arguments
+     * @return the mapping
+     */
+    public static ArgumentMapping reversal(int count)
+    {
+        int[] indices = new int[count];
+
+        for (int i = 0; i < count; i++)
+        {
+            indices[i] = count - i - 1;
+        }
+
+        return new ArgumentMapping(indices);
+    }
+
+
+    // ----------------------------------------------------------
+    /**
+     * Applies the mapping to a list of argument types, producing the
+     * parameter types that a handler must have.
+     *
+     * @param types the argument types of the event
+     * @return the mapped types
+     */
+    public <T> List<T> apply(List<T> types)
+    {
+        List<T> mapped = new ArrayList<T>(sourceIndices.length);
+
+        for (int index : sourceIndices)
+        {
+            mapped.add(types.get(index));
+        }
+
+        return Collections.unmodifiableList(mapped);
+    }
+
+
+    // ----------------------------------------------------------
+    /**
+     * Applies the mapping to the arguments of an event. A mapping that takes
+     * no arguments returns a shared empty array. On the UI thread, the
+     * result is this mapping's reused array, which is only valid until the
+     * handler has been called and {@link #release()} has cleared it; on any
+     * other thread, it is a new array.
+     *
+     * @param args the arguments of the event
+     * @return the arguments to pass to the handler
+     */
+    public Object[] apply(Object[] args)
+    {
+        int count = sourceIndices.length;
+
+        if (count == 0)
+        {
+            return NO_ARGS;
+        }
+
+        Object[] mapped = EventDispatcher.isUiThread()
+                ? scratch : new Object[count];
+
+        for (int i = 0; i < count; i++)
+        {
+            mapped[i] = args[sourceIndices[i]];
+        }
+
+        return mapped;
+    }
+
+
+    // ----------------------------------------------------------
+    /**
+     * Clears the reused array after the handler has been called, so that a
+     * mapping shared by every dispatcher in the process does not keep the
+     * arguments of the last event reachable. Does nothing off the UI thread.
+     */
+    public void release()
+    {
+        if (EventDispatcher.isUiThread())
+        {
+            Arrays.fill(scratch, null);
+        }
+    }
+}
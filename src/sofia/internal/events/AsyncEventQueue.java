@@ -0,0 +1,296 @@
+package sofia.internal.events;
+
+import java.util.IdentityHashMap;
+import java.util.LinkedList;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
+
+//-------------------------------------------------------------------------
+/**
+ * Runs asynchronously dispatched events (see
+ * {@link EventDispatcher#dispatchAsync(Object, Object...)}) on a background
+ * executor. Events sent to the same receiver are run one at a time, in the
+ * order in which they were dispatched, no matter how many threads the
+ * executor has; events for different receivers may run concurrently.
+ * <p>
+ * To keep a slow receiver from accumulating an unbounded backlog, each
+ * receiver may have only a limited number of events outstanding. Once that
+ * limit is reached, the dispatching thread blocks until the receiver has
+ * caught up.
+ * </p><p>
+ * By default, events run on a shared pool of daemon threads. Call
+ * {@link #setExecutor(Executor)} to use a different executor.
+ * </p>
+ *
+ * @author  Last changed by $Author$
+ * @version $Revision$, $Date$
+ */
+public class AsyncEventQueue
+{
+    //~ Fields ................................................................
+
+    // The default number of events that may be outstanding per receiver.
+    private static final int DEFAULT_MAXIMUM_PENDING = 64;
+
+    // Guards queues and the state of every ReceiverQueue.
+    private static final Object lock = new Object();
+
+    // Receivers that have events pending or running, by identity. Entries are
+    // removed as soon as a receiver's queue drains, so receivers are not
+    // retained once their events have been handled.
+    private static final IdentityHashMap<Object, ReceiverQueue> queues =
+            new IdentityHashMap<Object, ReceiverQueue>();
+
+    private static volatile Executor executor;
+    private static volatile int maximumPending = DEFAULT_MAXIMUM_PENDING;
+
+
+    //~ Constructors ..........................................................
+
+    // ----------------------------------------------------------
+    /**
+     * Prevent instantiation.
+     */
+    private AsyncEventQueue()
+    {
+        // Do nothing.
+    }
+
+
+    //~ Public methods ........................................................
+
+    // ----------------------------------------------------------
+    /**
+     * Sets the executor on which asynchronously dispatched events will run.
+     * Events that are already queued for a receiver continue to run on the
+     * previous executor until that receiver's queue drains.
+     *
+     * @param newExecutor the executor to use, or null to use the default
+     *     pool of daemon threads
+     */
+    public static void setExecutor(Executor newExecutor)
+    {
+        executor = newExecutor;
+    }
+
+
+    // ----------------------------------------------------------
+    /**
+     * Sets the number of events that may be outstanding (queued or running)
+     * for any one receiver before further dispatches to it block.
+     *
+     * @param limit the maximum number of outstanding events per receiver,
+     *     which must be positive
+     */
+    public static void setMaximumPending(int limit)
+    {
+        if (limit < 1)
+        {
+            throw new IllegalArgumentException(
+                    "The pending event limit must be positive.");
+        }
+
+        synchronized (lock)
+        {
+            maximumPending = limit;
+            lock.notifyAll();
+        }
+    }
+
+
+    //~ Package-private methods ...............................................
+
+    // ----------------------------------------------------------
+    /**
+     * Queues a task to run after all previously queued tasks for the same
+     * receiver, blocking first if the receiver already has the maximum
+     * number of outstanding tasks.
+     *
+     * @param receiver the receiver that the task delivers an event to
+     * @param task the task to run
+     * @throws RejectedExecutionException if the calling thread is
+     *     interrupted while waiting for the receiver to catch up
+     */
+    static void enqueue(Object receiver, Runnable task)
+    {
+        ReceiverQueue queue;
+        boolean schedule = false;
+
+        synchronized (lock)
+        {
+            queue = queues.get(receiver);
+
+            if (queue == null)
+            {
+                queue = new ReceiverQueue(receiver);
+                queues.put(receiver, queue);
+            }
+
+            // A handler that dispatches to its own receiver must not wait for
+            // itself to finish.
+            while (queue.pending >= maximumPending
+                    && queue.runner != Thread.currentThread())
+            {
+                try
+                {
+                    lock.wait();
+                }
+                catch (InterruptedException e)
+                {
+                    Thread.currentThread().interrupt();
+                    throw new RejectedExecutionException(
+                            "Interrupted while waiting to dispatch an event",
+                            e);
+                }
+            }
+
+            queue.pending++;
+            queue.tasks.add(task);
+
+            if (!queue.scheduled)
+            {
+                queue.scheduled = true;
+                schedule = true;
+            }
+        }
+
+        if (schedule)
+        {
+            try
+            {
+                getExecutor().execute(queue);
+            }
+            catch (RejectedExecutionException e)
+            {
+                synchronized (lock)
+                {
+                    queue.tasks.remove(task);
+                    queue.pending--;
+                    queue.scheduled = false;
+
+                    if (queue.pending == 0)
+                    {
+                        queues.remove(receiver);
+                    }
+
+                    lock.notifyAll();
+                }
+
+                throw e;
+            }
+        }
+    }
+
+
+    //~ Private methods .......................................................
+
+    // ----------------------------------------------------------
+    private static Executor getExecutor()
+    {
+        Executor current = executor;
+
+        if (current == null)
+        {
+            synchronized (lock)
+            {
+                if (executor == null)
+                {
+                    executor = DefaultPool.INSTANCE;
+                }
+
+                current = executor;
+            }
+        }
+
+        return current;
+    }
+
+
+    //~ Inner classes .........................................................
+
+    // ----------------------------------------------------------
+    /**
+     * The events waiting for a single receiver. The queue is scheduled on
+     * the executor when its first event arrives and drains events one at a
+     * time until none are left.
+     */
+    private static class ReceiverQueue implements Runnable
+    {
+        private final Object receiver;
+        private final LinkedList<Runnable> tasks = new LinkedList<Runnable>();
+        private int pending;
+        private boolean scheduled;
+        private Thread runner;
+
+
+        // ----------------------------------------------------------
+        public ReceiverQueue(Object receiver)
+        {
+            this.receiver = receiver;
+        }
+
+
+        // ----------------------------------------------------------
+        public void run()
+        {
+            while (true)
+            {
+                Runnable task;
+
+                synchronized (lock)
+                {
+                    task = tasks.poll();
+
+                    if (task == null)
+                    {
+                        scheduled = false;
+                        runner = null;
+                        queues.remove(receiver);
+                        return;
+                    }
+
+                    runner = Thread.currentThread();
+                }
+
+                try
+                {
+                    task.run();
+                }
+                finally
+                {
+                    synchronized (lock)
+                    {
+                        pending--;
+                        lock.notifyAll();
+                    }
+                }
+            }
+        }
+    }
+
+
+    // ----------------------------------------------------------
+    /**
+     * Holds the default executor, which is only created if asynchronous
+     * dispatch is actually used.
+     */
+    private static class DefaultPool
+    {
+        private static final ExecutorService INSTANCE =
+                Executors.newCachedThreadPool(new ThreadFactory() {
+            private final AtomicInteger count = new AtomicInteger();
+
+            public Thread newThread(Runnable runnable)
+            {
+                Thread thread = new Thread(runnable,
+                        "sofia-event-" + count.incrementAndGet());
+                thread.setDaemon(true);
+                return thread;
+            }
+        });
+    }
+}
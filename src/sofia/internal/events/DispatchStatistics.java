@@ -0,0 +1,519 @@
+package sofia.internal.events;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+import android.util.Log;
+
+//-------------------------------------------------------------------------
+/**
+ * A process-wide registry of event dispatch measurements, kept separately for
+ * each (method name, receiver class) pair. For each pair, it records how
+ * many events were dispatched, how many of those had to resolve their
+ * handlers instead of finding them in the resolution cache, how long
+ * resolution took, and how long the handlers themselves took, including a
+ * histogram of handler latencies.
+ * <p>
+ * Recording is off by default. While it is off, the only cost to each
+ * dispatch is a read of a single volatile flag. Turn it on with
+ * {@link #setEnabled(boolean)}, then read the results with
+ * {@link #getAll()} or {@link #dump()}, or have them logged regularly with
+ * {@link #startPeriodicDump(long)}.
+ * </p>
+ *
+ * @author  Last changed by $Author$
+ * @version $Revision$, $Date$
+ */
+public class DispatchStatistics
+{
+    //~ Fields ................................................................
+
+    private static final String TAG = "DispatchStatistics";
+
+    /**
+     * The number of buckets in each handler latency histogram. Bucket 0
+     * counts handlers that took less than one microsecond; bucket {@code i}
+     * counts those that took at least 2<sup>i-1</sup> and less than
+     * 2<sup>i</sup> microseconds; and the last bucket counts everything
+     * slower than that.
+     */
+    public static final int HISTOGRAM_BUCKETS = 24;
+
+    private static volatile boolean enabled;
+
+    private static final ConcurrentHashMap<Key, EventStatistics> statistics =
+            new ConcurrentHashMap<Key, EventStatistics>();
+
+    private static ScheduledExecutorService dumpExecutor;
+    private static ScheduledFuture<?> periodicDump;
+
+
+    //~ Constructors ..........................................................
+
+    // ----------------------------------------------------------
+    /**
+     * Prevent instantiation.
+     */
+    private DispatchStatistics()
+    {
+        // Do nothing.
+    }
+
+
+    //~ Public methods ........................................................
+
+    // ----------------------------------------------------------
+    /**
+     * Turns recording on or off. Measurements that were already recorded are
+     * kept when recording is turned off; call {@link #reset()} to discard
+     * them.
+     *
+     * @param enable true to record dispatches, false to stop recording
+     */
+    public static void setEnabled(boolean enable)
+    {
+        enabled = enable;
+    }
+
+
+    // ----------------------------------------------------------
+    /**
+     * Gets a value indicating whether dispatches are being recorded.
+     *
+     * @return true if dispatches are being recorded
+     */
+    public static boolean isEnabled()
+    {
+        return enabled;
+    }
+
+
+    // ----------------------------------------------------------
+    /**
+     * Gets the measurements for the specified method name and receiver
+     * class.
+     *
+     * @param methodName the name of the handler method
+     * @param receiverClass the class of the receiver
+     * @return the measurements, or null if no such event has been recorded
+     */
+    public static EventStatistics get(
+            String methodName, Class<?> receiverClass)
+    {
+        return statistics.get(new Key(methodName, receiverClass));
+    }
+
+
+    // ----------------------------------------------------------
+    /**
+     * Gets the measurements for every event that has been recorded, sorted
+     * so that the events whose handlers have taken the most total time come
+     * first.
+     *
+     * @return a list of the recorded events
+     */
+    public static List<EventStatistics> getAll()
+    {
+        List<EventStatistics> all =
+                new ArrayList<EventStatistics>(statistics.values());
+
+        Collections.sort(all, new Comparator<EventStatistics>() {
+            public int compare(EventStatistics a, EventStatistics b)
+            {
+                long aTime = a.getHandlerNanos();
+                long bTime = b.getHandlerNanos();
+                return aTime > bTime ? -1 : (aTime < bTime ? 1 : 0);
+            }
+        });
+
+        return all;
+    }
+
+
+    // ----------------------------------------------------------
+    /**
+     * Discards all recorded measurements.
+     */
+    public static void reset()
+    {
+        statistics.clear();
+    }
+
+
+    // ----------------------------------------------------------
+    /**
+     * Formats the recorded measurements as a table, one line per event,
+     * with the slowest events first.
+     *
+     * @return the formatted measurements
+     */
+    public static String dump()
+    {
+        StringBuilder builder = new StringBuilder();
+
+        for (EventStatistics stats : getAll())
+        {
+            builder.append(stats).append('\n');
+        }
+
+        return builder.toString();
+    }
+
+
+    // ----------------------------------------------------------
+    /**
+     * Logs the recorded measurements at the debug level at a regular
+     * interval, on a background daemon thread, until
+     * {@link #stopPeriodicDump()} is called. This does not turn recording
+     * on.
+     *
+     * @param periodMillis the number of milliseconds between dumps
+     */
+    public static synchronized void startPeriodicDump(long periodMillis)
+    {
+        stopPeriodicDump();
+
+        if (dumpExecutor == null)
+        {
+            dumpExecutor = Executors.newSingleThreadScheduledExecutor(
+                    new ThreadFactory() {
+                public Thread newThread(Runnable runnable)
+                {
+                    Thread thread = new Thread(runnable, "sofia-dispatch-stats");
+                    thread.setDaemon(true);
+                    return thread;
+                }
+            });
+        }
+
+        periodicDump = dumpExecutor.scheduleAtFixedRate(new Runnable() {
+            public void run()
+            {
+                if (!statistics.isEmpty())
+                {
+                    Log.d(TAG, dump());
+                }
+            }
+        }, periodMillis, periodMillis, TimeUnit.MILLISECONDS);
+    }
+
+
+    // ----------------------------------------------------------
+    /**
+     * Stops logging measurements that was started by
+     * {@link #startPeriodicDump(long)}.
+     */
+    public static synchronized void stopPeriodicDump()
+    {
+        if (periodicDump != null)
+        {
+            periodicDump.cancel(false);
+            periodicDump = null;
+        }
+    }
+
+
+    //~ Package-private methods ...............................................
+
+    // ----------------------------------------------------------
+    /**
+     * Gets the measurements for the specified method name and receiver
+     * class, creating them if necessary.
+     *
+     * @param methodName the name of the handler method
+     * @param receiverClass the class of the receiver
+     * @return the measurements
+     */
+    static EventStatistics forEvent(String methodName, Class<?> receiverClass)
+    {
+        Key key = new Key(methodName, receiverClass);
+        EventStatistics stats = statistics.get(key);
+
+        if (stats == null)
+        {
+            stats = new EventStatistics(methodName, receiverClass);
+            EventStatistics existing = statistics.putIfAbsent(key, stats);
+
+            if (existing != null)
+            {
+                stats = existing;
+            }
+        }
+
+        return stats;
+    }
+
+
+    //~ Inner classes .........................................................
+
+    // ----------------------------------------------------------
+    /**
+     * The measurements recorded for a single method name and receiver class.
+     * The counters are updated independently of each other, so values read
+     * while events are being dispatched may be off by a few events relative
+     * to one another.
+     */
+    public static class EventStatistics
+    {
+        private final String methodName;
+        private final Class<?> receiverClass;
+        private final AtomicLong invocations = new AtomicLong();
+        private final AtomicLong misses = new AtomicLong();
+        private final AtomicLong lookupNanos = new AtomicLong();
+        private final AtomicLong handlerNanos = new AtomicLong();
+        private final AtomicLongArray histogram =
+                new AtomicLongArray(HISTOGRAM_BUCKETS);
+
+
+        // ----------------------------------------------------------
+        private EventStatistics(String methodName, Class<?> receiverClass)
+        {
+            this.methodName = methodName;
+            this.receiverClass = receiverClass;
+        }
+
+
+        // ----------------------------------------------------------
+        /**
+         * Gets the name of the handler method.
+         *
+         * @return the method name
+         */
+        public String getMethodName()
+        {
+            return methodName;
+        }
+
+
+        // ----------------------------------------------------------
+        /**
+         * Gets the class of the receiver.
+         *
+         * @return the receiver class
+         */
+        public Class<?> getReceiverClass()
+        {
+            return receiverClass;
+        }
+
+
+        // ----------------------------------------------------------
+        /**
+         * Gets the number of times the event was dispatched.
+         *
+         * @return the number of dispatches
+         */
+        public long getInvocationCount()
+        {
+            return invocations.get();
+        }
+
+
+        // ----------------------------------------------------------
+        /**
+         * Gets the number of recorded dispatches that had to resolve the
+         * event's handlers because they were not in the resolution cache.
+         * Resolutions done ahead of time by
+         * {@link EventDispatcher#prepare(Object, Class...)} are not counted,
+         * so they raise the hit ratio rather than lower it.
+         *
+         * @return the number of resolution misses
+         */
+        public long getMissCount()
+        {
+            return misses.get();
+        }
+
+
+        // ----------------------------------------------------------
+        /**
+         * Gets the fraction of dispatches whose handlers were already
+         * resolved.
+         *
+         * @return the hit ratio, between 0 and 1, or 0 if the event has not
+         *     been dispatched
+         */
+        public double getHitRatio()
+        {
+            long count = invocations.get();
+            return count == 0
+                    ? 0 : Math.max(0, count - misses.get()) / (double) count;
+        }
+
+
+        // ----------------------------------------------------------
+        /**
+         * Gets the total time that recorded dispatches spent resolving the
+         * event's handlers.
+         *
+         * @return the total resolution time, in nanoseconds
+         */
+        public long getLookupNanos()
+        {
+            return lookupNanos.get();
+        }
+
+
+        // ----------------------------------------------------------
+        /**
+         * Gets the total time spent in the event's handlers.
+         *
+         * @return the total handler time, in nanoseconds
+         */
+        public long getHandlerNanos()
+        {
+            return handlerNanos.get();
+        }
+
+
+        // ----------------------------------------------------------
+        /**
+         * Gets the handler latency histogram. See
+         * {@link DispatchStatistics#HISTOGRAM_BUCKETS} for the range of each
+         * bucket.
+         *
+         * @return a copy of the histogram's counts
+         */
+        public long[] getHistogram()
+        {
+            long[] counts = new long[HISTOGRAM_BUCKETS];
+
+            for (int i = 0; i < counts.length; i++)
+            {
+                counts[i] = histogram.get(i);
+            }
+
+            return counts;
+        }
+
+
+        // ----------------------------------------------------------
+        /**
+         * Gets an upper bound on the specified percentile of handler
+         * latency, computed from the histogram.
+         *
+         * @param percentile the percentile, between 0 and 100
+         * @return the upper bound of the histogram bucket that contains the
+         *     percentile, in microseconds
+         */
+        public long getLatencyPercentile(double percentile)
+        {
+            long[] counts = getHistogram();
+            long total = 0;
+
+            for (long count : counts)
+            {
+                total += count;
+            }
+
+            long target = (long) Math.ceil(total * percentile / 100);
+            long seen = 0;
+
+            for (int i = 0; i < counts.length; i++)
+            {
+                seen += counts[i];
+
+                if (seen >= target && seen > 0)
+                {
+                    return 1L << i;
+                }
+            }
+
+            return 0;
+        }
+
+
+        // ----------------------------------------------------------
+        @Override
+        public String toString()
+        {
+            long count = invocations.get();
+
+            return receiverClass.getName() + "." + methodName
+                    + ": invocations=" + count
+                    + ", misses=" + misses.get()
+                    + ", hitRatio=" + Math.round(getHitRatio() * 100) + "%"
+                    + ", lookup=" + lookupNanos.get() / 1000 + "us"
+                    + ", handler=" + handlerNanos.get() / 1000 + "us"
+                    + ", p50<=" + getLatencyPercentile(50) + "us"
+                    + ", p99<=" + getLatencyPercentile(99) + "us";
+        }
+
+
+        // ----------------------------------------------------------
+        void recordInvocation()
+        {
+            invocations.incrementAndGet();
+        }
+
+
+        // ----------------------------------------------------------
+        void recordLookup(long nanos)
+        {
+            misses.incrementAndGet();
+            lookupNanos.addAndGet(nanos);
+        }
+
+
+        // ----------------------------------------------------------
+        void recordHandler(long nanos)
+        {
+            handlerNanos.addAndGet(nanos);
+
+            long micros = nanos / 1000;
+            int bucket = 64 - Long.numberOfLeadingZeros(micros);
+            histogram.incrementAndGet(Math.min(bucket, HISTOGRAM_BUCKETS - 1));
+        }
+    }
+
+
+    // ----------------------------------------------------------
+    private static class Key
+    {
+        private final String methodName;
+        private final Class<?> receiverClass;
+
+
+        // ----------------------------------------------------------
+        public Key(String methodName, Class<?> receiverClass)
+        {
+            this.methodName = methodName;
+            this.receiverClass = receiverClass;
+        }
+
+
+        // ----------------------------------------------------------
+        @Override
+        public boolean equals(Object other)
+        {
+            if (other instanceof Key)
+            {
+                Key key = (Key) other;
+                return receiverClass == key.receiverClass
+                        && methodName.equals(key.methodName);
+            }
+            else
+            {
+                return false;
+            }
+        }
+
+
+        // ----------------------------------------------------------
+        @Override
+        public int hashCode()
+        {
+            return methodName.hashCode() * 31 + receiverClass.hashCode();
+        }
+    }
+}
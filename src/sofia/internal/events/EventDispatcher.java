@@ -1,17 +1,40 @@
 package sofia.internal.events;
 
-import java.lang.reflect.InvocationTargetException;
 import java.lang.reflect.Method;
 import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.Collections;
 import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Future;
+import java.util.concurrent.FutureTask;
+
+import android.os.Looper;
 
 //-------------------------------------------------------------------------
 /**
  * Represents a reflective dispatcher with an internal cache of looked-up
  * Method objects.
+ * <p>
+ * Resolved handlers are shared by every dispatcher in the process (see
+ * {@link MethodResolutionCache}), keyed by {@link #getResolutionKind()},
+ * which defaults to the dispatcher's class. Subclasses written against
+ * earlier versions of this class should note two changes:
+ * </p>
+ * <ul>
+ * <li>A subclass whose {@link #lookupTransformers(Object, List)} depends on
+ * per-instance state now shares its resolutions with every other instance of
+ * the same class, so it must override {@link #getResolutionKind()} to
+ * include that state.</li>
+ * <li>{@link MethodTransformer} is now a static nested class, because
+ * transformers outlive the dispatcher that created them. Call
+ * {@link MethodTransformer#addIfSupportedBy(EventDispatcher, Object, List)}
+ * instead of the deprecated two-argument form, and register handlers in
+ * {@code invokerCache} rather than the deprecated {@code methodCache}.</li>
+ * </ul>
  *
  * @author  Tony Allevato, Stephen Edwards
  * @author  Last changed by $Author$
@@ -24,9 +47,34 @@ public class EventDispatcher
     // The name of the method that this dispatcher calls.
     private String methodName;
 
-    // A cache of matching method transformers for a particular class.
-    private HashMap<CacheKey,
-        List<MethodTransformer>> transformerCache;
+    // The process-wide cache of matching method transformers, shared by all
+    // dispatchers.
+    private static final MethodResolutionCache transformerCache =
+            MethodResolutionCache.getInstance();
+
+    // The largest argument count that the inline cache handles, and the
+    // number of recent resolutions that it remembers.
+    private static final int MAX_INLINE_ARITY = 3;
+    private static final int INLINE_CACHE_SIZE = 4;
+
+    // A small cache of this dispatcher's most recent resolutions, checked by
+    // class identity so that steady-state dispatch does not need to build a
+    // key or probe the shared cache. Entries are immutable, so the array can
+    // be read and replaced without locking; a thread that does not yet see
+    // another thread's entry simply falls through to the shared cache.
+    private final InlineCacheEntry[] inlineCache =
+            new InlineCacheEntry[INLINE_CACHE_SIZE];
+    private int inlineCacheNext;
+
+    // The dispatcher whose lookupTransformers() is running on each thread,
+    // for the deprecated MethodTransformer.addIfSupportedBy(Object, List).
+    private static final ThreadLocal<EventDispatcher> resolvingDispatcher =
+            new ThreadLocal<EventDispatcher>();
+
+    // The UI thread, on which transformers may reuse their argument arrays
+    // because nearly every event is delivered there; null if there is no
+    // main looper, in which case nothing is reused.
+    private static final Thread uiThread = findUiThread();
 
     private static final Map<Class<?>, Class<?>> wrapperEquivalent =
             new HashMap<Class<?>, Class<?>>();
@@ -61,8 +109,6 @@ public class EventDispatcher
     public EventDispatcher(String method)
     {
         methodName = method;
-        transformerCache =
-                new HashMap<CacheKey, List<MethodTransformer>>();
     }
 
 
@@ -81,12 +127,32 @@ public class EventDispatcher
     public boolean isSupportedBy(Object receiver, Object... args)
     {
         List<MethodTransformer> transformers =
-                getMethodTransformers(receiver, args);
+                getMethodTransformers(receiver, null, args);
 
         return !transformers.isEmpty();
     }
 
 
+    // ----------------------------------------------------------
+    /**
+     * Resolves the handlers that this dispatcher would call on the specified
+     * receiver for arguments of the specified types, without calling them.
+     * Resolutions are shared by all dispatchers, so calling this ahead of
+     * time (for example, on a background thread while a screen is starting)
+     * removes the reflective lookup cost from the first real dispatch.
+     *
+     * @param receiver the receiver of the method call
+     * @param argTypes the classes of the arguments that will be passed to
+     *     the method; use null for an argument that will be null
+     * @return true if the receiver has a method that satisfies this
+     *     dispatcher, otherwise false
+     */
+    public boolean prepare(Object receiver, Class<?>... argTypes)
+    {
+        return !resolve(receiver, Arrays.asList(argTypes), null).isEmpty();
+    }
+
+
     // ----------------------------------------------------------
     /**
      * Dispatches the event to the specified receiver, walking up the
@@ -99,23 +165,49 @@ public class EventDispatcher
      */
     public boolean dispatch(Object receiver, Object... args)
     {
-        List<MethodTransformer> transformers =
-                getMethodTransformers(receiver, args);
-
-        if (!transformers.isEmpty())
+        if (DispatchStatistics.isEnabled())
         {
-            for (MethodTransformer transformer : transformers)
-            {
-                Object result = invokeTransformer(transformer, receiver, args);
+            return dispatchAndRecord(receiver, args);
+        }
 
-                if (Boolean.TRUE.equals(result))
-                {
-                    return true;
-                }
+        return invokeAll(getMethodTransformers(receiver, null, args),
+                receiver, args);
+    }
+
+
+    // ----------------------------------------------------------
+    /**
+     * Dispatches the event to the specified receiver on a background thread
+     * and returns immediately. Events dispatched asynchronously to the same
+     * receiver are delivered one at a time, in the order in which this
+     * method was called; see {@link AsyncEventQueue} for how to choose the
+     * executor and how many events may be outstanding before this method
+     * blocks.
+     * <p>
+     * Handlers called this way run off the UI thread, so they must not touch
+     * views directly.
+     * </p>
+     *
+     * @param receiver the receiver of the method call
+     * @param args the arguments that would be passed to the method
+     * @return a future whose value is the result that
+     *     {@link #dispatch(Object, Object...)} would have returned, or which
+     *     throws the handler's exception wrapped in an
+     *     {@code ExecutionException}
+     */
+    public Future<Boolean> dispatchAsync(
+            final Object receiver, final Object... args)
+    {
+        FutureTask<Boolean> task = new FutureTask<Boolean>(
+                new Callable<Boolean>() {
+            public Boolean call()
+            {
+                return dispatch(receiver, args);
             }
-        }
+        });
 
-        return false;
+        AsyncEventQueue.enqueue(receiver, task);
+        return task;
     }
 
 
@@ -139,11 +231,37 @@ public class EventDispatcher
 
     // ----------------------------------------------------------
     /**
-     * TODO document
+     * Gets an object that distinguishes the transformers produced by this
+     * dispatcher from those produced by other kinds of dispatchers for the
+     * same method name, receiver, and argument types. Resolutions are shared
+     * among all dispatchers whose kinds are equal, so subclasses whose
+     * {@link #lookupTransformers(Object, List)} results depend on
+     * per-instance configuration must override this to include that
+     * configuration. The default is the dispatcher's class.
      *
-     * @param receiver
-     * @param argTypes
-     * @return
+     * @return the kind of this dispatcher
+     */
+    protected Object getResolutionKind()
+    {
+        return getClass();
+    }
+
+
+    // ----------------------------------------------------------
+    /**
+     * Finds every transformer through which the receiver can handle an
+     * event with arguments of the specified types. This is called once per
+     * resolution, and its result is shared by all dispatchers of the same
+     * {@linkplain #getResolutionKind() kind}. The default implementation
+     * returns at most one transformer, which passes the arguments through
+     * unchanged; subclasses that support other handler signatures add their
+     * own transformers to the list that it returns.
+     *
+     * @param receiver the receiver of the method call
+     * @param argTypes the classes of the arguments that would be passed;
+     *     an element is null for an argument that is null
+     * @return a modifiable list of the matching transformers, in the order
+     *     in which they should be invoked
      */
     protected List<MethodTransformer> lookupTransformers(
             Object receiver, List<Class<?>> argTypes)
@@ -151,12 +269,12 @@ public class EventDispatcher
         List<MethodTransformer> transformers =
                 new ArrayList<MethodTransformer>();
 
-        Method method = lookupMethod(receiver, argTypes);
-        if (method != null)
+        HandlerInvoker invoker = lookupInvoker(receiver, argTypes);
+        if (invoker != null)
         {
             MethodTransformer identity = new MethodTransformer(
-                    Arrays.asList(method.getParameterTypes()));
-            identity.methodCache.put(receiver.getClass(), method);
+                    Arrays.asList(invoker.getParameterTypes()));
+            identity.invokerCache.put(receiver.getClass(), invoker);
             transformers.add(identity);
         }
 
@@ -164,6 +282,44 @@ public class EventDispatcher
     }
 
 
+    // ----------------------------------------------------------
+    /**
+     * Creates the invoker that will be used to call a resolved handler
+     * method. Resolution happens once per receiver class, so this is where
+     * any per-method setup work belongs. The default implementation returns
+     * a {@link ReflectiveInvoker}, which suppresses access checks only for a
+     * handler that is already accessible, and otherwise makes the checked
+     * reflective call.
+     *
+     * @param method the resolved handler method
+     * @return an invoker that calls the method
+     */
+    protected HandlerInvoker createInvoker(Method method)
+    {
+        return new ReflectiveInvoker(method);
+    }
+
+
+    // ----------------------------------------------------------
+    /**
+     * Finds the handler on the receiver that best matches the specified
+     * argument types and returns an invoker for it. The default
+     * implementation searches the receiver's class hierarchy reflectively
+     * and wraps the result with {@link #createInvoker(Method)}.
+     *
+     * @param receiver the receiver of the method call
+     * @param argTypes the types of the arguments that would be passed
+     * @return an invoker for the best matching handler, or null if there is
+     *     no compatible handler
+     */
+    protected HandlerInvoker lookupInvoker(
+            Object receiver, List<Class<?>> argTypes)
+    {
+        Method method = lookupMethod(receiver, argTypes);
+        return method != null ? createInvoker(method) : null;
+    }
+
+
     // ------------------------------------------------------
     protected Method lookupMethod(Object receiver, List<Class<?>> argTypes)
     {
@@ -171,46 +327,38 @@ public class EventDispatcher
         //		+ receiver.getClass().getCanonicalName() + "."
         //		+ methodName + "(" + argTypes.toString() + ")...");
 
-        Class<?> clazz = receiver.getClass();
         Method bestMatch = null;
         int[] bestScore = new int[argTypes.size()];
         int[] nextScore = new int[argTypes.size()];
 
-        while (clazz != null)
+        for (Method candidate : MethodIndex.forClass(
+                receiver.getClass()).getMethods(methodName))
         {
-            for (Method candidate : clazz.getDeclaredMethods())
+            try
             {
-                if (methodName.equals(candidate.getName()))
+                //System.out.println("   checking "
+                //    + candidate.toGenericString());
+
+                // Check this method and leave results in nextScore
+                scoreParameters(
+                        candidate.getParameterTypes(), argTypes, nextScore);
+
+                if (bestMatch == null || isBetter(bestScore, nextScore))
                 {
-                    try
-                    {
-                        //System.out.println("   checking "
-                        //    + candidate.toGenericString());
-
-                        // Check this method and leave results in nextScore
-                        scoreMethod(candidate, argTypes, nextScore);
-
-                        if (bestMatch == null
-                            || isBetter(bestScore, nextScore))
-                        {
-                            bestMatch = candidate;
-
-                            // Rotate nextScore into the bestScore position
-                            // then reuse the old bestScore array next iter.
-                            int[] tmp = bestScore;
-                            bestScore = nextScore;
-                            nextScore = tmp;
-                        }
-                    }
-                    catch (IllegalArgumentException e)
-                    {
-                        // This method isn't compatible with the
-                        // given arguments, so ignore it.
-                    }
+                    bestMatch = candidate;
+
+                    // Rotate nextScore into the bestScore position
+                    // then reuse the old bestScore array next iter.
+                    int[] tmp = bestScore;
+                    bestScore = nextScore;
+                    nextScore = tmp;
                 }
             }
-
-            clazz = clazz.getSuperclass();
+            catch (IllegalArgumentException e)
+            {
+                // This method isn't compatible with the
+                // given arguments, so ignore it.
+            }
         }
 
         if (bestMatch != null)
@@ -222,6 +370,53 @@ public class EventDispatcher
     }
 
 
+    // ----------------------------------------------------------
+    private boolean invokeAll(List<MethodTransformer> transformers,
+            Object receiver, Object... args)
+    {
+        // Indexed iteration avoids allocating an iterator for every event.
+        for (int i = 0; i < transformers.size(); i++)
+        {
+            MethodTransformer transformer = transformers.get(i);
+            Object result = invokeTransformer(transformer, receiver, args);
+
+            if (Boolean.TRUE.equals(result))
+            {
+                return true;
+            }
+        }
+
+        return false;
+    }
+
+
+    // ----------------------------------------------------------
+    /**
+     * Dispatches the event as {@link #dispatch(Object, Object...)} does,
+     * recording the dispatch and the time taken by its handlers in
+     * {@link DispatchStatistics}.
+     */
+    private boolean dispatchAndRecord(Object receiver, Object... args)
+    {
+        DispatchStatistics.EventStatistics stats =
+                DispatchStatistics.forEvent(methodName, receiver.getClass());
+        stats.recordInvocation();
+
+        List<MethodTransformer> transformers =
+                getMethodTransformers(receiver, stats, args);
+
+        long start = System.nanoTime();
+        try
+        {
+            return invokeAll(transformers, receiver, args);
+        }
+        finally
+        {
+            stats.recordHandler(System.nanoTime() - start);
+        }
+    }
+
+
     // ----------------------------------------------------------
     private List<Class<?>> classesForObjects(Object... objects)
     {
@@ -244,27 +439,61 @@ public class EventDispatcher
 
 
     // ----------------------------------------------------------
+    /**
+     * Gets the transformers for a dispatch, from the inline cache if
+     * possible. If {@code stats} is not null and the handlers have to be
+     * resolved by this call, the resolution is recorded there as a miss;
+     * warm-ups through {@link #prepare(Object, Class...)} and checks through
+     * {@link #isSupportedBy(Object, Object...)} pass null, so they do not
+     * count against the hit ratio of real dispatches.
+     */
     private List<MethodTransformer> getMethodTransformers(Object receiver,
-            Object... args)
+            DispatchStatistics.EventStatistics stats, Object[] args)
     {
-        List<MethodTransformer> transformers = null;
-        CacheKey key = new CacheKey(receiver, args);
+        Class<?> receiverType = receiver.getClass();
+        boolean inlineable = args.length <= MAX_INLINE_ARITY;
 
-        if (!transformerCache.containsKey(key))
+        if (inlineable)
         {
-            transformers = lookupTransformers(
-                    receiver, key.getParameterTypes());
-            transformerCache.put(key, transformers);
+            for (int i = 0; i < INLINE_CACHE_SIZE; i++)
+            {
+                InlineCacheEntry entry = inlineCache[i];
+
+                if (entry != null && entry.matches(receiverType, args))
+                {
+                    return entry.transformers;
+                }
+            }
         }
-        else
+
+        List<MethodTransformer> transformers =
+                resolve(receiver, classesForObjects(args), stats);
+
+        if (inlineable)
         {
-            transformers = transformerCache.get(key);
+            int slot = inlineCacheNext;
+            inlineCacheNext = (slot + 1) % INLINE_CACHE_SIZE;
+            inlineCache[slot] =
+                    new InlineCacheEntry(receiverType, args, transformers);
         }
 
         return transformers;
     }
 
 
+    // ----------------------------------------------------------
+    private List<MethodTransformer> resolve(Object receiver,
+            List<Class<?>> argTypes, DispatchStatistics.EventStatistics stats)
+    {
+        MethodResolutionCache.ResolutionKey key =
+                new MethodResolutionCache.ResolutionKey(getResolutionKind(),
+                        methodName, receiver.getClass(), argTypes);
+
+        return transformerCache.resolve(key,
+                new Resolver(this, receiver, argTypes, stats));
+    }
+
+
     // ----------------------------------------------------------
     private int argConversionCost(
         Class<?> actualParamType, Class<?> formalParamType)
@@ -332,11 +561,10 @@ public class EventDispatcher
 
 
     // ----------------------------------------------------------
-    private void scoreMethod(
-        Method m, List<Class<?>> actualArgTypes, int[] scores)
+    private void scoreParameters(
+        Class<?>[] formals, List<Class<?>> actualArgTypes, int[] scores)
         throws IllegalArgumentException
     {
-        Class<?>[] formals = m.getParameterTypes();
         if (formals.length != actualArgTypes.size())
         {
             throw new IllegalArgumentException(
@@ -383,18 +611,56 @@ public class EventDispatcher
     }
 
 
+    // ----------------------------------------------------------
+    /**
+     * Gets a value indicating whether the current thread is the UI thread.
+     * Transformers that reuse an argument array do so only on the UI thread,
+     * since the resolved transformers are shared by every thread that
+     * dispatches events.
+     *
+     * @return true if the current thread is the UI thread
+     */
+    static boolean isUiThread()
+    {
+        return Thread.currentThread() == uiThread;
+    }
+
+
+    // ----------------------------------------------------------
+    private static Thread findUiThread()
+    {
+        Looper mainLooper = Looper.getMainLooper();
+        return mainLooper != null ? mainLooper.getThread() : null;
+    }
+
+
     //~ Inner classes .........................................................
 
     // ------------------------------------------------------
     /**
      * Subclasses of {@code EventDispatcher} should subclass this internally in
-     * order to support multiple method signatures.
+     * order to support multiple method signatures. Transformers are kept in
+     * the process-wide {@link MethodResolutionCache}, so this class is static
+     * and must not refer to the dispatcher that created it; subclasses should
+     * likewise be created from static contexts.
      */
-    protected class MethodTransformer
+    protected static class MethodTransformer
     {
         //~ Fields ............................................................
 
         protected final List<Class<?>> argTypes;
+        protected final Map<Class<?>, HandlerInvoker> invokerCache;
+
+        /**
+         * Handler methods registered by code written before
+         * {@link #invokerCache} existed. They are wrapped in invokers the
+         * first time they are called.
+         *
+         * @deprecated Put a {@link HandlerInvoker} in {@link #invokerCache}
+         *     instead, for example one created by
+         *     {@link EventDispatcher#createInvoker(Method)}.
+         */
+        @Deprecated
         protected final Map<Class<?>, Method> methodCache;
 
 
@@ -411,23 +677,66 @@ public class EventDispatcher
         public MethodTransformer(List<Class<?>> argTypes)
         {
             this.argTypes = argTypes;
-            this.methodCache = new HashMap<Class<?>, Method>();
+            this.invokerCache =
+                    new ConcurrentHashMap<Class<?>, HandlerInvoker>();
+            this.methodCache = new ConcurrentHashMap<Class<?>, Method>();
         }
 
 
         //~ Methods ...........................................................
 
         // ------------------------------------------------------
+        /**
+         * Adds this transformer to the specified list if the receiver has a
+         * handler that accepts this transformer's argument types.
+         *
+         * @param dispatcher the dispatcher that looks up the handler
+         * @param receiver the receiver of the method call
+         * @param transformers the list to add this transformer to
+         */
+        public void addIfSupportedBy(EventDispatcher dispatcher,
+                Object receiver, List<MethodTransformer> transformers)
+        {
+            HandlerInvoker invoker =
+                    dispatcher.lookupInvoker(receiver, argTypes);
+
+            if (invoker != null)
+            {
+                invokerCache.put(receiver.getClass(), invoker);
+                transformers.add(this);
+            }
+        }
+
+
+        // ------------------------------------------------------
+        /**
+         * Adds this transformer to the specified list if the receiver has a
+         * handler that accepts this transformer's argument types, looking up
+         * the handler with the dispatcher whose
+         * {@link EventDispatcher#lookupTransformers(Object, List)} is running
+         * on the current thread.
+         *
+         * @param receiver the receiver of the method call
+         * @param transformers the list to add this transformer to
+         * @throws IllegalStateException if no dispatcher is resolving
+         *     handlers on the current thread
+         * @deprecated Use
+         *     {@link #addIfSupportedBy(EventDispatcher, Object, List)}, which
+         *     names the dispatcher explicitly.
+         */
+        @Deprecated
         public void addIfSupportedBy(Object receiver,
                 List<MethodTransformer> transformers)
         {
-            Method method = lookupMethod(receiver, argTypes);
+            EventDispatcher dispatcher = resolvingDispatcher.get();
 
-            if (method != null)
+            if (dispatcher == null)
             {
-                methodCache.put(receiver.getClass(), method);
-                transformers.add(this);
+                throw new IllegalStateException("addIfSupportedBy(Object, "
+                        + "List) may only be called from lookupTransformers");
             }
+
+            addIfSupportedBy(dispatcher, receiver, transformers);
         }
 
 
@@ -465,36 +774,20 @@ public class EventDispatcher
 
 
         // ------------------------------------------------------
+        @SuppressWarnings("deprecation")
         public Object invoke(Object receiver, Object... args)
         {
-            try
-            {
-                //System.out.println("Invoking " + method.toGenericString()
-                //    + " with " + Arrays.toString(args));
-                return methodCache.get(receiver.getClass()).invoke(
-                        receiver, transform(args));
-            }
-            catch (InvocationTargetException e)
-            {
-                Throwable cause = e.getCause();
+            Class<?> receiverType = receiver.getClass();
+            HandlerInvoker invoker = invokerCache.get(receiverType);
 
-                if (cause instanceof Error)
-                {
-                    throw (Error) cause;
-                }
-                else if (cause instanceof RuntimeException)
-                {
-                    throw (RuntimeException) cause;
-                }
-                else
-                {
-                    throw new RuntimeException(cause);
-                }
-            }
-            catch (IllegalAccessException e)
+            if (invoker == null)
             {
-                throw new RuntimeException(e);
+                // Fall back to a method registered the old way
+                invoker = new ReflectiveInvoker(methodCache.get(receiverType));
+                invokerCache.put(receiverType, invoker);
             }
+
+            return invoker.invoke(receiver, transform(args));
         }
 
 
@@ -516,56 +809,176 @@ public class EventDispatcher
 
 
     // ----------------------------------------------------------
-    private class CacheKey
+    /**
+     * A transformer that rearranges the argument list with an
+     * {@link ArgumentMapping}, for handlers that take the arguments in a
+     * different order or only some of them.
+     */
+    protected static class MappedTransformer extends MethodTransformer
     {
-        private Class<?> receiverType;
-        private List<Class<?>> argTypes;
+        //~ Fields ............................................................
 
+        private final ArgumentMapping mapping;
 
-        // ----------------------------------------------------------
-        public CacheKey(Object receiver, Object... args)
+
+        //~ Constructors ......................................................
+
+        // ------------------------------------------------------
+        /**
+         * Creates a transformer for the specified mapping.
+         *
+         * @param mapping the mapping from event arguments to handler
+         *     arguments
+         * @param argTypes the types of the event arguments
+         */
+        public MappedTransformer(
+                ArgumentMapping mapping, List<Class<?>> argTypes)
         {
-            receiverType = receiver.getClass();
-            argTypes = classesForObjects(args);
+            super(mapping.apply(argTypes));
+            this.mapping = mapping;
         }
 
 
-        // ----------------------------------------------------------
-        @SuppressWarnings("unused")
-        public Class<?> getReceiverType()
+        //~ Methods ...........................................................
+
+        // ------------------------------------------------------
+        @Override
+        public Object invoke(Object receiver, Object... args)
         {
-            return receiverType;
+            try
+            {
+                return super.invoke(receiver, args);
+            }
+            finally
+            {
+                mapping.release();
+            }
         }
 
 
+        // ------------------------------------------------------
+        @Override
+        protected Object[] transform(Object... args)
+        {
+            return mapping.apply(args);
+        }
+    }
+
+
+    // ----------------------------------------------------------
+    /**
+     * Runs {@link EventDispatcher#lookupTransformers(Object, List)} for one
+     * resolution. The dispatcher and the receiver are released as soon as
+     * the lookup has run: before Android 4.4, a {@link FutureTask} keeps its
+     * callable after it completes, and a resolver that held on to the
+     * receiver would keep an activity reachable for as long as a thread
+     * still refers to the task. If the resolution was caused by a recorded
+     * dispatch, its time is recorded in that dispatch's statistics.
+     */
+    private static class Resolver
+        implements Callable<List<MethodTransformer>>
+    {
+        private EventDispatcher dispatcher;
+        private Object receiver;
+        private final List<Class<?>> argTypes;
+        private final DispatchStatistics.EventStatistics stats;
+
+
         // ----------------------------------------------------------
-        public List<Class<?>> getParameterTypes()
+        public Resolver(EventDispatcher dispatcher, Object receiver,
+                List<Class<?>> argTypes,
+                DispatchStatistics.EventStatistics stats)
         {
-            return argTypes;
+            this.dispatcher = dispatcher;
+            this.receiver = receiver;
+            this.argTypes = argTypes;
+            this.stats = stats;
         }
 
 
         // ----------------------------------------------------------
-        public boolean equals(Object other)
+        public List<MethodTransformer> call()
         {
-            if (other instanceof CacheKey)
-            {
-                CacheKey otherMethod = (CacheKey) other;
+            EventDispatcher owner = dispatcher;
+            Object target = receiver;
+            dispatcher = null;
+            receiver = null;
+
+            long start = stats != null ? System.nanoTime() : 0;
 
-                return receiverType.equals(otherMethod.receiverType) &&
-                        argTypes.equals(otherMethod.argTypes);
+            List<MethodTransformer> transformers;
+            resolvingDispatcher.set(owner);
+            try
+            {
+                transformers = Collections.unmodifiableList(
+                        owner.lookupTransformers(target, argTypes));
             }
-            else
+            finally
             {
-                return false;
+                resolvingDispatcher.remove();
+            }
+
+            if (stats != null)
+            {
+                stats.recordLookup(System.nanoTime() - start);
             }
+
+            return transformers;
+        }
+    }
+
+
+    // ----------------------------------------------------------
+    /**
+     * One entry in a dispatcher's inline cache: the receiver class and the
+     * classes of up to three arguments, along with the transformers they
+     * resolved to. A null argument is recorded as a null class.
+     */
+    private static class InlineCacheEntry
+    {
+        private final Class<?> receiverType;
+        private final int arity;
+        private final Class<?> arg0;
+        private final Class<?> arg1;
+        private final Class<?> arg2;
+        private final List<MethodTransformer> transformers;
+
+
+        // ----------------------------------------------------------
+        public InlineCacheEntry(Class<?> receiverType, Object[] args,
+                List<MethodTransformer> transformers)
+        {
+            this.receiverType = receiverType;
+            this.arity = args.length;
+            this.arg0 = classAt(args, 0);
+            this.arg1 = classAt(args, 1);
+            this.arg2 = classAt(args, 2);
+            this.transformers = transformers;
+        }
+
+
+        // ----------------------------------------------------------
+        public boolean matches(Class<?> type, Object[] args)
+        {
+            return type == receiverType
+                    && args.length == arity
+                    && classAt(args, 0) == arg0
+                    && classAt(args, 1) == arg1
+                    && classAt(args, 2) == arg2;
         }
 
 
         // ----------------------------------------------------------
-        public int hashCode()
+        private static Class<?> classAt(Object[] args, int index)
         {
-            return receiverType.hashCode() ^ (argTypes.hashCode() << 13);
+            if (index < args.length && args[index] != null)
+            {
+                return args[index].getClass();
+            }
+            else
+            {
+                return null;
+            }
         }
     }
 }
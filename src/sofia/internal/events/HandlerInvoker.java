@@ -0,0 +1,40 @@
+package sofia.internal.events;
+
+//-------------------------------------------------------------------------
+/**
+ * Calls a single resolved event handler on a receiver. Event dispatchers
+ * resolve a handler once per receiver class and then keep an invoker for it,
+ * so that each subsequent event only pays the cost of the call itself.
+ * <p>
+ * Exceptions thrown by the handler are propagated unchanged if they are
+ * unchecked; checked exceptions are wrapped in a {@code RuntimeException}.
+ * </p>
+ *
+ * @author  Last changed by $Author$
+ * @version $Revision$, $Date$
+ */
+public interface HandlerInvoker
+{
+    // ----------------------------------------------------------
+    /**
+     * Gets the formal parameter types of the handler, which determine the
+     * argument types of the transformer that calls it.
+     *
+     * @return the handler's parameter types
+     */
+    public Class<?>[] getParameterTypes();
+
+
+    // ----------------------------------------------------------
+    /**
+     * Invokes the handler on the specified receiver.
+     *
+     * @param receiver the object whose handler should be called
+     * @param args the (already transformed) arguments to pass to the
+     *     handler; the array may be reused for other events once the
+     *     handler has been called, so an invoker must not read it after
+     *     that or keep a reference to it
+     * @return the value returned by the handler, or null if it is void
+     */
+    public Object invoke(Object receiver, Object... args);
+}
@@ -0,0 +1,193 @@
+package sofia.internal.events;
+
+import java.lang.reflect.Method;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+
+//-------------------------------------------------------------------------
+/**
+ * An index from method name to the methods with that name that are declared
+ * by a class or any of its superclasses. Indexes are built lazily, once per
+ * class, and are shared by all event dispatchers. Each index records only the
+ * methods its own class declares, plus a pointer to the index of its
+ * superclass, so framework classes such as {@code Activity} are scanned only
+ * once, and their methods are stored only once, no matter how many screens
+ * extend them.
+ * <p>
+ * The methods for a name are merged down the hierarchy the first time that
+ * name is looked up in a class, and the result is remembered. After that,
+ * looking up a name that no method in the hierarchy has is a single hash
+ * probe, which is the common case for optional handlers such as
+ * {@code xxxClicked} that the user has not written.
+ * </p>
+ *
+ * @author  Last changed by $Author$
+ * @version $Revision$, $Date$
+ */
+public class MethodIndex
+{
+    //~ Fields ................................................................
+
+    private static final Method[] NO_METHODS = new Method[0];
+
+    private static final ConcurrentHashMap<Class<?>, MethodIndex> indexes =
+            new ConcurrentHashMap<Class<?>, MethodIndex>();
+
+    // The number of times getDeclaredMethods() has been called to build
+    // indexes, for measuring reflective startup cost.
+    private static final AtomicInteger declaredMethodScans =
+            new AtomicInteger();
+
+    // The index of the superclass, or null for a root class.
+    private final MethodIndex superIndex;
+
+    // The methods declared by this class itself. Never modified after the
+    // constructor finishes.
+    private final Map<String, Method[]> declaredByName;
+
+    // The names that have been looked up so far, mapped to the methods with
+    // that name in this class and its superclasses, most derived first.
+    private final ConcurrentHashMap<String, Method[]> mergedByName;
+
+
+    //~ Constructors ..........................................................
+
+    // ----------------------------------------------------------
+    private MethodIndex(Class<?> clazz, MethodIndex superIndex)
+    {
+        Map<String, List<Method>> declared =
+                new HashMap<String, List<Method>>();
+
+        declaredMethodScans.incrementAndGet();
+        for (Method method : clazz.getDeclaredMethods())
+        {
+            List<Method> methods = declared.get(method.getName());
+
+            if (methods == null)
+            {
+                methods = new ArrayList<Method>(1);
+                declared.put(method.getName(), methods);
+            }
+
+            methods.add(method);
+        }
+
+        this.superIndex = superIndex;
+        this.declaredByName = new HashMap<String, Method[]>(
+                (int) (declared.size() / 0.75f) + 1);
+        for (Map.Entry<String, List<Method>> entry : declared.entrySet())
+        {
+            List<Method> own = entry.getValue();
+            declaredByName.put(
+                    entry.getKey(), own.toArray(new Method[own.size()]));
+        }
+        this.mergedByName = new ConcurrentHashMap<String, Method[]>();
+    }
+
+
+    //~ Public methods ........................................................
+
+    // ----------------------------------------------------------
+    /**
+     * Gets the index for the specified class, building it (and the indexes
+     * of any of its superclasses that have not been indexed yet) if needed.
+     *
+     * @param clazz the class
+     * @return the index for the class
+     */
+    public static MethodIndex forClass(Class<?> clazz)
+    {
+        MethodIndex index = indexes.get(clazz);
+
+        if (index == null)
+        {
+            Class<?> superclass = clazz.getSuperclass();
+            MethodIndex superIndex =
+                    superclass != null ? forClass(superclass) : null;
+
+            index = new MethodIndex(clazz, superIndex);
+
+            MethodIndex existing = indexes.putIfAbsent(clazz, index);
+            if (existing != null)
+            {
+                index = existing;
+            }
+        }
+
+        return index;
+    }
+
+
+    // ----------------------------------------------------------
+    /**
+     * Gets the total number of times that {@code getDeclaredMethods()} has
+     * been called to build method indexes. Comparing this before and after
+     * a screen starts up shows how much reflective scanning it caused.
+     *
+     * @return the number of declared-method scans performed so far
+     */
+    public static int getDeclaredMethodScanCount()
+    {
+        return declaredMethodScans.get();
+    }
+
+
+    // ----------------------------------------------------------
+    /**
+     * Gets the methods with the specified name that are declared in the
+     * indexed class or its superclasses, most derived first. The returned
+     * array must not be modified.
+     *
+     * @param name the method name
+     * @return the methods with that name, or an empty array if there are
+     *     none
+     */
+    public Method[] getMethods(String name)
+    {
+        Method[] methods = mergedByName.get(name);
+
+        if (methods == null)
+        {
+            methods = merge(name);
+            mergedByName.putIfAbsent(name, methods);
+        }
+
+        return methods;
+    }
+
+
+    //~ Private methods .......................................................
+
+    // ----------------------------------------------------------
+    /**
+     * Combines the methods that this class declares with the specified name
+     * and those inherited from its superclasses. Methods declared in this
+     * class come before inherited methods with the same name, matching a
+     * walk up the hierarchy from this class. When this class declares no
+     * such method, the superclass's array is shared rather than copied.
+     */
+    private Method[] merge(String name)
+    {
+        Method[] inherited =
+                superIndex != null ? superIndex.getMethods(name) : NO_METHODS;
+        Method[] own = declaredByName.get(name);
+
+        if (own == null)
+        {
+            return inherited;
+        }
+        else if (inherited.length == 0)
+        {
+            return own;
+        }
+
+        Method[] all = new Method[own.length + inherited.length];
+        System.arraycopy(own, 0, all, 0, own.length);
+        System.arraycopy(inherited, 0, all, own.length, inherited.length);
+        return all;
+    }
+}
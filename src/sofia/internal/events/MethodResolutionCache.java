@@ -0,0 +1,419 @@
+package sofia.internal.events;
+
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import sofia.internal.events.EventDispatcher.MethodTransformer;
+
+//-------------------------------------------------------------------------
+/**
+ * A process-wide registry of resolved event handlers that is shared by every
+ * {@link EventDispatcher}. Dispatchers are created freely throughout the
+ * library (one per observer, one per sub-activity callback, and so forth),
+ * so keeping the results of reflective method resolution here, rather than
+ * in each dispatcher, means that a given (dispatcher kind, method name,
+ * receiver class, argument classes) combination only has to be resolved once
+ * for the lifetime of the process.
+ * <p>
+ * The registry is safe to use from multiple threads. Lookups of keys that
+ * have already been resolved never lock. When several threads miss the same
+ * key at once, only one of them performs the resolution and the others wait
+ * for its result. The registry's size is bounded; once the maximum number
+ * of entries is reached, arbitrary entries are discarded to make room, and
+ * will simply be resolved again if they are needed later.
+ * </p>
+ *
+ * @author  Last changed by $Author$
+ * @version $Revision$, $Date$
+ */
+public class MethodResolutionCache
+{
+    //~ Fields ................................................................
+
+    // The default limit on the number of resolutions held in the registry.
+    private static final int DEFAULT_MAXIMUM_SIZE = 2048;
+
+    private static final MethodResolutionCache instance =
+            new MethodResolutionCache(DEFAULT_MAXIMUM_SIZE);
+
+    private final ConcurrentHashMap<ResolutionKey,
+        Future<List<MethodTransformer>>> resolutions;
+    private final int maximumSize;
+    private final AtomicInteger size;
+    private final AtomicLong hitCount;
+    private final AtomicLong missCount;
+
+
+    //~ Constructors ..........................................................
+
+    // ----------------------------------------------------------
+    /**
+     * Creates a new resolution registry that holds at most the specified
+     * number of entries.
+     *
+     * @param maximumSize the maximum number of resolutions to hold
+     */
+    MethodResolutionCache(int maximumSize)
+    {
+        this.maximumSize = maximumSize;
+        this.resolutions = new ConcurrentHashMap<ResolutionKey,
+                Future<List<MethodTransformer>>>();
+        this.size = new AtomicInteger();
+        this.hitCount = new AtomicLong();
+        this.missCount = new AtomicLong();
+    }
+
+
+    //~ Public methods ........................................................
+
+    // ----------------------------------------------------------
+    /**
+     * Gets the registry shared by all event dispatchers in the process.
+     *
+     * @return the shared resolution registry
+     */
+    public static MethodResolutionCache getInstance()
+    {
+        return instance;
+    }
+
+
+    // ----------------------------------------------------------
+    /**
+     * Gets the number of lookups that were satisfied by a previously
+     * resolved entry.
+     *
+     * @return the number of cache hits
+     */
+    public long getHitCount()
+    {
+        return hitCount.get();
+    }
+
+
+    // ----------------------------------------------------------
+    /**
+     * Gets the number of lookups that required reflective resolution.
+     *
+     * @return the number of cache misses
+     */
+    public long getMissCount()
+    {
+        return missCount.get();
+    }
+
+
+    // ----------------------------------------------------------
+    /**
+     * Gets the number of resolutions currently held in the registry.
+     *
+     * @return the number of entries in the registry
+     */
+    public int size()
+    {
+        return size.get();
+    }
+
+
+    // ----------------------------------------------------------
+    /**
+     * Discards every resolution in the registry. The hit and miss counters
+     * are not reset.
+     */
+    public void clear()
+    {
+        for (Map.Entry<ResolutionKey, Future<List<MethodTransformer>>> entry
+                : resolutions.entrySet())
+        {
+            discard(entry.getKey(), entry.getValue());
+        }
+    }
+
+
+    // ----------------------------------------------------------
+    @Override
+    public String toString()
+    {
+        return "MethodResolutionCache[size=" + size() + ", hits="
+                + getHitCount() + ", misses=" + getMissCount() + "]";
+    }
+
+
+    //~ Package-private methods ...............................................
+
+    // ----------------------------------------------------------
+    /**
+     * Gets the transformers associated with a key, resolving them with the
+     * specified resolver if this is the first time the key has been seen.
+     * If another thread is already resolving the same key, this method waits
+     * for that resolution to finish and returns its result, so the resolver
+     * is run at most once per key (unless the key is later discarded to keep
+     * the registry within its size limit). If the resolver throws an
+     * exception, nothing is recorded and the exception is rethrown to every
+     * waiting caller.
+     *
+     * @param key the resolution key
+     * @param resolver the resolver to run if the key has not been resolved
+     * @return the transformers associated with the key
+     */
+    List<MethodTransformer> resolve(ResolutionKey key,
+            Callable<List<MethodTransformer>> resolver)
+    {
+        Future<List<MethodTransformer>> resolution = resolutions.get(key);
+
+        if (resolution != null)
+        {
+            hitCount.incrementAndGet();
+        }
+        else
+        {
+            missCount.incrementAndGet();
+
+            FutureTask<List<MethodTransformer>> task =
+                    new FutureTask<List<MethodTransformer>>(resolver);
+            resolution = resolutions.putIfAbsent(key, task);
+
+            if (resolution == null)
+            {
+                // Count the entry before resolving it, so that a concurrent
+                // clear() or failed resolution that discards it is always
+                // balanced by this increment.
+                boolean full = size.incrementAndGet() > maximumSize;
+                task.run();
+                List<MethodTransformer> transformers = await(key, task);
+
+                // Keep only the result, so that the task and its resolver
+                // can be collected once no thread is waiting on them.
+                resolutions.replace(key, task, new Resolved(transformers));
+
+                if (full)
+                {
+                    trimToSize();
+                }
+
+                return transformers;
+            }
+        }
+
+        return await(key, resolution);
+    }
+
+
+    //~ Private methods .......................................................
+
+    // ----------------------------------------------------------
+    private List<MethodTransformer> await(ResolutionKey key,
+            Future<List<MethodTransformer>> resolution)
+    {
+        boolean interrupted = false;
+
+        try
+        {
+            while (true)
+            {
+                try
+                {
+                    return resolution.get();
+                }
+                catch (InterruptedException e)
+                {
+                    interrupted = true;
+                }
+                catch (ExecutionException e)
+                {
+                    discard(key, resolution);
+
+                    Throwable cause = e.getCause();
+
+                    if (cause instanceof Error)
+                    {
+                        throw (Error) cause;
+                    }
+                    else if (cause instanceof RuntimeException)
+                    {
+                        throw (RuntimeException) cause;
+                    }
+                    else
+                    {
+                        throw new RuntimeException(cause);
+                    }
+                }
+            }
+        }
+        finally
+        {
+            if (interrupted)
+            {
+                Thread.currentThread().interrupt();
+            }
+        }
+    }
+
+
+    // ----------------------------------------------------------
+    private void trimToSize()
+    {
+        Iterator<Map.Entry<ResolutionKey, Future<List<MethodTransformer>>>>
+                it = resolutions.entrySet().iterator();
+        while (size.get() > maximumSize && it.hasNext())
+        {
+            Map.Entry<ResolutionKey, Future<List<MethodTransformer>>> entry =
+                    it.next();
+            discard(entry.getKey(), entry.getValue());
+        }
+    }
+
+
+    // ----------------------------------------------------------
+    /**
+     * Removes an entry if it still maps to the specified resolution, keeping
+     * the size count in step. Only the thread whose removal succeeds
+     * decrements the count, so racing removals of the same entry cannot
+     * count it twice.
+     */
+    private void discard(ResolutionKey key,
+            Future<List<MethodTransformer>> resolution)
+    {
+        if (resolutions.remove(key, resolution))
+        {
+            size.decrementAndGet();
+        }
+    }
+
+
+    //~ Inner classes .........................................................
+
+    // ----------------------------------------------------------
+    /**
+     * A resolution that has completed, holding nothing but its result.
+     */
+    private static class Resolved
+        implements Future<List<MethodTransformer>>
+    {
+        private final List<MethodTransformer> transformers;
+
+
+        // ----------------------------------------------------------
+        public Resolved(List<MethodTransformer> transformers)
+        {
+            this.transformers = transformers;
+        }
+
+
+        // ----------------------------------------------------------
+        public boolean cancel(boolean mayInterruptIfRunning)
+        {
+            return false;
+        }
+
+
+        // ----------------------------------------------------------
+        public boolean isCancelled()
+        {
+            return false;
+        }
+
+
+        // ----------------------------------------------------------
+        public boolean isDone()
+        {
+            return true;
+        }
+
+
+        // ----------------------------------------------------------
+        public List<MethodTransformer> get()
+        {
+            return transformers;
+        }
+
+
+        // ----------------------------------------------------------
+        public List<MethodTransformer> get(long timeout, TimeUnit unit)
+        {
+            return transformers;
+        }
+    }
+
+
+    // ----------------------------------------------------------
+    /**
+     * Identifies a single resolution: the kind of dispatcher that performed
+     * it, the name of the method it looks for, the class of the receiver, and
+     * the classes of the actual arguments.
+     */
+    static class ResolutionKey
+    {
+        private final Object dispatcherKind;
+        private final String methodName;
+        private final Class<?> receiverType;
+        private final List<Class<?>> argTypes;
+        private final int hash;
+
+
+        // ----------------------------------------------------------
+        public ResolutionKey(Object dispatcherKind, String methodName,
+                Class<?> receiverType, List<Class<?>> argTypes)
+        {
+            this.dispatcherKind = dispatcherKind;
+            this.methodName = methodName;
+            this.receiverType = receiverType;
+            this.argTypes = argTypes;
+
+            hash = receiverType.hashCode() ^ (argTypes.hashCode() << 13)
+                    ^ (methodName.hashCode() * 31) ^ dispatcherKind.hashCode();
+        }
+
+
+        // ----------------------------------------------------------
+        public Class<?> getReceiverType()
+        {
+            return receiverType;
+        }
+
+
+        // ----------------------------------------------------------
+        public List<Class<?>> getParameterTypes()
+        {
+            return argTypes;
+        }
+
+
+        // ----------------------------------------------------------
+        @Override
+        public boolean equals(Object other)
+        {
+            if (other instanceof ResolutionKey)
+            {
+                ResolutionKey otherKey = (ResolutionKey) other;
+
+                return hash == otherKey.hash
+                        && receiverType.equals(otherKey.receiverType)
+                        && methodName.equals(otherKey.methodName)
+                        && dispatcherKind.equals(otherKey.dispatcherKind)
+                        && argTypes.equals(otherKey.argTypes);
+            }
+            else
+            {
+                return false;
+            }
+        }
+
+
+        // ----------------------------------------------------------
+        @Override
+        public int hashCode()
+        {
+            return hash;
+        }
+    }
+}
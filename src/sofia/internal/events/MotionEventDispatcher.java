@@ -6,7 +6,32 @@ import android.view.MotionEvent;
 
 //-------------------------------------------------------------------------
 /**
- * TODO document
+ * An event dispatcher for touch events. In addition to handlers that take
+ * the {@code MotionEvent} itself, it supports handlers that take the
+ * coordinates of the event, {@code (float x, float y)}, and handlers that
+ * take every sample batched into the event, including the historical
+ * samples that Android coalesces into a single {@code ACTION_MOVE}. A
+ * handler that follows only the first pointer takes
+ * <pre>
+ * public void onTouchMove(float[] xs, float[] ys, long[] times, int count)</pre>
+ * <p>
+ * where each array holds {@code count} samples, oldest first, with the
+ * current position last; the times are event times in the
+ * {@code SystemClock.uptimeMillis()} time base. A handler that follows
+ * every pointer takes
+ * </p>
+ * <pre>
+ * public void onTouchMove(float[] xs, float[] ys, long[] times, int count,
+ *     int pointers)</pre>
+ * <p>
+ * where {@code times} is as before, and the coordinates of pointer
+ * {@code p} (in {@code MotionEvent} pointer index order) at sample
+ * {@code i} are {@code xs[i * pointers + p]} and
+ * {@code ys[i * pointers + p]}.
+ * </p><p>
+ * The sample arrays are allocated for each event and belong to the handler,
+ * which may keep them.
+ * </p>
  *
  * @author  Tony Allevato
  * @version 2012.10.24
@@ -16,6 +41,8 @@ public class MotionEventDispatcher extends EventDispatcher
     //~ Fields ................................................................
 
     private MethodTransformer xyTransformer;
+    private MethodTransformer samplesTransformer;
+    private MethodTransformer pointerSamplesTransformer;
 
 
     //~ Constructors ..........................................................
@@ -37,7 +64,10 @@ public class MotionEventDispatcher extends EventDispatcher
         List<MethodTransformer> descriptors =
                 super.lookupTransformers(receiver, argTypes);
 
-        getXYTransformer().addIfSupportedBy(receiver, descriptors);
+        getXYTransformer().addIfSupportedBy(this, receiver, descriptors);
+        getSamplesTransformer().addIfSupportedBy(this, receiver, descriptors);
+        getPointerSamplesTransformer().addIfSupportedBy(
+                this, receiver, descriptors);
 
         return descriptors;
     }
@@ -52,17 +82,155 @@ public class MotionEventDispatcher extends EventDispatcher
     {
         if (xyTransformer == null)
         {
-            xyTransformer = new MethodTransformer(float.class, float.class)
+            xyTransformer = new XYTransformer();
+        }
+
+        return xyTransformer;
+    }
+
+
+    // ----------------------------------------------------------
+    /**
+     * Transforms an event with signature (MotionEvent event) to one with
+     * signature (float[] xs, float[] ys, long[] times, int count), containing
+     * the historical samples of the event's first pointer followed by its
+     * current sample.
+     */
+    protected MethodTransformer getSamplesTransformer()
+    {
+        if (samplesTransformer == null)
+        {
+            samplesTransformer = new SamplesTransformer(false);
+        }
+
+        return samplesTransformer;
+    }
+
+
+    // ----------------------------------------------------------
+    /**
+     * Transforms an event with signature (MotionEvent event) to one with
+     * signature (float[] xs, float[] ys, long[] times, int count,
+     * int pointers), containing the historical samples of every pointer in
+     * the event followed by their current samples.
+     */
+    protected MethodTransformer getPointerSamplesTransformer()
+    {
+        if (pointerSamplesTransformer == null)
+        {
+            pointerSamplesTransformer = new SamplesTransformer(true);
+        }
+
+        return pointerSamplesTransformer;
+    }
+
+
+    //~ Inner classes .........................................................
+
+    // ----------------------------------------------------------
+    /**
+     * Passes the coordinates of the event instead of the event itself.
+     * Static, so that cached resolutions do not keep the dispatcher alive.
+     * On the UI thread the argument array is reused, but the reflective call
+     * still needs each coordinate boxed, so every event allocates two
+     * {@code Float} objects.
+     */
+    private static class XYTransformer extends MethodTransformer
+    {
+        private final Object[] coordinates = new Object[2];
+
+
+        // ----------------------------------------------------------
+        public XYTransformer()
+        {
+            super(float.class, float.class);
+        }
+
+
+        // ----------------------------------------------------------
+        @Override
+        protected Object[] transform(Object... args)
+        {
+            MotionEvent e = (MotionEvent) args[0];
+            Object[] xy = isUiThread() ? coordinates : new Object[2];
+            xy[0] = e.getX();
+            xy[1] = e.getY();
+            return xy;
+        }
+    }
+
+
+    // ----------------------------------------------------------
+    /**
+     * Passes every sample batched into the event instead of the event
+     * itself, either for the first pointer only or for all of them. The
+     * sample arrays are new for each event; only the argument array that
+     * carries them is reused, on the UI thread.
+     */
+    private static class SamplesTransformer extends MethodTransformer
+    {
+        private final boolean allPointers;
+        private final Object[] samples;
+
+
+        // ----------------------------------------------------------
+        public SamplesTransformer(boolean allPointers)
+        {
+            super(allPointers
+                    ? new Class<?>[] { float[].class, float[].class,
+                            long[].class, int.class, int.class }
+                    : new Class<?>[] { float[].class, float[].class,
+                            long[].class, int.class });
+            this.allPointers = allPointers;
+            this.samples = new Object[allPointers ? 5 : 4];
+        }
+
+
+        // ----------------------------------------------------------
+        @Override
+        protected Object[] transform(Object... args)
+        {
+            MotionEvent e = (MotionEvent) args[0];
+            int pointers = allPointers ? e.getPointerCount() : 1;
+            int history = e.getHistorySize();
+            int count = history + 1;
+
+            float[] xs = new float[count * pointers];
+            float[] ys = new float[count * pointers];
+            long[] times = new long[count];
+
+            for (int i = 0; i < history; i++)
             {
-                // ----------------------------------------------------------
-                protected Object[] transform(Object... args)
+                for (int p = 0; p < pointers; p++)
                 {
-                    MotionEvent e = (MotionEvent) args[0];
-                    return new Object[] { (float) e.getX(), (float) e.getY() };
+                    xs[i * pointers + p] = e.getHistoricalX(p, i);
+                    ys[i * pointers + p] = e.getHistoricalY(p, i);
                 }
-            };
-        }
 
-        return xyTransformer;
+                times[i] = e.getHistoricalEventTime(i);
+            }
+
+            for (int p = 0; p < pointers; p++)
+            {
+                xs[history * pointers + p] = e.getX(p);
+                ys[history * pointers + p] = e.getY(p);
+            }
+
+            times[history] = e.getEventTime();
+
+            Object[] result = isUiThread()
+                    ? samples : new Object[samples.length];
+            result[0] = xs;
+            result[1] = ys;
+            result[2] = times;
+            result[3] = count;
+
+            if (allPointers)
+            {
+                result[4] = pointers;
+            }
+
+            return result;
+        }
     }
 }
@@ -1,6 +1,6 @@
 package sofia.internal.events;
 
-import java.lang.reflect.Array;
+import java.util.Arrays;
 import java.util.List;
 
 //-------------------------------------------------------------------------
@@ -31,6 +31,9 @@ public class OptionalEventDispatcher extends EventDispatcher
 
     private int minimumArgCount;
 
+    // Distinguishes resolutions made with different minimum argument counts.
+    private Object resolutionKind;
+
 
     //~ Constructors ..........................................................
 
@@ -61,11 +64,20 @@ public class OptionalEventDispatcher extends EventDispatcher
         super(method);
 
         this.minimumArgCount = minimumArgCount;
+        this.resolutionKind = Arrays.asList(getClass(), minimumArgCount);
     }
 
 
     //~ Protected methods .....................................................
 
+    // ----------------------------------------------------------
+    @Override
+    protected Object getResolutionKind()
+    {
+        return resolutionKind;
+    }
+
+
     // ----------------------------------------------------------
     @Override
     protected List<MethodTransformer> lookupTransformers(
@@ -74,40 +86,16 @@ public class OptionalEventDispatcher extends EventDispatcher
         List<MethodTransformer> descriptors =
                 super.lookupTransformers(receiver, argTypes);
 
-        Class<?>[] argTypeArray = new Class<?>[argTypes.size()];
-        argTypes.toArray(argTypeArray);
-
         // We start at size - 1 because the superclass implementation handles
         // the exact match.
         for (int i = argTypes.size() - 1; i >= minimumArgCount; i--)
         {
-            final int thisCount = i;
-
-            MethodTransformer transformer =
-                    new MethodTransformer(
-                            firstN(argTypeArray, thisCount, Class.class))
-            {
-                protected Object[] transform(Object... args)
-                {
-                    return firstN(args, thisCount, Object.class);
-                }
-            };
-
-            transformer.addIfSupportedBy(receiver, descriptors);
+            MethodTransformer transformer = new MappedTransformer(
+                    ArgumentMapping.prefix(i), argTypes);
+
+            transformer.addIfSupportedBy(this, receiver, descriptors);
         }
 
         return descriptors;
     }
-
-
-    //~ Private methods .......................................................
-
-    // ----------------------------------------------------------
-    @SuppressWarnings("unchecked")
-    private static <T> T[] firstN(T[] array, int n, Class<T> klass)
-    {
-        T[] firstN = (T[]) Array.newInstance(klass, n);
-        System.arraycopy(array, 0, firstN, 0, n);
-        return firstN;
-    }
 }
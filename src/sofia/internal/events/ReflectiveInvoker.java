@@ -0,0 +1,147 @@
+package sofia.internal.events;
+
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.lang.reflect.Modifier;
+
+//-------------------------------------------------------------------------
+/**
+ * A {@link HandlerInvoker} that calls a handler through
+ * {@link Method#invoke(Object, Object...)}.
+ * <p>
+ * When it is created, the invoker tries to bind the method by suppressing
+ * Java language access checks on it, which removes the per-call caller and
+ * visibility checks that otherwise dominate the cost of a reflective call on
+ * the Dalvik VM. Only a public method of a public class is bound, since the
+ * checks could never fail for it anyway; binding never makes a handler
+ * callable that was not already accessible. A private or package-private
+ * handler, or any handler of a class that is not public, is called through
+ * the fully checked reflective path, exactly as it would be without this
+ * invoker, and so is any method if the security policy does not allow
+ * binding.
+ * </p>
+ *
+ * @author  Last changed by $Author$
+ * @version $Revision$, $Date$
+ */
+public class ReflectiveInvoker implements HandlerInvoker
+{
+    //~ Fields ................................................................
+
+    private final Method method;
+    private final boolean bound;
+
+
+    //~ Constructors ..........................................................
+
+    // ----------------------------------------------------------
+    /**
+     * Creates a new invoker for the specified method.
+     *
+     * @param method the handler method
+     */
+    public ReflectiveInvoker(Method method)
+    {
+        this.method = method;
+        this.bound = bind(method);
+    }
+
+
+    //~ Public methods ........................................................
+
+    // ----------------------------------------------------------
+    /**
+     * Gets the handler method that this invoker calls.
+     *
+     * @return the handler method
+     */
+    public Method getMethod()
+    {
+        return method;
+    }
+
+
+    // ----------------------------------------------------------
+    /**
+     * Gets a value indicating whether access checks were suppressed for the
+     * handler method, or whether each call goes through the fully checked
+     * reflective path.
+     *
+     * @return true if the method was bound, false if this invoker is using
+     *     the checked fallback because the method or its class is not public,
+     *     or because binding is not allowed
+     */
+    public boolean isBound()
+    {
+        return bound;
+    }
+
+
+    // ----------------------------------------------------------
+    public Class<?>[] getParameterTypes()
+    {
+        return method.getParameterTypes();
+    }
+
+
+    // ----------------------------------------------------------
+    public Object invoke(Object receiver, Object... args)
+    {
+        try
+        {
+            return method.invoke(receiver, args);
+        }
+        catch (InvocationTargetException e)
+        {
+            Throwable cause = e.getCause();
+
+            if (cause instanceof Error)
+            {
+                throw (Error) cause;
+            }
+            else if (cause instanceof RuntimeException)
+            {
+                throw (RuntimeException) cause;
+            }
+            else
+            {
+                throw new RuntimeException(cause);
+            }
+        }
+        catch (IllegalAccessException e)
+        {
+            throw new RuntimeException(e);
+        }
+    }
+
+
+    // ----------------------------------------------------------
+    @Override
+    public String toString()
+    {
+        return method.toGenericString();
+    }
+
+
+    //~ Private methods .......................................................
+
+    // ----------------------------------------------------------
+    private static boolean bind(Method method)
+    {
+        if (!Modifier.isPublic(method.getModifiers())
+                || !Modifier.isPublic(method.getDeclaringClass().getModifiers()))
+        {
+            return false;
+        }
+
+        try
+        {
+            method.setAccessible(true);
+            return true;
+        }
+        catch (SecurityException e)
+        {
+            return false;
+        }
+    }
+}
@@ -1,6 +1,5 @@
 package sofia.internal.events;
 
-import java.util.ArrayList;
 import java.util.List;
 
 //-------------------------------------------------------------------------
@@ -31,47 +30,11 @@ public class ReversibleEventDispatcher extends EventDispatcher
 		List<MethodTransformer> descriptors =
 				super.lookupTransformers(receiver, argTypes);
 
-		MethodTransformer reverseTransformer =
-				new MethodTransformer(reverse(argTypes))
-		{
-			protected Object[] transform(Object... args)
-			{
-				return reverse(args);
-			}			
-		};
+		MethodTransformer reverseTransformer = new MappedTransformer(
+				ArgumentMapping.reversal(argTypes.size()), argTypes);
 
-		reverseTransformer.addIfSupportedBy(receiver, descriptors);
+		reverseTransformer.addIfSupportedBy(this, receiver, descriptors);
 
 		return descriptors;
 	}
-
-	
-	//~ Private methods .......................................................
-
-	// ----------------------------------------------------------
-	private static <T> List<T> reverse(List<T> list)
-	{
-		ArrayList<T> reversed = new ArrayList<T>(list.size());
-		
-		for (int i = list.size() - 1; i >= 0; i--)
-		{
-			reversed.add(list.get(i));
-		}
-		
-		return reversed;
-	}
-
-
-	// ----------------------------------------------------------
-	private static Object[] reverse(Object... objects)
-	{
-		Object[] reversed = new Object[objects.length];
-		
-		for (int i = 0; i < objects.length; i++)
-		{
-			reversed[objects.length - i - 1] = objects[i];
-		}
-		
-		return reversed;
-	}
 }
@@ -1,6 +1,7 @@
 package sofia.widget;
 
 import java.io.BufferedInputStream;
+import java.io.ByteArrayOutputStream;
 import java.io.IOException;
 import java.io.InputStream;
 import java.net.URL;
@@ -9,6 +10,9 @@ import java.net.URLConnection;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
+import sofia.internal.BitmapPool;
+import sofia.internal.SampledBitmapDecoder;
+
 import android.content.Context;
 import android.graphics.Bitmap;
 import android.graphics.BitmapFactory;
@@ -23,6 +27,10 @@ import android.util.AttributeSet;
 /**
  * A subclass of {@link android.widget.ImageView} that can load images from
  * HTTP/HTTPS URIs as well as resource and content resolver URIs.
+ * Images downloaded from HTTP/HTTPS URIs belong to the view, and when they
+ * are replaced, their memory is given to the shared {@link BitmapPool} to
+ * be reused by later decodes.  Do not keep using such an image after
+ * setting a different one.
  *
  * @author  Tony Allevato
  * @version 2013.03.18
@@ -34,6 +42,9 @@ public class ImageView extends android.widget.ImageView
     private Uri imageURI;
     private boolean loaded;
 
+    // The downloaded bitmap being shown, if any, which this view may recycle
+    private Bitmap ownedBitmap;
+
     private static final Logger log = LoggerFactory.getLogger(ImageView.class);
 
 
@@ -100,7 +111,9 @@ public class ImageView extends android.widget.ImageView
             else
             {
                 loaded = true;
+                Bitmap old = releaseOwnedBitmap();
                 super.setImageURI(uri);
+                recycle(old);
             }
         }
         else
@@ -116,7 +129,12 @@ public class ImageView extends android.widget.ImageView
     public void setImageBitmap(Bitmap bm)
     {
         imageURI = null;
+        Bitmap old = releaseOwnedBitmap();
         super.setImageBitmap(bm);
+        if (old != bm)
+        {
+            recycle(old);
+        }
     }
 
 
@@ -125,7 +143,9 @@ public class ImageView extends android.widget.ImageView
     public void setImageDrawable(Drawable drawable)
     {
         imageURI = null;
+        Bitmap old = releaseOwnedBitmap();
         super.setImageDrawable(drawable);
+        recycle(old);
     }
 
 
@@ -134,7 +154,9 @@ public class ImageView extends android.widget.ImageView
     public void setImageResource(int resId)
     {
         imageURI = null;
+        Bitmap old = releaseOwnedBitmap();
         super.setImageResource(resId);
+        recycle(old);
     }
 
 
@@ -146,6 +168,33 @@ public class ImageView extends android.widget.ImageView
     }
 
 
+    //~ Private methods .......................................................
+
+    // ----------------------------------------------------------
+    /**
+     * Stops treating the current image as owned by this view, so that it
+     * can be recycled once it is no longer shown.
+     *
+     * @return the bitmap this view owned, or null if it owned none
+     */
+    private Bitmap releaseOwnedBitmap()
+    {
+        Bitmap old = ownedBitmap;
+        ownedBitmap = null;
+        return old;
+    }
+
+
+    // ----------------------------------------------------------
+    private static void recycle(Bitmap bitmap)
+    {
+        if (bitmap != null && !BitmapPool.getShared().put(bitmap))
+        {
+            bitmap.recycle();
+        }
+    }
+
+
     //~ Inner classes .........................................................
 
     // ----------------------------------------------------------
@@ -186,6 +235,7 @@ public class ImageView extends android.widget.ImageView
                     // FIXME Possible race conditions!
                     loaded = true;
                     setImageBitmap(bitmap);
+                    ownedBitmap = bitmap;
                     imageURI = uri;
                 }
             });
@@ -207,7 +257,25 @@ public class ImageView extends android.widget.ImageView
                 conn.connect();
                 is = conn.getInputStream();
                 bis = new BufferedInputStream(is, 8192);
-                bm = BitmapFactory.decodeStream(bis);
+
+                // Read the whole image first, so that it can be decoded
+                // into a pooled bitmap once its size is known
+                ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+                byte[] buffer = new byte[8192];
+                int count;
+                while ((count = bis.read(buffer)) != -1)
+                {
+                    bytes.write(buffer, 0, count);
+                }
+                final byte[] data = bytes.toByteArray();
+                bm = BitmapPool.getShared().decode(
+                    new SampledBitmapDecoder.Source() {
+                        public Bitmap decode(BitmapFactory.Options options)
+                        {
+                            return BitmapFactory.decodeByteArray(
+                                data, 0, data.length, options);
+                        }
+                    }, null, true);
             }
             catch (Exception e)
             {
@@ -0,0 +1,197 @@
+package sofia.internal;
+
+import java.io.BufferedReader;
+import java.io.FileReader;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+
+//-------------------------------------------------------------------------
+/**
+ *  Compares the hit rate of an {@link MRUMap} with and without its
+ *  admission filter (see {@link MRUMap#setAdmissionFilter(boolean)}) on
+ *  access traces.  Each access looks up a key and stores it when the
+ *  lookup misses, as a cache of loaded images would.
+ *  <p>
+ *  With no arguments, it replays three synthetic traces: a skewed (Zipf)
+ *  distribution over many more keys than the map holds; the same
+ *  distribution interrupted regularly by one-off scans of keys that are
+ *  never used again, like scrolling once through a long list of images;
+ *  and a loop over slightly more keys than the map holds.  Recorded traces
+ *  can be given instead, as files with one key per line, optionally
+ *  preceded by the capacity to simulate, for example
+ *  {@code java sofia.internal.AdmissionFilterBenchmark 500 trace.txt}.
+ *  </p>
+ *
+ *  @author Last changed by $Author$
+ *  @version $Revision$, $Date$
+ */
+public class AdmissionFilterBenchmark
+{
+    //~ Public methods ........................................................
+
+    // ----------------------------------------------------------
+    /**
+     * Run the benchmark.
+     * @param args The capacity to simulate (optional), followed by the
+     *             trace files to replay (if none, synthetic traces are
+     *             used).
+     * @throws Exception if a trace file cannot be read.
+     */
+    public static void main(String[] args)
+        throws Exception
+    {
+        int capacity = CAPACITY;
+        List<String> files = new ArrayList<String>(Arrays.asList(args));
+        if (!files.isEmpty() && files.get(0).matches("\\d+"))
+        {
+            capacity = Integer.parseInt(files.remove(0));
+        }
+
+        System.out.println("Capacity " + capacity);
+        if (files.isEmpty())
+        {
+            replay("zipf", zipf(ACCESSES, 0), capacity);
+            replay("zipf with scans", zipf(ACCESSES, SCAN_LENGTH), capacity);
+            replay("loop", loop(ACCESSES, capacity + capacity / 5), capacity);
+        }
+        else
+        {
+            for (String file : files)
+            {
+                replay(file, read(file), capacity);
+            }
+        }
+    }
+
+
+    //~ Private methods .......................................................
+
+    // ----------------------------------------------------------
+    /**
+     * Replay a trace against a map with and without the admission filter,
+     * and print both hit rates.
+     */
+    private static void replay(String name, List<Object> trace, int capacity)
+    {
+        System.out.println(name + " (" + trace.size() + " accesses): LRU "
+            + percent(hitRate(trace, capacity, false)) + ", admission filter "
+            + percent(hitRate(trace, capacity, true)));
+    }
+
+
+    // ----------------------------------------------------------
+    private static double hitRate(
+        List<Object> trace, int capacity, boolean filter)
+    {
+        MRUMap<Object, Object> map =
+            new MRUMap<Object, Object>(capacity, 0, null);
+        map.setAdmissionFilter(filter);
+        int hits = 0;
+        for (Object key : trace)
+        {
+            if (map.get(key) != null)
+            {
+                hits++;
+            }
+            else
+            {
+                map.put(key, key);
+            }
+        }
+        return (double)hits / trace.size();
+    }
+
+
+    // ----------------------------------------------------------
+    /**
+     * Generate a Zipf-distributed trace over ZIPF_KEYS keys.  If scanLength
+     * is positive, a scan of that many new keys follows every SCAN_PERIOD
+     * accesses.
+     */
+    private static List<Object> zipf(int accesses, int scanLength)
+    {
+        double[] cumulative = new double[ZIPF_KEYS];
+        double sum = 0;
+        for (int i = 0; i < ZIPF_KEYS; i++)
+        {
+            sum += 1 / Math.pow(i + 1, ZIPF_EXPONENT);
+            cumulative[i] = sum;
+        }
+
+        Random random = new Random(SEED);
+        List<Object> trace = new ArrayList<Object>(accesses);
+        int nextScanKey = ZIPF_KEYS;
+        while (trace.size() < accesses)
+        {
+            int index = Arrays.binarySearch(
+                cumulative, random.nextDouble() * sum);
+            trace.add(index >= 0 ? index : -index - 1);
+            if (scanLength > 0 && trace.size() % SCAN_PERIOD == 0)
+            {
+                for (int i = 0; i < scanLength; i++)
+                {
+                    trace.add(nextScanKey++);
+                }
+            }
+        }
+        return trace;
+    }
+
+
+    // ----------------------------------------------------------
+    private static List<Object> loop(int accesses, int keys)
+    {
+        List<Object> trace = new ArrayList<Object>(accesses);
+        for (int i = 0; i < accesses; i++)
+        {
+            trace.add(i % keys);
+        }
+        return trace;
+    }
+
+
+    // ----------------------------------------------------------
+    private static List<Object> read(String file)
+        throws Exception
+    {
+        List<Object> trace = new ArrayList<Object>();
+        BufferedReader in = new BufferedReader(new FileReader(file));
+        try
+        {
+            for (String line = in.readLine(); line != null;
+                line = in.readLine())
+            {
+                line = line.trim();
+                if (line.length() > 0)
+                {
+                    trace.add(line);
+                }
+            }
+        }
+        finally
+        {
+            in.close();
+        }
+        return trace;
+    }
+
+
+    // ----------------------------------------------------------
+    private static String percent(double rate)
+    {
+        return Math.round(rate * 1000) / 10.0 + "%";
+    }
+
+
+    //~ Instance/static variables .............................................
+
+    private static final int CAPACITY = 500;
+    private static final int ACCESSES = 200000;
+    private static final int ZIPF_KEYS = 10000;
+    private static final double ZIPF_EXPONENT = 0.9;
+    private static final int SCAN_PERIOD = 10000;
+    private static final int SCAN_LENGTH = 2000;
+    private static final long SEED = 42;
+}
@@ -0,0 +1,171 @@
+package sofia.internal;
+
+import java.io.File;
+import java.net.URL;
+import java.net.URLClassLoader;
+import java.util.ArrayList;
+import java.util.Enumeration;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipFile;
+
+//-------------------------------------------------------------------------
+/**
+ *  Compares finding images through a {@link ClasspathImageIndex} with
+ *  probing a class loader for each candidate path, the way
+ *  {@link JarResources} does without an index.  For every image in the
+ *  archive, and for as many names that do not exist, it checks each
+ *  density directory and extension that a lookup would try.  It reports
+ *  the total for all candidates and the average for one image name, which
+ *  is the cost of one uncached lookup.
+ *  <p>
+ *  Run it on the desktop with the archive to measure as its argument
+ *  (an APK or a JAR with images in "images" directories), for example
+ *  {@code java sofia.internal.ClasspathImageIndexBenchmark app.apk}.
+ *  Desktop timings only show the relative cost of the two approaches;
+ *  the absolute numbers on a device will differ.
+ *  </p>
+ *
+ *  @author Last changed by $Author$
+ *  @version $Revision$, $Date$
+ */
+public class ClasspathImageIndexBenchmark
+{
+    //~ Public methods ........................................................
+
+    // ----------------------------------------------------------
+    /**
+     * Run the benchmark.
+     * @param args The path of the archive to measure.
+     * @throws Exception if the archive cannot be opened.
+     */
+    public static void main(String[] args)
+        throws Exception
+    {
+        if (args.length != 1)
+        {
+            System.err.println("usage: ClasspathImageIndexBenchmark archive");
+            System.exit(1);
+        }
+
+        long start = System.nanoTime();
+        ClasspathImageIndex index = ClasspathImageIndex.build(args[0]);
+        long buildNanos = System.nanoTime() - start;
+        if (index == null)
+        {
+            System.err.println("No images found in " + args[0]);
+            System.exit(1);
+        }
+        System.out.println("Indexed " + index.size() + " images in "
+            + buildNanos / 1000 + " us");
+
+        List<String> candidates = candidatePaths(args[0]);
+        // Each name is tried in every density directory with every extension
+        int names = candidates.size() / (DENSITIES.length * EXTENSIONS.length);
+        ClassLoader loader = new URLClassLoader(
+            new URL[] { new File(args[0]).toURI().toURL() }, null);
+        for (int round = 0; round < ROUNDS; round++)
+        {
+            long indexed = time(index, null, candidates);
+            long probed = time(null, loader, candidates);
+            System.out.println("Round " + (round + 1) + ": "
+                + candidates.size() + " candidate paths, index "
+                + indexed / 1000 + " us, class loader "
+                + probed / 1000 + " us; per image name, index "
+                + indexed / names / 1000.0 + " us, class loader "
+                + probed / names / 1000.0 + " us");
+        }
+    }
+
+
+    //~ Private methods .......................................................
+
+    // ----------------------------------------------------------
+    /**
+     * List every path a lookup would try for each image in the archive,
+     * and for a missing image in each of the same directories.
+     */
+    private static List<String> candidatePaths(String archivePath)
+        throws Exception
+    {
+        Set<String> result = new LinkedHashSet<String>();
+        ZipFile archive = new ZipFile(archivePath);
+        try
+        {
+            Enumeration<? extends ZipEntry> entries = archive.entries();
+            while (entries.hasMoreElements())
+            {
+                String name = entries.nextElement().getName();
+                int slash = name.indexOf("images/");
+                if (slash < 0 || name.endsWith("/"))
+                {
+                    continue;
+                }
+
+                String base = name.substring(0, slash + "images/".length());
+                String file = name.substring(name.lastIndexOf('/') + 1);
+                int dot = file.lastIndexOf('.');
+                String stem = dot >= 0 ? file.substring(0, dot) : file;
+                for (String image : new String[] { stem, stem + "-missing" })
+                {
+                    for (String density : DENSITIES)
+                    {
+                        for (String extension : EXTENSIONS)
+                        {
+                            result.add(base + density + image + extension);
+                        }
+                    }
+                }
+            }
+        }
+        finally
+        {
+            archive.close();
+        }
+        return new ArrayList<String>(result);
+    }
+
+
+    // ----------------------------------------------------------
+    /**
+     * Check every candidate path with either the index or the class
+     * loader, and return the elapsed time in nanoseconds.
+     */
+    private static long time(ClasspathImageIndex index,
+        ClassLoader loader, List<String> candidates)
+    {
+        int found = 0;
+        long start = System.nanoTime();
+        for (String path : candidates)
+        {
+            boolean exists = index != null
+                ? index.contains(path)
+                : loader.getResource(path) != null;
+            if (exists)
+            {
+                found++;
+            }
+        }
+        long elapsed = System.nanoTime() - start;
+
+        // Use the count, so the loop cannot be optimized away
+        if (found < 0)
+        {
+            System.out.println(found);
+        }
+        return elapsed;
+    }
+
+
+    //~ Instance/static variables .............................................
+
+    private static final int ROUNDS = 5;
+
+    private static final String[] DENSITIES =
+        { "xhdpi/", "hdpi/", "mdpi/", "ldpi/", "" };
+    // The extensions JarResources tries for a name without one
+    private static final String[] EXTENSIONS =
+        { ".png", ".PNG", ".gif", ".GIF", ".jpg", ".JPG", ".JPEG" };
+}
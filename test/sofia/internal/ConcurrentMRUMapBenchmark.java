@@ -0,0 +1,149 @@
+package sofia.internal;
+
+import java.util.Collections;
+import java.util.Map;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicLong;
+
+//-------------------------------------------------------------------------
+/**
+ *  Compares the throughput of a {@link ConcurrentMRUMap} with that of an
+ *  {@link MRUMap} shared behind a single lock, at 1, 4, and 16 threads.
+ *  Each thread repeatedly looks up a key and stores a value for it when
+ *  the lookup misses, as a cache of loaded images would.  Keys are drawn
+ *  from a skewed distribution over twice as many keys as the maps can
+ *  hold, so that both hits and evictions are common.
+ *  <p>
+ *  Run it on the desktop with no arguments, for example
+ *  {@code java sofia.internal.ConcurrentMRUMapBenchmark}.  The numbers
+ *  only mean something relative to each other, and the gap between the
+ *  two maps can only show when the machine has more than one core.
+ *  </p>
+ *
+ *  @author Last changed by $Author$
+ *  @version $Revision$, $Date$
+ */
+public class ConcurrentMRUMapBenchmark
+{
+    //~ Public methods ........................................................
+
+    // ----------------------------------------------------------
+    /**
+     * Run the benchmark.
+     * @param args Ignored.
+     * @throws InterruptedException if interrupted while waiting for the
+     *                              threads to finish.
+     */
+    public static void main(String[] args)
+        throws InterruptedException
+    {
+        System.out.println(Runtime.getRuntime().availableProcessors()
+            + " processors");
+        for (int round = 0; round < ROUNDS; round++)
+        {
+            System.out.println("Round " + (round + 1) + ":");
+            for (int threads : THREAD_COUNTS)
+            {
+                Map<Integer, String> locked = Collections.synchronizedMap(
+                    new MRUMap<Integer, String>(CAPACITY, 0, null));
+                Map<Integer, String> concurrent =
+                    new ConcurrentMRUMap<Integer, String>(
+                        CAPACITY, 0, null, threads);
+
+                System.out.println("  " + threads + " threads: "
+                    + "MRUMap with a lock " + measure(locked, threads)
+                    + ", ConcurrentMRUMap " + measure(concurrent, threads));
+            }
+        }
+    }
+
+
+    //~ Private methods .......................................................
+
+    // ----------------------------------------------------------
+    /**
+     * Run the workload on the map with the given number of threads for
+     * DURATION_MILLIS, and describe the throughput and hit rate.
+     */
+    private static String measure(
+        final Map<Integer, String> map, int threads)
+        throws InterruptedException
+    {
+        for (int key = 0; key < CAPACITY; key++)
+        {
+            map.put(key, VALUE);
+        }
+
+        final AtomicLong operations = new AtomicLong();
+        final AtomicLong hits = new AtomicLong();
+        final CountDownLatch start = new CountDownLatch(1);
+        final long[] deadline = new long[1];
+        Thread[] workers = new Thread[threads];
+        for (int i = 0; i < threads; i++)
+        {
+            final int seed = i * 0x9E3779B9 + 1;
+            workers[i] = new Thread() {
+                public void run()
+                {
+                    int random = seed;
+                    long ops = 0;
+                    long found = 0;
+                    try
+                    {
+                        start.await();
+                    }
+                    catch (InterruptedException e)
+                    {
+                        return;
+                    }
+                    while (System.nanoTime() < deadline[0])
+                    {
+                        for (int i = 0; i < BATCH; i++)
+                        {
+                            // xorshift, so threads do not share a Random
+                            random ^= random << 13;
+                            random ^= random >>> 17;
+                            random ^= random << 5;
+                            double uniform =
+                                (random >>> 1) / (double)Integer.MAX_VALUE;
+                            Integer key = (int)(uniform * uniform * KEYS);
+                            if (map.get(key) != null)
+                            {
+                                found++;
+                            }
+                            else
+                            {
+                                map.put(key, VALUE);
+                            }
+                        }
+                        ops += BATCH;
+                    }
+                    operations.addAndGet(ops);
+                    hits.addAndGet(found);
+                }
+            };
+            workers[i].start();
+        }
+
+        deadline[0] = System.nanoTime() + DURATION_MILLIS * 1000000L;
+        start.countDown();
+        for (Thread worker : workers)
+        {
+            worker.join();
+        }
+
+        return operations.get() / DURATION_MILLIS + " ops/ms ("
+            + Math.round(hits.get() * 100.0 / operations.get()) + "% hits)";
+    }
+
+
+    //~ Instance/static variables .............................................
+
+    private static final int ROUNDS = 3;
+    private static final int[] THREAD_COUNTS = { 1, 4, 16 };
+    private static final long DURATION_MILLIS = 1000;
+    private static final int BATCH = 256;
+    private static final int CAPACITY = 1000;
+    private static final int KEYS = 2 * CAPACITY;
+    private static final String VALUE = "value";
+}
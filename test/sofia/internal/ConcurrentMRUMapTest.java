@@ -0,0 +1,170 @@
+package sofia.internal;
+
+import java.util.ArrayList;
+import java.util.List;
+import junit.framework.TestCase;
+
+//-------------------------------------------------------------------------
+/**
+ *  Tests for the weight limit of {@link ConcurrentMRUMap}, which is shared
+ *  by all segments rather than divided among them.
+ *
+ *  @author Last changed by $Author$
+ *  @version $Revision$, $Date$
+ */
+public class ConcurrentMRUMapTest
+    extends TestCase
+{
+    //~ Public methods ........................................................
+
+    // ----------------------------------------------------------
+    /**
+     * Sets up each test with a map bounded only by weight: 100 units split
+     * over four segments, with no capacity limit.
+     */
+    protected void setUp()
+    {
+        recycled = new ArrayList<String>();
+        map = new ConcurrentMRUMap<Integer, String>(
+            0, MAX_WEIGHT, LENGTH_WEIGHER, 0, new MRUMap.Recycler<String>() {
+                public void recycle(String value)
+                {
+                    recycled.add(value);
+                }
+            }, 4);
+        map.setRecordingStats(true);
+    }
+
+
+    // ----------------------------------------------------------
+    /**
+     * A key used once must not displace entries that are used often, even
+     * though no single segment is full.
+     */
+    public void testAdmissionFilterRejectsRareKeyWithWeightLimitOnly()
+    {
+        map.setAdmissionFilter(true);
+        fillWithPopularKeys();
+
+        String rare = value(10);
+        map.put(100, rare);
+
+        assertFalse("rare key admitted", map.keySet().contains(100));
+        assertEquals(1, map.stats().rejectionCount());
+        assertEquals(10, map.keySet().size());
+        assertEquals(MAX_WEIGHT, map.weightedSize());
+        assertFalse("rejected value recycled", recycled.contains(rare));
+    }
+
+
+    // ----------------------------------------------------------
+    /**
+     * A key that has been asked for more often than the least recently
+     * used entry is admitted, and evicts that entry from whichever segment
+     * it is in.
+     */
+    public void testAdmissionFilterAdmitsFrequentKeyWithWeightLimitOnly()
+    {
+        map.setAdmissionFilter(true);
+        fillWithPopularKeys();
+
+        // Each miss counts as a use of the key
+        for (int i = 0; i < 10; i++)
+        {
+            assertNull(map.get(100));
+        }
+        map.put(100, value(10));
+
+        assertTrue("frequent key rejected", map.keySet().contains(100));
+        assertFalse("eldest entry kept", map.keySet().contains(0));
+        assertEquals(0, map.stats().rejectionCount());
+        assertEquals(MAX_WEIGHT, map.weightedSize());
+    }
+
+
+    // ----------------------------------------------------------
+    /**
+     * Without the admission filter, the least recently used entry of the
+     * whole map is evicted, not one entry from each segment.
+     */
+    public void testEvictsLeastRecentlyUsedAcrossSegments()
+    {
+        for (int key = 0; key < 10; key++)
+        {
+            map.put(key, value(10));
+        }
+        map.get(0);
+        map.put(10, value(10));
+
+        assertTrue(map.keySet().contains(0));
+        assertFalse(map.keySet().contains(1));
+        assertEquals(10, map.size());
+        assertEquals(MAX_WEIGHT, map.weightedSize());
+    }
+
+
+    // ----------------------------------------------------------
+    /**
+     * A value heavier than the whole budget is neither stored nor passed
+     * to the recycler, and evicts nothing.
+     */
+    public void testValueHeavierThanLimitIsNotStored()
+    {
+        map.put(1, value(10));
+        String heavy = value(MAX_WEIGHT + 1);
+        map.put(2, heavy);
+
+        assertFalse(map.keySet().contains(2));
+        assertTrue(map.keySet().contains(1));
+        assertFalse("heavy value recycled", recycled.contains(heavy));
+        assertEquals(10, map.weightedSize());
+    }
+
+
+    //~ Private methods .......................................................
+
+    // ----------------------------------------------------------
+    /**
+     * Fill the map exactly to its weight limit with ten keys that have
+     * each been used several times, oldest first.
+     */
+    private void fillWithPopularKeys()
+    {
+        for (int key = 0; key < 10; key++)
+        {
+            map.put(key, value(10));
+            for (int i = 0; i < 4; i++)
+            {
+                map.get(key);
+            }
+        }
+    }
+
+
+    // ----------------------------------------------------------
+    private static String value(int weight)
+    {
+        StringBuilder result = new StringBuilder(weight);
+        for (int i = 0; i < weight; i++)
+        {
+            result.append('x');
+        }
+        return result.toString();
+    }
+
+
+    //~ Instance/static variables .............................................
+
+    private static final int MAX_WEIGHT = 100;
+
+    private static final MRUMap.Weigher<Integer, String> LENGTH_WEIGHER =
+        new MRUMap.Weigher<Integer, String>() {
+            public int weigh(Integer key, String value)
+            {
+                return value.length();
+            }
+        };
+
+    private ConcurrentMRUMap<Integer, String> map;
+    private List<String> recycled;
+}
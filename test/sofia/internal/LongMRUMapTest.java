@@ -0,0 +1,228 @@
+package sofia.internal;
+
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import junit.framework.TestCase;
+
+//-------------------------------------------------------------------------
+/**
+ *  Tests for {@link LongMRUMap}, checking its least-recently-used order
+ *  against an access-ordered {@link LinkedHashMap} over random operations,
+ *  and its age limit.
+ *
+ *  @author Last changed by $Author$
+ *  @version $Revision$, $Date$
+ */
+public class LongMRUMapTest
+    extends TestCase
+{
+    //~ Public methods ........................................................
+
+    // ----------------------------------------------------------
+    /**
+     * Sets up each test with an empty list of recycled values.
+     */
+    protected void setUp()
+    {
+        recycled = new ArrayList<String>();
+    }
+
+
+    // ----------------------------------------------------------
+    /**
+     * Without a capacity limit, the map grows (and rehashes) to hold every
+     * key, in the same order as a LinkedHashMap.
+     */
+    public void testMatchesLinkedHashMapWithNoCapacityLimit()
+    {
+        fuzz(0);
+    }
+
+
+    // ----------------------------------------------------------
+    /**
+     * With a capacity of one, every new key evicts the previous one.
+     */
+    public void testMatchesLinkedHashMapWithCapacityOne()
+    {
+        fuzz(1);
+    }
+
+
+    // ----------------------------------------------------------
+    /**
+     * A small capacity that is not a power of two.
+     */
+    public void testMatchesLinkedHashMapWithCapacitySeven()
+    {
+        fuzz(7);
+    }
+
+
+    // ----------------------------------------------------------
+    /**
+     * A capacity large enough that the table must grow past its initial
+     * size.
+     */
+    public void testMatchesLinkedHashMapWithCapacityFifty()
+    {
+        fuzz(50);
+    }
+
+
+    // ----------------------------------------------------------
+    /**
+     * Entries stored longer ago than the age limit are removed and
+     * recycled, while newer ones stay.  Reading an entry does not renew its
+     * age, but storing it again does.
+     * @throws InterruptedException if interrupted while waiting for entries
+     *                              to age.
+     */
+    public void testEntriesExpireAfterAgeLimit()
+        throws InterruptedException
+    {
+        LongMRUMap<String> map = new LongMRUMap<String>(0, 1, recycler());
+        map.put(1L, "one");
+        map.put(2L, "two");
+        map.put(3L, "three");
+        assertTrue(map.getTimestampFor(1L) > 0);
+
+        Thread.sleep(600);
+        map.get(1L);
+        map.put(2L, "two");
+        map.put(4L, "four");
+
+        Thread.sleep(600);
+        assertNull("read did not renew age", map.get(1L));
+        assertEquals(0, map.getTimestampFor(1L));
+        assertTrue("put renewed age", map.containsKey(2L));
+        assertFalse(map.containsKey(3L));
+        assertTrue(map.containsKey(4L));
+        assertEquals(2, map.size());
+        assertTrue(recycled.contains("one"));
+        assertTrue(recycled.contains("three"));
+        assertFalse(recycled.contains("four"));
+
+        Thread.sleep(1200);
+        map.cleanUp();
+        assertTrue(map.isEmpty());
+        assertTrue(recycled.contains("four"));
+    }
+
+
+    //~ Private methods .......................................................
+
+    // ----------------------------------------------------------
+    /**
+     * Apply the same random operations to a LongMRUMap and to an
+     * access-ordered LinkedHashMap with the same capacity, and check after
+     * each one that both hold the same entries in the same order, and that
+     * the LongMRUMap recycled exactly the values the reference dropped.
+     */
+    private void fuzz(final int capacity)
+    {
+        LongMRUMap<String> map =
+            new LongMRUMap<String>(capacity, 0, recycler());
+        final List<String> dropped = new ArrayList<String>();
+        LinkedHashMap<Long, String> reference =
+            new LinkedHashMap<Long, String>(16, 0.75f, true) {
+                protected boolean removeEldestEntry(
+                    Map.Entry<Long, String> eldest)
+                {
+                    if (capacity > 0 && size() > capacity)
+                    {
+                        dropped.add(eldest.getValue());
+                        return true;
+                    }
+                    return false;
+                }
+
+                private static final long serialVersionUID = 1L;
+            };
+
+        Random random = new Random(capacity);
+        int keys = Math.max(4, capacity * 3);
+        for (int i = 0; i < OPERATIONS; i++)
+        {
+            // Spread the keys out like timestamps, including negative ones
+            long key = BASE_KEY + (random.nextInt(keys) - keys / 2) * 1000L;
+            int operation = random.nextInt(100);
+            if (operation < 45)
+            {
+                String value = "v" + i;
+                String old = reference.put(key, value);
+                if (old != null)
+                {
+                    dropped.add(old);
+                }
+                assertEquals(old, map.put(key, value));
+            }
+            else if (operation < 80)
+            {
+                assertEquals(reference.get(key), map.get(key));
+            }
+            else if (operation < 90)
+            {
+                assertEquals(
+                    reference.containsKey(key), map.containsKey(key));
+            }
+            else if (operation < 95)
+            {
+                String old = reference.remove(key);
+                if (old != null)
+                {
+                    dropped.add(old);
+                }
+                assertEquals(old, map.remove(key));
+            }
+            else if (operation < 99)
+            {
+                String old = reference.remove(key);
+                if (old != null)
+                {
+                    dropped.add(old);
+                }
+                assertEquals(old, map.put(key, null));
+            }
+            else
+            {
+                reference.clear();
+                map.clear();
+            }
+
+            assertEquals(reference.size(), map.size());
+            assertEquals(reference.toString(), map.toString());
+            assertEquals(dropped, recycled);
+        }
+
+        // Every surviving key must still be found after all the churn
+        for (Iterator<Long> it = reference.keySet().iterator(); it.hasNext();)
+        {
+            assertTrue(map.containsKey(it.next()));
+        }
+    }
+
+
+    // ----------------------------------------------------------
+    private MRUMap.Recycler<String> recycler()
+    {
+        return new MRUMap.Recycler<String>() {
+            public void recycle(String value)
+            {
+                recycled.add(value);
+            }
+        };
+    }
+
+
+    //~ Instance/static variables .............................................
+
+    private static final int OPERATIONS = 20000;
+    private static final long BASE_KEY = 1350000000000L;
+
+    private List<String> recycled;
+}
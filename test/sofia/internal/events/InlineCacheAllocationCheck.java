@@ -0,0 +1,156 @@
+package sofia.internal.events;
+
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+
+//-------------------------------------------------------------------------
+/**
+ *  Checks that a steady-state {@link EventDispatcher#dispatch(Object,
+ *  Object...)} allocates nothing once its handlers are in the dispatcher's
+ *  inline cache.  One dispatcher delivers events with zero to three
+ *  arguments in turn, which together fill the inline cache, and the
+ *  handlers take the arguments unchanged.  The argument arrays are
+ *  allocated up front, as the callers of a varargs method would otherwise
+ *  allocate them at each call site.
+ *  <p>
+ *  Run it on the desktop with no arguments, for example
+ *  {@code java sofia.internal.events.InlineCacheAllocationCheck}.  It
+ *  prints the bytes allocated per dispatch for each arity and exits with
+ *  status 1 if any of them is not zero.  Allocation is measured with the
+ *  HotSpot per-thread allocation counter, so the check cannot run on a VM
+ *  without one.
+ *  </p>
+ *
+ *  @author Last changed by $Author$
+ *  @version $Revision$, $Date$
+ */
+public class InlineCacheAllocationCheck
+{
+    //~ Public methods ........................................................
+
+    // ----------------------------------------------------------
+    /**
+     * Run the check.
+     * @param args Ignored.
+     */
+    public static void main(String[] args)
+    {
+        ThreadMXBean threads = ManagementFactory.getThreadMXBean();
+        if (!(threads instanceof com.sun.management.ThreadMXBean))
+        {
+            System.err.println("This VM cannot count allocated bytes");
+            System.exit(1);
+        }
+        com.sun.management.ThreadMXBean counter =
+            (com.sun.management.ThreadMXBean)threads;
+        long thread = Thread.currentThread().getId();
+
+        Handler handler = new Handler();
+        EventDispatcher dispatcher = new EventDispatcher("onEvent");
+        Object[][] events = {
+            {},
+            { Integer.valueOf(1) },
+            { Integer.valueOf(1), "two" },
+            { Integer.valueOf(1), "two", Boolean.TRUE }
+        };
+
+        for (int i = 0; i < WARM_UP; i++)
+        {
+            for (Object[] event : events)
+            {
+                dispatcher.dispatch(handler, event);
+            }
+        }
+
+        // The cost of reading the counter itself, to subtract below
+        long overhead = -counter.getThreadAllocatedBytes(thread);
+        overhead += counter.getThreadAllocatedBytes(thread);
+
+        boolean allocated = false;
+        for (Object[] event : events)
+        {
+            long start = counter.getThreadAllocatedBytes(thread);
+            for (int i = 0; i < DISPATCHES; i++)
+            {
+                dispatcher.dispatch(handler, event);
+            }
+            long bytes =
+                counter.getThreadAllocatedBytes(thread) - start - overhead;
+
+            System.out.println(event.length + " arguments: "
+                + (double)bytes / DISPATCHES + " bytes/dispatch");
+            allocated |= bytes > 0;
+        }
+
+        // Use the count, so the dispatches cannot be optimized away
+        System.out.println(handler.calls + " handler calls");
+        if (allocated)
+        {
+            System.exit(1);
+        }
+    }
+
+
+    //~ Inner classes .........................................................
+
+    // ----------------------------------------------------------
+    /**
+     * The receiver, with a handler for each arity.
+     */
+    public static class Handler
+    {
+        // ----------------------------------------------------------
+        /**
+         * Handle an event with no arguments.
+         */
+        public void onEvent()
+        {
+            calls++;
+        }
+
+
+        // ----------------------------------------------------------
+        /**
+         * Handle an event with one argument.
+         * @param a The argument.
+         */
+        public void onEvent(Integer a)
+        {
+            calls++;
+        }
+
+
+        // ----------------------------------------------------------
+        /**
+         * Handle an event with two arguments.
+         * @param a The first argument.
+         * @param b The second argument.
+         */
+        public void onEvent(Integer a, String b)
+        {
+            calls++;
+        }
+
+
+        // ----------------------------------------------------------
+        /**
+         * Handle an event with three arguments.
+         * @param a The first argument.
+         * @param b The second argument.
+         * @param c The third argument.
+         */
+        public void onEvent(Integer a, String b, Boolean c)
+        {
+            calls++;
+        }
+
+
+        private long calls;
+    }
+
+
+    //~ Instance/static variables .............................................
+
+    private static final int WARM_UP = 100000;
+    private static final int DISPATCHES = 1000000;
+}
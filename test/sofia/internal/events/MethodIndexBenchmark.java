@@ -0,0 +1,209 @@
+package sofia.internal.events;
+
+import java.lang.reflect.Method;
+import java.util.ArrayList;
+import java.util.List;
+
+//-------------------------------------------------------------------------
+/**
+ *  Counts the {@code getDeclaredMethods()} calls that a screen's startup
+ *  makes when it looks up its event handlers, with and without a
+ *  {@link MethodIndex}.  A screen is simulated by a subclass of
+ *  {@code javax.swing.JPanel}, whose framework hierarchy is about as deep
+ *  and as large as that of an Android {@code Activity}, and which can be
+ *  created without a display.  Its startup looks up the lifecycle, touch,
+ *  and key handlers that Sofia probes for, plus an optional
+ *  {@code xxxClicked} handler for each of twenty widgets, only a few of
+ *  which exist.
+ *  <p>
+ *  The first screen is measured twice: by walking its class hierarchy and
+ *  calling {@code getDeclaredMethods()} on each class for each lookup, as
+ *  handler resolution did before the index, and by resolving each handler
+ *  through an {@link EventDispatcher}.  A second screen class with the
+ *  same superclasses is then resolved, to show that framework classes are
+ *  only indexed once.  Run it on the desktop with no arguments, for
+ *  example {@code java sofia.internal.events.MethodIndexBenchmark}.  The
+ *  desktop VM caches declared methods internally, which Dalvik does not,
+ *  so the times understate the cost of each scan on a device; the counts
+ *  are the same on both.
+ *  </p>
+ *
+ *  @author Last changed by $Author$
+ *  @version $Revision$, $Date$
+ */
+public class MethodIndexBenchmark
+{
+    //~ Public methods ........................................................
+
+    // ----------------------------------------------------------
+    /**
+     * Run the benchmark.
+     * @param args Ignored.
+     */
+    public static void main(String[] args)
+    {
+        System.setProperty("java.awt.headless", "true");
+        List<String> handlers = handlerNames();
+        System.out.println(handlers.size() + " handler lookups per screen, "
+            + depth(FirstScreen.class) + " classes in the hierarchy");
+
+        long start = System.nanoTime();
+        int scans = 0;
+        int found = 0;
+        for (String name : handlers)
+        {
+            for (Class<?> c = FirstScreen.class; c != null;
+                c = c.getSuperclass())
+            {
+                scans++;
+                for (Method method : c.getDeclaredMethods())
+                {
+                    if (method.getName().equals(name))
+                    {
+                        found++;
+                    }
+                }
+            }
+        }
+        System.out.println("Without an index: " + scans
+            + " getDeclaredMethods() calls, "
+            + (System.nanoTime() - start) / 1000 + " us (" + found
+            + " candidate methods)");
+
+        report("First screen with an index", new FirstScreen(), handlers);
+        report("Second screen with an index", new SecondScreen(), handlers);
+    }
+
+
+    //~ Private methods .......................................................
+
+    // ----------------------------------------------------------
+    /**
+     * Resolve every handler for the screen through a dispatcher, and print
+     * the number of declared-method scans and the time it took.
+     */
+    private static void report(
+        String label, Object screen, List<String> handlers)
+    {
+        int scansBefore = MethodIndex.getDeclaredMethodScanCount();
+        long start = System.nanoTime();
+        int supported = 0;
+        for (String name : handlers)
+        {
+            if (new EventDispatcher(name).prepare(screen))
+            {
+                supported++;
+            }
+        }
+        long elapsed = System.nanoTime() - start;
+        System.out.println(label + ": "
+            + (MethodIndex.getDeclaredMethodScanCount() - scansBefore)
+            + " getDeclaredMethods() calls, " + elapsed / 1000 + " us ("
+            + supported + " handlers found)");
+    }
+
+
+    // ----------------------------------------------------------
+    /**
+     * List the handler names that a screen's startup looks up.
+     */
+    private static List<String> handlerNames()
+    {
+        List<String> names = new ArrayList<String>();
+        for (String name : LIFECYCLE_HANDLERS)
+        {
+            names.add(name);
+        }
+        for (int i = 0; i < WIDGETS; i++)
+        {
+            names.add("button" + i + "Clicked");
+        }
+        return names;
+    }
+
+
+    // ----------------------------------------------------------
+    private static int depth(Class<?> c)
+    {
+        int depth = 0;
+        for (; c != null; c = c.getSuperclass())
+        {
+            depth++;
+        }
+        return depth;
+    }
+
+
+    //~ Inner classes .........................................................
+
+    // ----------------------------------------------------------
+    /**
+     * A screen with a few handlers.
+     */
+    public static class FirstScreen
+        extends javax.swing.JPanel
+    {
+        // ----------------------------------------------------------
+        /**
+         * Set up the screen.
+         */
+        public void initialize()
+        {
+            // Nothing to do
+        }
+
+
+        // ----------------------------------------------------------
+        /**
+         * Handle a click.
+         */
+        public void button0Clicked()
+        {
+            // Nothing to do
+        }
+
+
+        // ----------------------------------------------------------
+        /**
+         * Handle a click.
+         */
+        public void button1Clicked()
+        {
+            // Nothing to do
+        }
+
+
+        private static final long serialVersionUID = 1L;
+    }
+
+
+    // ----------------------------------------------------------
+    /**
+     * Another screen with the same framework superclasses.
+     */
+    public static class SecondScreen
+        extends javax.swing.JPanel
+    {
+        // ----------------------------------------------------------
+        /**
+         * Set up the screen.
+         */
+        public void initialize()
+        {
+            // Nothing to do
+        }
+
+
+        private static final long serialVersionUID = 1L;
+    }
+
+
+    //~ Instance/static variables .............................................
+
+    private static final String[] LIFECYCLE_HANDLERS = {
+        "initialize", "onCreate", "onResume", "onPause", "onDestroy",
+        "onTouchDown", "onTouchMove", "onTouchUp", "onKeyDown", "onKeyUp",
+        "onBackPressed", "onMenuItemSelected"
+    };
+    private static final int WIDGETS = 20;
+}
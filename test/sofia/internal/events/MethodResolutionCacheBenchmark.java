@@ -0,0 +1,235 @@
+package sofia.internal.events;
+
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+//-------------------------------------------------------------------------
+/**
+ *  A multi-threaded stress benchmark for the process-wide
+ *  {@link MethodResolutionCache}.  For each thread count, the cache is
+ *  cleared and all threads start at once, so they all miss the same keys
+ *  together; then each thread keeps looking up handlers for a rotating set
+ *  of receiver classes and argument types through
+ *  {@link EventDispatcher#prepare(Object, Class...)}, which always goes to
+ *  the shared cache rather than a dispatcher's inline cache.
+ *  <p>
+ *  For each thread count it prints the lookups per millisecond and the
+ *  number of times handlers were actually resolved, which must equal the
+ *  number of distinct keys however many threads missed them at once.  Run
+ *  it on the desktop with no arguments, for example
+ *  {@code java sofia.internal.events.MethodResolutionCacheBenchmark}.  It
+ *  exits with status 1 if any key was resolved more than once.
+ *  </p>
+ *
+ *  @author Last changed by $Author$
+ *  @version $Revision$, $Date$
+ */
+public class MethodResolutionCacheBenchmark
+{
+    //~ Public methods ........................................................
+
+    // ----------------------------------------------------------
+    /**
+     * Run the benchmark.
+     * @param args Ignored.
+     * @throws InterruptedException if interrupted while waiting for the
+     *                              threads to finish.
+     */
+    public static void main(String[] args)
+        throws InterruptedException
+    {
+        System.out.println(Runtime.getRuntime().availableProcessors()
+            + " processors, " + RECEIVERS.length * ARG_TYPES.length
+            + " keys");
+        boolean duplicated = false;
+        for (int round = 0; round < ROUNDS; round++)
+        {
+            System.out.println("Round " + (round + 1) + ":");
+            for (int threads : THREAD_COUNTS)
+            {
+                MethodResolutionCache.getInstance().clear();
+                resolutions.set(0);
+                long lookups = run(threads);
+                System.out.println("  " + threads + " threads: "
+                    + lookups / DURATION_MILLIS + " lookups/ms, "
+                    + resolutions.get() + " resolutions");
+                duplicated |=
+                    resolutions.get() != RECEIVERS.length * ARG_TYPES.length;
+            }
+        }
+
+        if (duplicated)
+        {
+            System.exit(1);
+        }
+    }
+
+
+    //~ Private methods .......................................................
+
+    // ----------------------------------------------------------
+    /**
+     * Look up handlers from the given number of threads for
+     * DURATION_MILLIS, and return the total number of lookups.
+     */
+    private static long run(int threads)
+        throws InterruptedException
+    {
+        final AtomicLong lookups = new AtomicLong();
+        final CountDownLatch start = new CountDownLatch(1);
+        final long[] deadline = new long[1];
+        Thread[] workers = new Thread[threads];
+        for (int i = 0; i < threads; i++)
+        {
+            workers[i] = new Thread() {
+                public void run()
+                {
+                    EventDispatcher dispatcher =
+                        new CountingDispatcher("onEvent");
+                    long count = 0;
+                    try
+                    {
+                        start.await();
+                    }
+                    catch (InterruptedException e)
+                    {
+                        return;
+                    }
+                    while (System.nanoTime() < deadline[0])
+                    {
+                        for (Object receiver : RECEIVERS)
+                        {
+                            for (Class<?> argType : ARG_TYPES)
+                            {
+                                dispatcher.prepare(receiver, argType);
+                            }
+                        }
+                        count += RECEIVERS.length * ARG_TYPES.length;
+                    }
+                    lookups.addAndGet(count);
+                }
+            };
+            workers[i].start();
+        }
+
+        deadline[0] = System.nanoTime() + DURATION_MILLIS * 1000000L;
+        start.countDown();
+        for (Thread worker : workers)
+        {
+            worker.join();
+        }
+        return lookups.get();
+    }
+
+
+    //~ Inner classes .........................................................
+
+    // ----------------------------------------------------------
+    /**
+     * A dispatcher that counts how many times it resolves handlers.
+     */
+    private static class CountingDispatcher
+        extends EventDispatcher
+    {
+        // ----------------------------------------------------------
+        CountingDispatcher(String method)
+        {
+            super(method);
+        }
+
+
+        // ----------------------------------------------------------
+        @Override
+        protected List<MethodTransformer> lookupTransformers(
+            Object receiver, List<Class<?>> argTypes)
+        {
+            resolutions.incrementAndGet();
+            return super.lookupTransformers(receiver, argTypes);
+        }
+    }
+
+
+    // ----------------------------------------------------------
+    /**
+     * A receiver.
+     */
+    public static class First
+    {
+        // ----------------------------------------------------------
+        /**
+         * A handler.
+         * @param value Ignored.
+         */
+        public void onEvent(Integer value)
+        {
+            // Nothing to do
+        }
+
+
+        // ----------------------------------------------------------
+        /**
+         * A handler.
+         * @param value Ignored.
+         */
+        public void onEvent(String value)
+        {
+            // Nothing to do
+        }
+    }
+
+
+    // ----------------------------------------------------------
+    /**
+     * A receiver that inherits its handlers.
+     */
+    public static class Second
+        extends First
+    {
+        // Inherits its handlers
+    }
+
+
+    // ----------------------------------------------------------
+    /**
+     * A receiver that overrides one handler.
+     */
+    public static class Third
+        extends First
+    {
+        // ----------------------------------------------------------
+        /**
+         * A handler.
+         * @param value Ignored.
+         */
+        public void onEvent(Integer value)
+        {
+            // Nothing to do
+        }
+    }
+
+
+    // ----------------------------------------------------------
+    /**
+     * A receiver with no handlers at all.
+     */
+    public static class Fourth
+    {
+        // No handlers
+    }
+
+
+    //~ Instance/static variables .............................................
+
+    private static final int ROUNDS = 3;
+    private static final int[] THREAD_COUNTS = { 1, 2, 4, 8, 16 };
+    private static final long DURATION_MILLIS = 500;
+
+    private static final Object[] RECEIVERS =
+        { new First(), new Second(), new Third(), new Fourth() };
+    private static final Class<?>[] ARG_TYPES =
+        { Integer.class, String.class };
+
+    private static final AtomicInteger resolutions = new AtomicInteger();
+}
@@ -0,0 +1,186 @@
+package sofia.internal.events;
+
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+import java.lang.reflect.Method;
+
+//-------------------------------------------------------------------------
+/**
+ *  Measures the throughput and the allocation per call of the ways an event
+ *  handler can be called: directly, through an unbound
+ *  {@link Method#invoke(Object, Object...)}, through a
+ *  {@link ReflectiveInvoker}, and through a whole
+ *  {@link EventDispatcher#dispatch(Object, Object...)}.  The arguments are
+ *  allocated once up front, so the bytes reported for each call are those
+ *  allocated by the call path itself.
+ *  <p>
+ *  Run it on the desktop with no arguments, for example
+ *  {@code java sofia.internal.events.ReflectiveInvokerBenchmark}.
+ *  Allocation is measured with the HotSpot per-thread allocation counter,
+ *  and is reported as "n/a" on a VM without one.  Desktop timings only show
+ *  the relative cost of the call paths; the absolute numbers on a device
+ *  will differ.
+ *  </p>
+ *
+ *  @author Last changed by $Author$
+ *  @version $Revision$, $Date$
+ */
+public class ReflectiveInvokerBenchmark
+{
+    //~ Public methods ........................................................
+
+    // ----------------------------------------------------------
+    /**
+     * Run the benchmark.
+     * @param args Ignored.
+     * @throws Exception if the handler method cannot be found.
+     */
+    public static void main(String[] args)
+        throws Exception
+    {
+        final Handler handler = new Handler();
+        final Object[] eventArgs = { Integer.valueOf(1) };
+        final Method method =
+            Handler.class.getMethod("onEvent", Integer.class);
+        final ReflectiveInvoker invoker = new ReflectiveInvoker(
+            Handler.class.getMethod("onEvent", Integer.class));
+        final EventDispatcher dispatcher = new EventDispatcher("onEvent");
+        System.out.println("Invoker bound: " + invoker.isBound());
+
+        Case[] cases = {
+            new Case("direct call") {
+                void call()
+                {
+                    handler.onEvent((Integer) eventArgs[0]);
+                }
+            },
+            new Case("Method.invoke") {
+                void call()
+                    throws Exception
+                {
+                    method.invoke(handler, eventArgs);
+                }
+            },
+            new Case("ReflectiveInvoker") {
+                void call()
+                {
+                    invoker.invoke(handler, eventArgs);
+                }
+            },
+            new Case("EventDispatcher") {
+                void call()
+                {
+                    dispatcher.dispatch(handler, eventArgs);
+                }
+            }
+        };
+
+        for (int round = 0; round < ROUNDS; round++)
+        {
+            System.out.println("Round " + (round + 1) + ":");
+            for (Case c : cases)
+            {
+                c.measure();
+            }
+        }
+
+        // Use the total, so the calls cannot be optimized away
+        if (handler.total < 0)
+        {
+            System.out.println(handler.total);
+        }
+    }
+
+
+    //~ Private methods .......................................................
+
+    // ----------------------------------------------------------
+    /**
+     * Get the number of bytes allocated so far by the current thread, or -1
+     * if the VM cannot report it.
+     */
+    private static long allocatedBytes()
+    {
+        ThreadMXBean threads = ManagementFactory.getThreadMXBean();
+        if (threads instanceof com.sun.management.ThreadMXBean)
+        {
+            return ((com.sun.management.ThreadMXBean) threads)
+                .getThreadAllocatedBytes(Thread.currentThread().getId());
+        }
+        return -1;
+    }
+
+
+    //~ Inner classes .........................................................
+
+    // ----------------------------------------------------------
+    /**
+     * The receiver whose handler is called.
+     */
+    public static class Handler
+    {
+        // ----------------------------------------------------------
+        /**
+         * The handler.
+         * @param value The value to add to the total.
+         */
+        public void onEvent(Integer value)
+        {
+            total += value;
+        }
+
+        private long total;
+    }
+
+
+    // ----------------------------------------------------------
+    /**
+     * One way of calling the handler.
+     */
+    private abstract static class Case
+    {
+        // ----------------------------------------------------------
+        Case(String name)
+        {
+            this.name = name;
+        }
+
+
+        // ----------------------------------------------------------
+        abstract void call()
+            throws Exception;
+
+
+        // ----------------------------------------------------------
+        /**
+         * Make CALLS calls, and print the time and the bytes allocated for
+         * each.
+         */
+        void measure()
+            throws Exception
+        {
+            long startBytes = allocatedBytes();
+            long start = System.nanoTime();
+            for (int i = 0; i < CALLS; i++)
+            {
+                call();
+            }
+            long elapsed = System.nanoTime() - start;
+            long bytes = allocatedBytes() - startBytes;
+
+            System.out.println("  " + name + ": "
+                + (double) elapsed / CALLS + " ns/call, "
+                + (startBytes < 0 ? "n/a" : (double) bytes / CALLS + "")
+                + " bytes/call");
+        }
+
+
+        private final String name;
+    }
+
+
+    //~ Instance/static variables .............................................
+
+    private static final int ROUNDS = 5;
+    private static final int CALLS = 1000000;
+}